@@ -0,0 +1,142 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.facilities.Facility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs routing requests of an OTPRoutingModule asynchronously on an executor
+ * of its own. Matsim's PlanRouter calls calcRoute() synchronously, so the
+ * number of parallel otp searches is limited by global.numberOfThreads which
+ * is shared with other modules. With AsyncPlanRouter all trips of a person
+ * are submitted at once, so the otp searches can use all cores even if the
+ * persons' plans differ in length.
+ *
+ * The OTPRoutingModule is thread-safe, so the executor may use any number of
+ * threads. This project is compiled for Java 8, so there are no virtual
+ * threads; any ExecutorService (e.g. one creating virtual threads on a newer
+ * JVM) can be passed to the constructor instead of the default pool.
+ */
+public final class AsyncOTPRoutingModule {
+
+	private final static Logger log = Logger.getLogger(AsyncOTPRoutingModule.class);
+
+	private final OTPRoutingModule routingModule;
+	private final ExecutorService executor;
+	// only executors created by this class are shut down by shutdown()
+	private final boolean ownsExecutor;
+	// number of parts calcRoutesAsync() splits the routing requests into
+	private final int parallelism;
+
+	/**
+	 * Creates a pool of numberOfThreads daemon threads.
+	 */
+	public AsyncOTPRoutingModule(OTPRoutingModule routingModule, int numberOfThreads) {
+		this(routingModule, Executors.newFixedThreadPool(numberOfThreads, new RoutingThreadFactory()), true, 
+				numberOfThreads);
+		log.info("Asynchronous otp routing uses " + numberOfThreads + " threads.");
+	}
+
+	/**
+	 * @param executor : runs the routing requests, is not shut down by shutdown()
+	 */
+	public AsyncOTPRoutingModule(OTPRoutingModule routingModule, ExecutorService executor) {
+		this(routingModule, executor, false, Runtime.getRuntime().availableProcessors());
+	}
+
+	private AsyncOTPRoutingModule(OTPRoutingModule routingModule, ExecutorService executor, boolean ownsExecutor, 
+			int parallelism) {
+		this.routingModule = routingModule;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @return the trip calculated by OTPRoutingModule.calcRoute() on the executor
+	 */
+	public CompletableFuture<List<? extends PlanElement>> calcRouteAsync(final Facility fromFacility,
+			final Facility toFacility, final double departureTime, final Person person) {
+		return CompletableFuture.supplyAsync(
+				() -> routingModule.calcRoute(fromFacility, toFacility, departureTime, person), executor);
+	}
+
+	/**
+	 * Splits the requests into parts by origin, so requests from the same
+	 * origin end up in the same part and can share an otp search, and routes
+	 * each part by OTPRoutingModule.calcRoutes() on the executor.
+	 *
+	 * @return the trips in the order of the requests
+	 */
+	public CompletableFuture<List<List<? extends PlanElement>>> calcRoutesAsync(
+			final List<OTPRoutingModule.BatchRoutingRequest> requests, final int batchTimeWindowSeconds,
+			final int maxTripDurationSeconds) {
+		List<List<Integer>> parts = new ArrayList<>(parallelism);
+		for (int i = 0; i < parallelism; i++) {
+			parts.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < requests.size(); i++) {
+			Coord from = requests.get(i).getFromFacility().getCoord();
+			int hash = 31 * Double.hashCode(from.getX()) + Double.hashCode(from.getY());
+			parts.get(Math.floorMod(hash, parallelism)).add(i);
+		}
+		final List<List<? extends PlanElement>> trips = new ArrayList<>(Collections.nCopies(requests.size(),
+				(List<? extends PlanElement>) null));
+		List<CompletableFuture<Void>> routedParts = new ArrayList<>(parallelism);
+		for (final List<Integer> part : parts) {
+			if (part.isEmpty()) {
+				continue;
+			}
+			routedParts.add(CompletableFuture.runAsync(() -> {
+				List<OTPRoutingModule.BatchRoutingRequest> partRequests = new ArrayList<>(part.size());
+				for (int i : part) {
+					partRequests.add(requests.get(i));
+				}
+				List<List<? extends PlanElement>> partTrips = routingModule.calcRoutes(partRequests,
+						batchTimeWindowSeconds, maxTripDurationSeconds);
+				// each part sets other indices, the join below makes them visible
+				for (int j = 0; j < part.size(); j++) {
+					trips.set(part.get(j), partTrips.get(j));
+				}
+			}, executor));
+		}
+		return CompletableFuture.allOf(routedParts.toArray(new CompletableFuture[routedParts.size()]))
+				.thenApply(done -> trips);
+	}
+
+	public OTPRoutingModule getRoutingModule() {
+		return routingModule;
+	}
+
+	/**
+	 * Shuts down the pool created by this class. Routing requests already
+	 * submitted are still completed.
+	 */
+	public void shutdown() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	private static final class RoutingThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "otp-routing-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
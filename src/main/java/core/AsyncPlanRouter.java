@@ -0,0 +1,183 @@
+package core;
+
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.router.ActivityWrapperFacility;
+import org.matsim.core.router.TripRouter;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.router.TripStructureUtils.Trip;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.Facility;
+import org.matsim.population.algorithms.PlanAlgorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Replacement for matsim's PlanRouter (e.g. in PersonPrepareForSim) which
+ * submits all pt trips of a plan to an AsyncOTPRoutingModule at once, waits
+ * for all of them and inserts them into the plan. Trips of other modes are
+ * routed synchronously by the TripRouter.
+ *
+ * The departure time of a trip whose origin activity has no end time depends
+ * on the travel times of the previous trips (as in PlanRouter), so the
+ * previous trips are inserted before such a trip is routed.
+ *
+ * run(List, int, int) routes the pt trips of many plans at once by 
+ * OTPRoutingModule.calcRoutes(), so trips from the same origin share an otp
+ * search.
+ */
+public final class AsyncPlanRouter implements PlanAlgorithm {
+
+	private final TripRouter tripRouter;
+	private final ActivityFacilities facilities;
+	private final AsyncOTPRoutingModule asyncRoutingModule;
+
+	/**
+	 * @param tripRouter : routes trips whose main mode is not pt and identifies main modes
+	 * @param asyncRoutingModule : routes trips whose main mode is pt
+	 */
+	public AsyncPlanRouter(TripRouter tripRouter, ActivityFacilities facilities,
+			AsyncOTPRoutingModule asyncRoutingModule) {
+		this.tripRouter = tripRouter;
+		this.facilities = facilities;
+		this.asyncRoutingModule = asyncRoutingModule;
+	}
+
+	@Override
+	public void run(Plan plan) {
+		List<Trip> trips = TripStructureUtils.getTrips(plan, tripRouter.getStageActivityTypes());
+		List<CompletableFuture<List<? extends PlanElement>>> newTrips = new ArrayList<>(trips.size());
+		int numberOfInsertedTrips = 0;
+		for (Trip trip: trips) {
+			Activity originActivity = trip.getOriginActivity();
+			if (originActivity.getEndTime() == Time.UNDEFINED_TIME) {
+				numberOfInsertedTrips = insertTrips(plan, trips, newTrips, numberOfInsertedTrips);
+			}
+			double departureTime = calcEndOfActivity(originActivity, plan);
+			String mainMode = tripRouter.getMainModeIdentifier().identifyMainMode(trip.getTripElements());
+			Facility fromFacility = toFacility(originActivity);
+			Facility toFacility = toFacility(trip.getDestinationActivity());
+			if (TransportMode.pt.equals(mainMode)) {
+				newTrips.add(asyncRoutingModule.calcRouteAsync(fromFacility, toFacility, departureTime,
+						plan.getPerson()));
+			} else {
+				newTrips.add(CompletableFuture.<List<? extends PlanElement>>completedFuture(tripRouter.calcRoute(
+						mainMode, fromFacility, toFacility, departureTime, plan.getPerson())));
+			}
+		}
+		insertTrips(plan, trips, newTrips, numberOfInsertedTrips);
+	}
+
+	/**
+	 * Routes the pt trips of all plans whose departure times are known in 
+	 * advance, i.e. all trips start at activities with an end time, in one 
+	 * batch by AsyncOTPRoutingModule.calcRoutesAsync() and inserts them. See
+	 * OTPRoutingModule.calcRoutes() for the differences to calcRoute(). Trips
+	 * of other modes are routed synchronously by the TripRouter. Plans with
+	 * activities ending after a duration are routed one after the other by 
+	 * run(Plan).
+	 *
+	 * @param batchTimeWindowSeconds : see OTPRoutingModule.calcRoutes()
+	 * @param maxTripDurationSeconds : see OTPRoutingModule.calcRoutes()
+	 */
+	public void run(List<Plan> plans, int batchTimeWindowSeconds, int maxTripDurationSeconds) {
+		List<OTPRoutingModule.BatchRoutingRequest> requests = new ArrayList<>();
+		List<Plan> batchedPlans = new ArrayList<>();
+		List<List<Trip>> tripsOfBatchedPlans = new ArrayList<>();
+		// routed trips per batched plan, null for the pt trips until the batch is routed
+		List<List<List<? extends PlanElement>>> newTripsOfBatchedPlans = new ArrayList<>();
+		for (Plan plan: plans) {
+			List<Trip> trips = TripStructureUtils.getTrips(plan, tripRouter.getStageActivityTypes());
+			boolean departureTimesKnown = true;
+			for (Trip trip: trips) {
+				if (trip.getOriginActivity().getEndTime() == Time.UNDEFINED_TIME) {
+					departureTimesKnown = false;
+					break;
+				}
+			}
+			if (!departureTimesKnown) {
+				run(plan);
+				continue;
+			}
+			List<List<? extends PlanElement>> newTrips = new ArrayList<>(trips.size());
+			for (Trip trip: trips) {
+				double departureTime = trip.getOriginActivity().getEndTime();
+				String mainMode = tripRouter.getMainModeIdentifier().identifyMainMode(trip.getTripElements());
+				Facility fromFacility = toFacility(trip.getOriginActivity());
+				Facility toFacility = toFacility(trip.getDestinationActivity());
+				if (TransportMode.pt.equals(mainMode)) {
+					requests.add(new OTPRoutingModule.BatchRoutingRequest(fromFacility, toFacility, departureTime,
+							plan.getPerson()));
+					newTrips.add(null);
+				} else {
+					newTrips.add(tripRouter.calcRoute(mainMode, fromFacility, toFacility, departureTime,
+							plan.getPerson()));
+				}
+			}
+			batchedPlans.add(plan);
+			tripsOfBatchedPlans.add(trips);
+			newTripsOfBatchedPlans.add(newTrips);
+		}
+
+		List<List<? extends PlanElement>> ptTrips = asyncRoutingModule.calcRoutesAsync(requests,
+				batchTimeWindowSeconds, maxTripDurationSeconds).join();
+		int nextPtTrip = 0;
+		for (int p = 0; p < batchedPlans.size(); p++) {
+			List<Trip> trips = tripsOfBatchedPlans.get(p);
+			List<List<? extends PlanElement>> newTrips = newTripsOfBatchedPlans.get(p);
+			for (int i = 0; i < trips.size(); i++) {
+				List<? extends PlanElement> newTrip = newTrips.get(i);
+				if (newTrip == null) {
+					newTrip = ptTrips.get(nextPtTrip++);
+				}
+				TripRouter.insertTrip(batchedPlans.get(p), trips.get(i).getOriginActivity(), newTrip,
+						trips.get(i).getDestinationActivity());
+			}
+		}
+	}
+
+	/**
+	 * Waits for all routed trips which are not inserted yet and inserts them.
+	 *
+	 * @return the number of inserted trips
+	 */
+	private static int insertTrips(Plan plan, List<Trip> trips,
+			List<CompletableFuture<List<? extends PlanElement>>> newTrips, int numberOfInsertedTrips) {
+		for (int i = numberOfInsertedTrips; i < newTrips.size(); i++) {
+			Trip trip = trips.get(i);
+			TripRouter.insertTrip(plan, trip.getOriginActivity(), newTrips.get(i).join(),
+					trip.getDestinationActivity());
+		}
+		return newTrips.size();
+	}
+
+	private Facility toFacility(Activity activity) {
+		if ((activity.getLinkId() == null || activity.getCoord() == null) && facilities != null &&
+				!facilities.getFacilities().isEmpty()) {
+			return facilities.getFacilities().get(activity.getFacilityId());
+		}
+		return new ActivityWrapperFacility(activity);
+	}
+
+	/**
+	 * Same as in matsim's PlanRouter
+	 */
+	private static double calcEndOfActivity(Activity activity, Plan plan) {
+		if (activity.getEndTime() != Time.UNDEFINED_TIME) {
+			return activity.getEndTime();
+		}
+		double now = 0;
+		for (PlanElement pe: plan.getPlanElements()) {
+			now = TripRouter.calcEndOfPlanElement(now, pe);
+			if (pe == activity) {
+				return now;
+			}
+		}
+		throw new RuntimeException("activity " + activity + " not found in " + plan.getPlanElements());
+	}
+}
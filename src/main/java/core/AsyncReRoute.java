@@ -0,0 +1,59 @@
+package core;
+
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.config.groups.GlobalConfigGroup;
+import org.matsim.core.replanning.PlanStrategy;
+import org.matsim.core.replanning.PlanStrategyImpl;
+import org.matsim.core.replanning.modules.AbstractMultithreadedModule;
+import org.matsim.core.replanning.selectors.RandomPlanSelector;
+import org.matsim.core.router.TripRouter;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.population.algorithms.PlanAlgorithm;
+
+import javax.inject.Provider;
+
+/**
+ * Replacement for matsim's ReRoute strategy module which routes the pt trips
+ * of the plans with an AsyncPlanRouter instead of a PlanRouter. Bind the
+ * strategy under STRATEGY_NAME, e.g.
+ * addPlanStrategyBinding(AsyncReRoute.STRATEGY_NAME), and use that name in
+ * the StrategySettings instead of "ReRoute".
+ *
+ * The AsyncOTPRoutingModule is shared by all replanning threads and is not
+ * shut down by this class.
+ */
+public final class AsyncReRoute extends AbstractMultithreadedModule {
+
+	public static final String STRATEGY_NAME = "AsyncReRoute";
+
+	private final Provider<TripRouter> tripRouterProvider;
+	private final ActivityFacilities facilities;
+	private final AsyncOTPRoutingModule asyncRoutingModule;
+
+	public AsyncReRoute(GlobalConfigGroup globalConfigGroup, Provider<TripRouter> tripRouterProvider,
+			ActivityFacilities facilities, AsyncOTPRoutingModule asyncRoutingModule) {
+		super(globalConfigGroup);
+		this.tripRouterProvider = tripRouterProvider;
+		this.facilities = facilities;
+		this.asyncRoutingModule = asyncRoutingModule;
+	}
+
+	@Override
+	public PlanAlgorithm getPlanAlgoForStrategy() {
+		return new AsyncPlanRouter(tripRouterProvider.get(), facilities, asyncRoutingModule);
+	}
+
+	/**
+	 * @return a strategy like matsim's ReRoute: selects a random plan, copies it
+	 * and reroutes the copy with an AsyncReRoute module
+	 */
+	public static PlanStrategy createStrategy(GlobalConfigGroup globalConfigGroup,
+			Provider<TripRouter> tripRouterProvider, ActivityFacilities facilities,
+			AsyncOTPRoutingModule asyncRoutingModule) {
+		PlanStrategyImpl strategy = new PlanStrategyImpl(new RandomPlanSelector<Plan, Person>());
+		strategy.addStrategyModule(new AsyncReRoute(globalConfigGroup, tripRouterProvider, facilities,
+				asyncRoutingModule));
+		return strategy;
+	}
+}
@@ -0,0 +1,82 @@
+package core;
+
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.replanning.PlanStrategy;
+import org.matsim.core.replanning.PlanStrategyImpl;
+import org.matsim.core.replanning.PlanStrategyModule;
+import org.matsim.core.replanning.ReplanningContext;
+import org.matsim.core.replanning.selectors.RandomPlanSelector;
+import org.matsim.core.router.TripRouter;
+import org.matsim.facilities.ActivityFacilities;
+
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replacement for matsim's ReRoute strategy module which collects the plans
+ * of all persons replanned in an iteration and routes their pt trips in one
+ * batch by AsyncPlanRouter.run(List, int, int), so trips from the same
+ * origin in the same departure time window share an otp search (see
+ * OTPRoutingModule.calcRoutes()). Bind the strategy under STRATEGY_NAME, e.g.
+ * addPlanStrategyBinding(BatchReRoute.STRATEGY_NAME), and use that name in
+ * the StrategySettings instead of "ReRoute".
+ *
+ * Trips of other modes are routed by a single TripRouter in
+ * finishReplanning(), so use AsyncReRoute if their routing is expensive.
+ * The AsyncOTPRoutingModule is shared and is not shut down by this class.
+ */
+public final class BatchReRoute implements PlanStrategyModule {
+
+	public static final String STRATEGY_NAME = "BatchReRoute";
+
+	private final Provider<TripRouter> tripRouterProvider;
+	private final ActivityFacilities facilities;
+	private final AsyncOTPRoutingModule asyncRoutingModule;
+	private final int batchTimeWindowSeconds;
+	private final int maxTripDurationSeconds;
+	private List<Plan> plans = null;
+
+	/**
+	 * @param batchTimeWindowSeconds : see OTPRoutingModule.calcRoutes()
+	 * @param maxTripDurationSeconds : see OTPRoutingModule.calcRoutes()
+	 */
+	public BatchReRoute(Provider<TripRouter> tripRouterProvider, ActivityFacilities facilities,
+			AsyncOTPRoutingModule asyncRoutingModule, int batchTimeWindowSeconds, int maxTripDurationSeconds) {
+		this.tripRouterProvider = tripRouterProvider;
+		this.facilities = facilities;
+		this.asyncRoutingModule = asyncRoutingModule;
+		this.batchTimeWindowSeconds = batchTimeWindowSeconds;
+		this.maxTripDurationSeconds = maxTripDurationSeconds;
+	}
+
+	@Override
+	public void prepareReplanning(ReplanningContext replanningContext) {
+		plans = new ArrayList<>();
+	}
+
+	@Override
+	public void handlePlan(Plan plan) {
+		plans.add(plan);
+	}
+
+	@Override
+	public void finishReplanning() {
+		new AsyncPlanRouter(tripRouterProvider.get(), facilities, asyncRoutingModule).run(plans,
+				batchTimeWindowSeconds, maxTripDurationSeconds);
+		plans = null;
+	}
+
+	/**
+	 * @return a strategy like matsim's ReRoute: selects a random plan, copies it
+	 * and reroutes the copy with a BatchReRoute module
+	 */
+	public static PlanStrategy createStrategy(Provider<TripRouter> tripRouterProvider, ActivityFacilities facilities,
+			AsyncOTPRoutingModule asyncRoutingModule, int batchTimeWindowSeconds, int maxTripDurationSeconds) {
+		PlanStrategyImpl strategy = new PlanStrategyImpl(new RandomPlanSelector<Plan, Person>());
+		strategy.addStrategyModule(new BatchReRoute(tripRouterProvider, facilities, asyncRoutingModule,
+				batchTimeWindowSeconds, maxTripDurationSeconds));
+		return strategy;
+	}
+}
@@ -0,0 +1,66 @@
+package core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Area of the otp graph to extract, in WGS84 coordinates like the otp
+ * vertices (x = longitude, y = latitude). See ReadGraph.setExtractionArea.
+ */
+public final class ExtractionArea {
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	private final Geometry geometry;
+	// the envelope rejects most points outside before the exact test
+	private final Envelope envelope;
+	private final PreparedGeometry preparedGeometry;
+
+	private ExtractionArea(Geometry geometry) {
+		if (geometry.getDimension() != 2) {
+			throw new IllegalArgumentException("The extraction area has to be a polygon, but is " + geometry.getGeometryType());
+		}
+		this.geometry = geometry;
+		this.envelope = geometry.getEnvelopeInternal();
+		this.preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+	}
+
+	public static ExtractionArea fromBoundingBox(double minLon, double minLat, double maxLon, double maxLat) {
+		if (minLon >= maxLon || minLat >= maxLat) {
+			throw new IllegalArgumentException("Empty bounding box " + minLon + "," + minLat + "," + maxLon + "," + maxLat);
+		}
+		return new ExtractionArea(geometryFactory.toGeometry(new Envelope(minLon, maxLon, minLat, maxLat)));
+	}
+
+	/**
+	 * @param wkt a POLYGON or MULTIPOLYGON, e.g. exported from QGIS
+	 */
+	public static ExtractionArea fromWkt(String wkt) {
+		try {
+			return new ExtractionArea(new WKTReader(geometryFactory).read(wkt));
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Cannot parse the extraction area " + wkt, e);
+		}
+	}
+
+	public boolean contains(double lon, double lat) {
+		if (!envelope.contains(lon, lat)) {
+			return false;
+		}
+		return preparedGeometry.covers(geometryFactory.createPoint(new Coordinate(lon, lat)));
+	}
+
+	/**
+	 * @return the area as WKT, identifies the area in the keys of the ExtractionStageCache
+	 */
+	@Override
+	public String toString() {
+		return geometry.toText();
+	}
+}
@@ -0,0 +1,127 @@
+package core;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Directory of intermediate results of ReadGraph, so extracting the same
+ * otp graph again (e.g. for another date) only reruns the stages whose
+ * parameters changed. The stages and their keys are:
+ * <ul>
+ * <li>STREET_NETWORK: graph fingerprint, target coordinate system and
+ * extraction area</li>
+ * <li>PT_NETWORK (stops and pattern hop links): additionally the pseudo
+ * network flag</li>
+ * <li>SCHEDULE (TransitLines and vehicles): additionally date, time zone,
+ * schedule end time on the following date and vehicle blocking</li>
+ * </ul>
+ * The graph fingerprint is the key of the GraphRegistry (path, length and
+ * last modification of Graph.obj), so a rebuilt graph invalidates all stages.
+ *
+ * A stage file is named after the stage and a hash of its key and contains
+ * the full key, which is compared on load. Stage files are written to a
+ * temporary file first and then moved, so jobs running concurrently on the
+ * same directory never read an incomplete stage.
+ */
+public final class ExtractionStageCache {
+
+	private final static Logger log = Logger.getLogger(ExtractionStageCache.class);
+
+	enum Stage {STREET_NETWORK, PT_NETWORK, SCHEDULE}
+
+	private static final int MAGIC = 0x45535443; // "ESTC"
+	private static final int VERSION = 3;
+
+	interface StageWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	interface StageReader {
+		void read(ScenarioCache.Input in) throws IOException;
+	}
+
+	private final File directory;
+
+	public ExtractionStageCache(File directory) {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create the stage cache directory " + directory);
+		}
+	}
+
+	/**
+	 * @return false if the stage is not in the cache (or the cache file was
+	 * written for another key or version), then nothing was read
+	 */
+	boolean read(Stage stage, String key, StageReader reader) {
+		File file = getFile(stage, key);
+		if (!file.isFile()) {
+			return false;
+		}
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ScenarioCache.Input in = new ScenarioCache.Input(channel);
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readString())) {
+				log.warn("Ignoring the stage cache file " + file + " written for another key or version.");
+				return false;
+			}
+			reader.read(in);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read the stage cache file " + file, e);
+		}
+		log.info("Stage " + stage + " read from " + file + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+		return true;
+	}
+
+	void write(Stage stage, String key, StageWriter writer) {
+		File file = getFile(stage, key);
+		try {
+			File tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					ScenarioCache.writeString(out, key);
+					writer.write(out);
+				}
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmpFile.delete();
+			}
+		} catch (IOException e) {
+			// the extraction itself succeeded, so only the next extraction is slower
+			log.warn("Cannot write the stage cache file " + file, e);
+			return;
+		}
+		log.info("Stage " + stage + " written to " + file);
+	}
+
+	private File getFile(Stage stage, String key) {
+		return new File(directory, stage.name().toLowerCase() + "-" + hash(key) + ".bin");
+	}
+
+	private static String hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
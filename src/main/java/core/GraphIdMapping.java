@@ -0,0 +1,187 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Mapping of otp vertex indices to matsim node ids and of otp edge ids to
+ * matsim link ids of the street network extracted by ReadGraph. The mapping
+ * is stored in arrays indexed by vertex index and edge id, so translating an
+ * otp vertex or edge does not create any string or Id.
+ *
+ * ReadGraph builds the mapping during the extraction. It can be written next
+ * to the matsim network and read again when routing on the same graph, e.g.
+ * by GraphLookupTables, in order to translate the back edges of otp paths
+ * into exactly the links of the extracted network.
+ *
+ * The file records the GraphRegistry key (canonical path and fingerprint of
+ * Graph.obj) of the graph it was extracted from. The vertex indices and edge
+ * ids are only valid for that graph, so OTPTripRouterFactory rejects a
+ * mapping of another graph.
+ *
+ * File layout (big endian): magic, version, the graph key, then the number of
+ * nodes followed by pairs of vertex index and node id and the number of links
+ * followed by pairs of edge id and link id.
+ */
+public final class GraphIdMapping {
+
+	private final static Logger log = Logger.getLogger(GraphIdMapping.class);
+
+	/**
+	 * Name of the mapping file written by ExtractNetwork into the directory
+	 * of the network file.
+	 */
+	public static final String FILE_NAME = "otp_id_mapping.bin";
+
+	private static final int MAGIC = 0x4f49444d; // "OIDM"
+	private static final int VERSION = 2;
+
+	private Id<Node>[] nodeIdByVertexIndex;
+	private Id<Link>[] linkIdByEdgeId;
+	private int numberOfNodes = 0;
+	private int numberOfLinks = 0;
+	// GraphRegistry key of the graph, null if unknown
+	private String graphKey = null;
+
+	@SuppressWarnings("unchecked")
+	GraphIdMapping(int vertexIndexCapacity, int edgeIdCapacity) {
+		nodeIdByVertexIndex = new Id[Math.max(vertexIndexCapacity, 16)];
+		linkIdByEdgeId = new Id[Math.max(edgeIdCapacity, 16)];
+	}
+
+	void putNodeId(int vertexIndex, Id<Node> nodeId) {
+		if (vertexIndex >= nodeIdByVertexIndex.length) {
+			nodeIdByVertexIndex = Arrays.copyOf(nodeIdByVertexIndex, Math.max(vertexIndex + 1, 2 * nodeIdByVertexIndex.length));
+		}
+		if (nodeIdByVertexIndex[vertexIndex] == null) {
+			numberOfNodes++;
+		}
+		nodeIdByVertexIndex[vertexIndex] = nodeId;
+	}
+
+	void putLinkId(int edgeId, Id<Link> linkId) {
+		if (edgeId >= linkIdByEdgeId.length) {
+			linkIdByEdgeId = Arrays.copyOf(linkIdByEdgeId, Math.max(edgeId + 1, 2 * linkIdByEdgeId.length));
+		}
+		if (linkIdByEdgeId[edgeId] == null) {
+			numberOfLinks++;
+		}
+		linkIdByEdgeId[edgeId] = linkId;
+	}
+
+	/**
+	 * @return the id of the matsim node extracted from the otp vertex or null
+	 */
+	public Id<Node> getNodeId(int vertexIndex) {
+		if (vertexIndex >= 0 && vertexIndex < nodeIdByVertexIndex.length) {
+			return nodeIdByVertexIndex[vertexIndex];
+		}
+		return null;
+	}
+
+	/**
+	 * @return the id of the matsim link extracted from the otp edge or null
+	 */
+	public Id<Link> getLinkId(int edgeId) {
+		if (edgeId >= 0 && edgeId < linkIdByEdgeId.length) {
+			return linkIdByEdgeId[edgeId];
+		}
+		return null;
+	}
+
+	/**
+	 * @return the GraphRegistry key of the graph the mapping was extracted
+	 * from, null if the graph was not acquired from the GraphRegistry
+	 */
+	public String getGraphKey() {
+		return graphKey;
+	}
+
+	public int getNumberOfNodes() {
+		return numberOfNodes;
+	}
+
+	public int getNumberOfLinks() {
+		return numberOfLinks;
+	}
+
+	/**
+	 * @param graphKey : GraphRegistry key of the graph the mapping was extracted from, null if unknown
+	 */
+	public void write(File file, String graphKey) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(graphKey == null ? "" : graphKey);
+			out.writeInt(numberOfNodes);
+			for (int i = 0; i < nodeIdByVertexIndex.length; i++) {
+				if (nodeIdByVertexIndex[i] != null) {
+					out.writeInt(i);
+					out.writeUTF(nodeIdByVertexIndex[i].toString());
+				}
+			}
+			out.writeInt(numberOfLinks);
+			for (int i = 0; i < linkIdByEdgeId.length; i++) {
+				if (linkIdByEdgeId[i] != null) {
+					out.writeInt(i);
+					out.writeUTF(linkIdByEdgeId[i].toString());
+				}
+			}
+		}
+		log.info("Mapping of " + numberOfNodes + " otp vertices and " + numberOfLinks + " otp edges written to " + file);
+	}
+
+	public static GraphIdMapping read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is no otp id mapping file.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported version " + version + " of the otp id mapping file " + file);
+			}
+			String graphKey = in.readUTF();
+			int nNodes = in.readInt();
+			int[] vertexIndices = new int[nNodes];
+			String[] nodeIds = new String[nNodes];
+			int maxVertexIndex = -1;
+			for (int i = 0; i < nNodes; i++) {
+				vertexIndices[i] = in.readInt();
+				nodeIds[i] = in.readUTF();
+				maxVertexIndex = Math.max(maxVertexIndex, vertexIndices[i]);
+			}
+			int nLinks = in.readInt();
+			int[] edgeIds = new int[nLinks];
+			String[] linkIds = new String[nLinks];
+			int maxEdgeId = -1;
+			for (int i = 0; i < nLinks; i++) {
+				edgeIds[i] = in.readInt();
+				linkIds[i] = in.readUTF();
+				maxEdgeId = Math.max(maxEdgeId, edgeIds[i]);
+			}
+
+			GraphIdMapping mapping = new GraphIdMapping(maxVertexIndex + 1, maxEdgeId + 1);
+			mapping.graphKey = graphKey.isEmpty() ? null : graphKey;
+			for (int i = 0; i < nNodes; i++) {
+				mapping.putNodeId(vertexIndices[i], Id.create(nodeIds[i], Node.class));
+			}
+			for (int i = 0; i < nLinks; i++) {
+				mapping.putLinkId(edgeIds[i], Id.create(linkIds[i], Link.class));
+			}
+			log.info("Mapping of " + nNodes + " otp vertices and " + nLinks + " otp edges read from " + file);
+			return mapping;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.TransitVertex;
+
+/**
+ * Arrays indexed by otp edge id and otp vertex index which translate otp
+ * street edges into matsim link ids and otp transit vertices into matsim
+ * TransitStopFacilities. They replace the Id.create() calls and string based
+ * map lookups for every state of an otp path in
+ * OTPRoutingModule.convertPathToLegs().
+ *
+ * The tables are built once per graph and TransitSchedule and can be shared
+ * by all OTPRoutingModules. With a GraphIdMapping the link ids are looked up
+ * in the mapping, which is never modified. Without a GraphIdMapping the link
+ * ids are the edge ids (as created by ReadGraph). They are only created when
+ * a path traverses the street edge for the first time and are checked against
+ * the network, so routing transit only does not create an Id per street edge
+ * of the graph.
+ *
+ * Street edges which are not links of the extracted network (e.g. outside of
+ * the ExtractionArea) have no link id, see getLinkId().
+ *
+ * Edges and vertices created by otp for a single routing request (e.g. split
+ * street edges at the origin and destination) are not part of the tables.
+ */
+public final class GraphLookupTables {
+
+	private final static Logger log = Logger.getLogger(GraphLookupTables.class);
+
+	// null if the link ids are created from the edge ids
+	private final GraphIdMapping graphIdMapping;
+	// the following are null with a GraphIdMapping
+	private final Network network;
+	// filled when a street edge is traversed first, Ids are interned, so concurrent writes store the same Id
+	private final Id<Link>[] linkIdByEdgeId;
+	// filled when a street edge which is no link of the network is traversed first
+	private final boolean[] edgeNotInNetwork;
+	private final TransitStopFacility[] stopFacilityByVertexIndex;
+
+	/**
+	 * Translates street edges into the links of the network whose ids are the
+	 * edge ids.
+	 */
+	public GraphLookupTables(Graph graph, TransitSchedule transitSchedule, Network network) {
+		this(graph, transitSchedule, null, network, createEmptyLinkIdByEdgeId(graph));
+	}
+
+	/**
+	 * Translates street edges into the links given by the GraphIdMapping
+	 * written when the network was extracted instead of creating a link id
+	 * for every street edge of the graph.
+	 */
+	public GraphLookupTables(Graph graph, TransitSchedule transitSchedule, GraphIdMapping graphIdMapping) {
+		this(graph, transitSchedule, graphIdMapping, null, null);
+	}
+
+	private GraphLookupTables(Graph graph, TransitSchedule transitSchedule, GraphIdMapping graphIdMapping, 
+			Network network, Id<Link>[] linkIdByEdgeId) {
+		this.graphIdMapping = graphIdMapping;
+		this.network = network;
+		this.linkIdByEdgeId = linkIdByEdgeId;
+		this.edgeNotInNetwork = linkIdByEdgeId == null ? null : new boolean[linkIdByEdgeId.length];
+
+		int maxVertexIndex = -1;
+		for (Vertex v: graph.getVertices()) {
+			if (v instanceof TransitVertex) {
+				maxVertexIndex = Math.max(maxVertexIndex, v.getIndex());
+			}
+		}
+		stopFacilityByVertexIndex = new TransitStopFacility[maxVertexIndex + 1];
+		int nStopVertices = 0;
+		for (Vertex v: graph.getVertices()) {
+			if (v instanceof TransitVertex) {
+				TransitStopFacility stopFacility = transitSchedule.getFacilities().get(
+						Id.create(((TransitVertex) v).getStopId().toString(), TransitStopFacility.class));
+				if (stopFacility != null) {
+					stopFacilityByVertexIndex[v.getIndex()] = stopFacility;
+					nStopVertices++;
+				}
+			}
+		}
+		log.info("Lookup tables for " + (graphIdMapping != null ? graphIdMapping.getNumberOfLinks() + 
+				" mapped" : linkIdByEdgeId.length) + " edge ids and " + nStopVertices + " transit vertices created.");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Id<Link>[] createEmptyLinkIdByEdgeId(Graph graph) {
+		int maxEdgeId = -1;
+		for (Edge e: graph.getEdges()) {
+			if (e instanceof StreetEdge) {
+				maxEdgeId = Math.max(maxEdgeId, e.getId());
+			}
+		}
+		return new Id[maxEdgeId + 1];
+	}
+
+	/**
+	 * @return the link id of the matsim link extracted from the street edge
+	 * or null if the edge is no link of the extracted network
+	 */
+	public Id<Link> getLinkId(Edge streetEdge) {
+		int edgeId = streetEdge.getId();
+		if (graphIdMapping != null) {
+			return graphIdMapping.getLinkId(edgeId);
+		}
+		if (edgeId < 0 || edgeId >= linkIdByEdgeId.length) {
+			// e.g. split edges of a single routing request
+			return null;
+		}
+		Id<Link> linkId = linkIdByEdgeId[edgeId];
+		if (linkId != null || edgeNotInNetwork[edgeId]) {
+			return linkId;
+		}
+		// Id.create() is not safe for concurrent use, see ReadGraph
+		synchronized (Id.class) {
+			linkId = Id.create(edgeId, Link.class);
+		}
+		if (!network.getLinks().containsKey(linkId)) {
+			edgeNotInNetwork[edgeId] = true;
+			return null;
+		}
+		linkIdByEdgeId[edgeId] = linkId;
+		return linkId;
+	}
+
+	/**
+	 * @return the TransitStopFacility of the otp stop the vertex belongs to
+	 * or null if there is none in the TransitSchedule
+	 */
+	public TransitStopFacility getStopFacility(TransitVertex vertex) {
+		int index = vertex.getIndex();
+		if (index >= 0 && index < stopFacilityByVertexIndex.length) {
+			return stopFacilityByVertexIndex[index];
+		}
+		return null;
+	}
+}
@@ -0,0 +1,180 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.InputStreamGraphSource;
+import org.opentripplanner.routing.services.GraphService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Process-wide registry of loaded otp graphs. ExtractNetwork, the
+ * OTPTripRouterFactory and the graph visualizer share a single GraphService
+ * per otp graph instead of deserializing the same Graph.obj again.
+ *
+ * Graphs are identified by the canonical path of the otp graph directory and
+ * a fingerprint of the Graph.obj file (its length and last modification time;
+ * a checksum would require reading the whole multi-GB file), so a graph
+ * rebuilt in the meantime is loaded again. Each acquire() has to be matched by
+ * a release(), the graph is dropped from the registry when it is no longer
+ * referenced. A caller who wants several components to share the graph (e.g.
+ * network extraction followed by the simulation) holds a reference while they
+ * run.
+ */
+public final class GraphRegistry {
+
+	private final static Logger log = Logger.getLogger(GraphRegistry.class);
+
+	private static final String GRAPH_FILE_NAME = "Graph.obj";
+
+	// both guarded by the GraphRegistry class, entries are added to entriesByKey before their graph is loaded
+	private static final Map<String, Entry> entriesByKey = new HashMap<>();
+	private static final Map<GraphService, Entry> entriesByGraphService = new IdentityHashMap<>();
+
+	private GraphRegistry() {
+	}
+
+	/**
+	 * Returns the GraphService of the otp graph, loading the graph if it is not
+	 * loaded yet, and increments its reference count. If another thread is
+	 * loading the same graph, waits until it is loaded.
+	 *
+	 * @param graphDir : directory containing Graph.obj (or the Graph.obj file itself)
+	 */
+	public static GraphService acquire(String graphDir) {
+		return acquire(graphDir, false).join();
+	}
+
+	/**
+	 * Same as acquire(), but loads the graph on a background thread, so the
+	 * caller can prepare the rest of the scenario in the meantime.
+	 */
+	public static CompletableFuture<GraphService> acquireAsync(String graphDir) {
+		return acquire(graphDir, true);
+	}
+
+	/**
+	 * Only the registry is updated under the lock, the graph is loaded outside
+	 * of it, so loading a graph does not block the acquisition or release of
+	 * other graphs.
+	 */
+	private static CompletableFuture<GraphService> acquire(final String graphDir, boolean inBackground) {
+		String key = createKey(graphDir);
+		final Entry entry;
+		boolean load = false;
+		synchronized (GraphRegistry.class) {
+			Entry existing = entriesByKey.get(key);
+			if (existing == null) {
+				entry = new Entry(key);
+				entriesByKey.put(key, entry);
+				load = true;
+			} else {
+				entry = existing;
+				log.info("Sharing otp graph " + key + (entry.graphService.isDone() ? " already loaded." : " being loaded."));
+			}
+			entry.references++;
+		}
+		if (load) {
+			if (inBackground) {
+				Thread loader = new Thread(() -> load(entry, graphDir), "otp-graph-loader");
+				loader.setDaemon(true);
+				loader.start();
+				log.info("Loading otp graph from " + graphDir + " in the background.");
+			} else {
+				load(entry, graphDir);
+			}
+		}
+		return entry.graphService;
+	}
+
+	/**
+	 * Decrements the reference count of the GraphService and drops it from the
+	 * registry if it is no longer referenced.
+	 */
+	public static synchronized void release(GraphService graphService) {
+		Entry entry = entriesByGraphService.get(graphService);
+		if (entry == null) {
+			throw new IllegalArgumentException("The GraphService was not acquired from the GraphRegistry.");
+		}
+		entry.references--;
+		if (entry.references == 0) {
+			entriesByKey.remove(entry.key);
+			entriesByGraphService.remove(graphService);
+			log.info("Otp graph " + entry.key + " released.");
+		}
+	}
+
+	/**
+	 * @return the key (canonical path and fingerprint of Graph.obj) of a
+	 * GraphService acquired from the registry, null if it was not
+	 */
+	public static synchronized String getKey(GraphService graphService) {
+		Entry entry = entriesByGraphService.get(graphService);
+		return entry == null ? null : entry.key;
+	}
+
+	/**
+	 * Loads the graph of the entry and completes its GraphService. An entry
+	 * whose graph cannot be loaded is dropped from the registry, so the next
+	 * acquire() tries again.
+	 */
+	private static void load(Entry entry, String graphDir) {
+		try {
+			GraphService graphService = load(graphDir);
+			synchronized (GraphRegistry.class) {
+				entriesByGraphService.put(graphService, entry);
+			}
+			entry.graphService.complete(graphService);
+		} catch (Throwable t) {
+			synchronized (GraphRegistry.class) {
+				entriesByKey.remove(entry.key);
+			}
+			entry.graphService.completeExceptionally(t);
+		}
+	}
+
+	private static GraphService load(String graphDir) {
+		File dir = new File(graphDir);
+		if (dir.isFile()) {
+			dir = dir.getParentFile();
+		}
+		log.info("Loading otp graph from " + dir + " ...");
+		long start = System.nanoTime();
+		GraphService graphService = new GraphService();
+		graphService.registerGraph("", InputStreamGraphSource.newFileGraphSource("", dir, Graph.LoadLevel.FULL));
+		Graph graph = graphService.getRouter().graph;
+		log.info("Otp graph with " + graph.countVertices() + " vertices and " + graph.countEdges() +
+				" edges loaded in " + (System.nanoTime() - start) / 1000000 + " ms.");
+		return graphService;
+	}
+
+	private static String createKey(String graphDir) {
+		File graphFile = new File(graphDir);
+		if (!graphFile.isFile()) {
+			graphFile = new File(graphFile, GRAPH_FILE_NAME);
+		}
+		try {
+			return graphFile.getCanonicalPath() + "@" + graphFile.length() + "@" + graphFile.lastModified();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static final class Entry {
+		private final String key;
+		// completed when the graph is loaded
+		private final CompletableFuture<GraphService> graphService = new CompletableFuture<>();
+		// guarded by the GraphRegistry class
+		private int references = 0;
+
+		Entry(String key) {
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,713 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.calendar.CalendarService;
+import org.opentripplanner.routing.edgetype.PatternHop;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.trippattern.TripTimes;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.TransitStop;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact columnar export of an otp graph: vertices, street edges, trip
+ * patterns with their trip times and the service calendar. The snapshot is
+ * written once per graph and loaded through memory-mapped buffers, which is
+ * much faster than deserializing Graph.obj (see GraphSnapshotBenchmark).
+ * Numeric columns are not copied on load, they are read directly from the
+ * mapped file.
+ *
+ * File layout (big endian): magic, version, the GraphRegistry key of the
+ * graph (length and UTF-8 bytes, empty if unknown), then the sections strings,
+ * vertices, street edges, patterns, trips and calendar. Each section starts
+ * with its length in bytes and consists of columns. Each column starts with
+ * its number of values. Ids and names are stored as indices into the string
+ * table.
+ *
+ * The snapshot is an export format only, nothing in this project reads it
+ * except GraphSnapshotBenchmark: ReadGraph, GraphLookupTables and the otp
+ * routing still require the Graph loaded by GraphRegistry. It does not hold
+ * everything ReadGraph converts (e.g. the GTFS block ids of the trips), so it
+ * cannot replace the Graph as input of ReadGraph without extending the
+ * format. load() rejects a snapshot written from another graph (or another
+ * version of Graph.obj), see readGraphKey() for checking whether a snapshot
+ * is stale.
+ */
+public final class GraphSnapshot {
+
+	private final static Logger log = Logger.getLogger(GraphSnapshot.class);
+
+	private static final long MAGIC = 0x4f54504d534e4150L; // "OTPMSNAP"
+	// version 2 added the graph key
+	private static final int VERSION = 2;
+
+	public static final byte VERTEX_INTERSECTION = 0;
+	public static final byte VERTEX_TRANSIT_STOP = 1;
+	public static final byte VERTEX_OTHER = 2;
+
+	// GraphRegistry key of the graph the snapshot was written from, null if unknown
+	private final String graphKey;
+
+	private final String[] strings;
+
+	private final IntBuffer vertexIndex;
+	private final DoubleBuffer vertexX;
+	private final DoubleBuffer vertexY;
+	private final ByteBuffer vertexKind;
+	// string index of the stop id or -1 if the vertex is no transit stop
+	private final IntBuffer vertexStopId;
+
+	private final IntBuffer streetEdgeId;
+	private final IntBuffer streetEdgeFromVertex;
+	private final IntBuffer streetEdgeToVertex;
+	private final FloatBuffer streetEdgeCarSpeed;
+	private final DoubleBuffer streetEdgeLength;
+
+	private final IntBuffer patternCode;
+	private final IntBuffer patternName;
+	private final IntBuffer patternRouteId;
+	private final IntBuffer patternRouteShortName;
+	private final IntBuffer patternRouteLongName;
+	private final IntBuffer patternMode;
+	// stops of pattern p: stopOffset[p] until stopOffset[p + 1], hops of pattern p start at stopOffset[p] - p
+	private final IntBuffer patternStopOffset;
+	private final IntBuffer patternStopId;
+	private final IntBuffer patternHopEdgeId;
+	private final DoubleBuffer patternHopDistance;
+	// trips of pattern p: tripOffset[p] until tripOffset[p + 1]
+	private final IntBuffer patternTripOffset;
+
+	private final IntBuffer tripId;
+	private final IntBuffer tripServiceId;
+	// times of trip t: timeOffset[t] until timeOffset[t + 1]
+	private final IntBuffer tripTimeOffset;
+	private final IntBuffer tripArrivalTime;
+	private final IntBuffer tripDepartureTime;
+
+	private final IntBuffer serviceId;
+	// sorted dates (yyyymmdd) of service s: dateOffset[s] until dateOffset[s + 1]
+	private final IntBuffer serviceDateOffset;
+	private final IntBuffer serviceDate;
+
+	private GraphSnapshot(String graphKey, String[] strings, ByteBuffer vertices, ByteBuffer streetEdges, 
+			ByteBuffer patterns, ByteBuffer trips, ByteBuffer calendar) {
+		this.graphKey = graphKey;
+		this.strings = strings;
+		vertexIndex = intColumn(vertices);
+		vertexX = doubleColumn(vertices);
+		vertexY = doubleColumn(vertices);
+		vertexKind = byteColumn(vertices);
+		vertexStopId = intColumn(vertices);
+		streetEdgeId = intColumn(streetEdges);
+		streetEdgeFromVertex = intColumn(streetEdges);
+		streetEdgeToVertex = intColumn(streetEdges);
+		streetEdgeCarSpeed = floatColumn(streetEdges);
+		streetEdgeLength = doubleColumn(streetEdges);
+		patternCode = intColumn(patterns);
+		patternName = intColumn(patterns);
+		patternRouteId = intColumn(patterns);
+		patternRouteShortName = intColumn(patterns);
+		patternRouteLongName = intColumn(patterns);
+		patternMode = intColumn(patterns);
+		patternStopOffset = intColumn(patterns);
+		patternStopId = intColumn(patterns);
+		patternHopEdgeId = intColumn(patterns);
+		patternHopDistance = doubleColumn(patterns);
+		patternTripOffset = intColumn(patterns);
+		tripId = intColumn(trips);
+		tripServiceId = intColumn(trips);
+		tripTimeOffset = intColumn(trips);
+		tripArrivalTime = intColumn(trips);
+		tripDepartureTime = intColumn(trips);
+		serviceId = intColumn(calendar);
+		serviceDateOffset = intColumn(calendar);
+		serviceDate = intColumn(calendar);
+	}
+
+	/**
+	 * @return the GraphRegistry key of the graph the snapshot was written from, null if unknown
+	 */
+	public String getGraphKey() {
+		return graphKey;
+	}
+
+	/* Vertices */
+
+	public int getNumberOfVertices() {
+		return vertexIndex.limit();
+	}
+
+	public int getVertexIndex(int vertex) {
+		return vertexIndex.get(vertex);
+	}
+
+	public double getVertexX(int vertex) {
+		return vertexX.get(vertex);
+	}
+
+	public double getVertexY(int vertex) {
+		return vertexY.get(vertex);
+	}
+
+	/**
+	 * @return VERTEX_INTERSECTION, VERTEX_TRANSIT_STOP or VERTEX_OTHER
+	 */
+	public byte getVertexKind(int vertex) {
+		return vertexKind.get(vertex);
+	}
+
+	/**
+	 * @return the otp stop id or null if the vertex is no transit stop
+	 */
+	public String getVertexStopId(int vertex) {
+		return string(vertexStopId.get(vertex));
+	}
+
+	/* Street edges */
+
+	public int getNumberOfStreetEdges() {
+		return streetEdgeId.limit();
+	}
+
+	public int getStreetEdgeId(int edge) {
+		return streetEdgeId.get(edge);
+	}
+
+	/**
+	 * @return the otp vertex index of the from vertex
+	 */
+	public int getStreetEdgeFromVertex(int edge) {
+		return streetEdgeFromVertex.get(edge);
+	}
+
+	/**
+	 * @return the otp vertex index of the to vertex
+	 */
+	public int getStreetEdgeToVertex(int edge) {
+		return streetEdgeToVertex.get(edge);
+	}
+
+	public float getStreetEdgeCarSpeed(int edge) {
+		return streetEdgeCarSpeed.get(edge);
+	}
+
+	public double getStreetEdgeLength(int edge) {
+		return streetEdgeLength.get(edge);
+	}
+
+	/* Trip patterns */
+
+	public int getNumberOfPatterns() {
+		return patternCode.limit();
+	}
+
+	public String getPatternCode(int pattern) {
+		return string(patternCode.get(pattern));
+	}
+
+	public String getPatternName(int pattern) {
+		return string(patternName.get(pattern));
+	}
+
+	public String getPatternRouteId(int pattern) {
+		return string(patternRouteId.get(pattern));
+	}
+
+	public String getPatternRouteShortName(int pattern) {
+		return string(patternRouteShortName.get(pattern));
+	}
+
+	public String getPatternRouteLongName(int pattern) {
+		return string(patternRouteLongName.get(pattern));
+	}
+
+	/**
+	 * @return the name of the otp TraverseMode
+	 */
+	public String getPatternMode(int pattern) {
+		return string(patternMode.get(pattern));
+	}
+
+	public int getNumberOfPatternStops(int pattern) {
+		return patternStopOffset.get(pattern + 1) - patternStopOffset.get(pattern);
+	}
+
+	public String getPatternStopId(int pattern, int stop) {
+		return string(patternStopId.get(patternStopOffset.get(pattern) + stop));
+	}
+
+	/**
+	 * @return the otp edge id of the PatternHop from stop hop to stop hop + 1
+	 */
+	public int getPatternHopEdgeId(int pattern, int hop) {
+		return patternHopEdgeId.get(patternStopOffset.get(pattern) - pattern + hop);
+	}
+
+	public double getPatternHopDistance(int pattern, int hop) {
+		return patternHopDistance.get(patternStopOffset.get(pattern) - pattern + hop);
+	}
+
+	/**
+	 * @return the first trip of the pattern, trips are numbered consecutively over all patterns
+	 */
+	public int getFirstPatternTrip(int pattern) {
+		return patternTripOffset.get(pattern);
+	}
+
+	public int getNumberOfPatternTrips(int pattern) {
+		return patternTripOffset.get(pattern + 1) - patternTripOffset.get(pattern);
+	}
+
+	/* Trips */
+
+	public int getNumberOfTrips() {
+		return tripId.limit();
+	}
+
+	public String getTripId(int trip) {
+		return string(tripId.get(trip));
+	}
+
+	public String getTripServiceId(int trip) {
+		return string(tripServiceId.get(trip));
+	}
+
+	/**
+	 * @return the scheduled arrival time in seconds after midnight of the service day
+	 */
+	public int getTripArrivalTime(int trip, int stop) {
+		return tripArrivalTime.get(tripTimeOffset.get(trip) + stop);
+	}
+
+	/**
+	 * @return the scheduled departure time in seconds after midnight of the service day
+	 */
+	public int getTripDepartureTime(int trip, int stop) {
+		return tripDepartureTime.get(tripTimeOffset.get(trip) + stop);
+	}
+
+	/* Calendar */
+
+	/**
+	 * @return the service ids (as used by getTripServiceId()) operating on the date
+	 */
+	public Set<String> getServiceIdsOnDate(ServiceDate date) {
+		int key = toInt(date);
+		Set<String> serviceIds = new HashSet<>();
+		for (int s = 0; s < serviceId.limit(); s++) {
+			int from = serviceDateOffset.get(s);
+			int to = serviceDateOffset.get(s + 1);
+			// dates are sorted
+			int low = from;
+			int high = to - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int value = serviceDate.get(mid);
+				if (value < key) {
+					low = mid + 1;
+				} else if (value > key) {
+					high = mid - 1;
+				} else {
+					serviceIds.add(string(serviceId.get(s)));
+					break;
+				}
+			}
+		}
+		return serviceIds;
+	}
+
+	private String string(int index) {
+		return index < 0 ? null : strings[index];
+	}
+
+	private static int toInt(ServiceDate date) {
+		return date.getYear() * 10000 + date.getMonth() * 100 + date.getDay();
+	}
+
+	/* Reading */
+
+	/**
+	 * Maps the snapshot file into memory.
+	 *
+	 * @param graphKey : GraphRegistry key of the graph the snapshot has to be
+	 * written from (see GraphRegistry.getKey()), null to accept any graph
+	 * @throws IOException also if the snapshot was written from another graph
+	 */
+	public static GraphSnapshot load(File file, String graphKey) throws IOException {
+		long start = System.nanoTime();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			int version = readVersion(channel, file);
+			if (version != VERSION) {
+				throw new IOException("Unsupported graph snapshot version " + version + " in " + file);
+			}
+			String snapshotGraphKey = readGraphKey(channel);
+			if (graphKey != null && !graphKey.equals(snapshotGraphKey)) {
+				throw new IOException("The graph snapshot " + file + " was written from the otp graph " + 
+						snapshotGraphKey + ", not from " + graphKey + ". Write the snapshot again.");
+			}
+			long position = 16 + snapshotGraphKey.getBytes(StandardCharsets.UTF_8).length;
+			ByteBuffer[] sections = new ByteBuffer[6];
+			for (int i = 0; i < sections.length; i++) {
+				ByteBuffer length = ByteBuffer.allocate(8);
+				channel.read(length, position);
+				length.flip();
+				long sectionLength = length.getLong();
+				// the mapping stays valid after the channel is closed
+				MappedByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, position + 8, sectionLength);
+				sections[i] = section;
+				position += 8 + sectionLength;
+			}
+			String[] strings = readStrings(sections[0]);
+			GraphSnapshot snapshot = new GraphSnapshot(snapshotGraphKey.isEmpty() ? null : snapshotGraphKey, strings, 
+					sections[1], sections[2], sections[3], sections[4], sections[5]);
+			log.info("Graph snapshot with " + snapshot.getNumberOfVertices() + " vertices, " +
+					snapshot.getNumberOfStreetEdges() + " street edges, " + snapshot.getNumberOfPatterns() +
+					" patterns and " + snapshot.getNumberOfTrips() + " trips loaded from " + file + " in " +
+					(System.nanoTime() - start) / 1000000 + " ms.");
+			return snapshot;
+		}
+	}
+
+	/**
+	 * @return the GraphRegistry key of the graph the snapshot was written 
+	 * from, null if it is unknown or if the snapshot was written by an older
+	 * version of this class, so it cannot be loaded and has to be written again
+	 * @throws IOException if the file is no graph snapshot
+	 */
+	public static String readGraphKey(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (readVersion(channel, file) != VERSION) {
+				return null;
+			}
+			String graphKey = readGraphKey(channel);
+			return graphKey.isEmpty() ? null : graphKey;
+		}
+	}
+
+	private static int readVersion(FileChannel channel, File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(12);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < 12 || header.getLong() != MAGIC) {
+			throw new IOException(file + " is no graph snapshot.");
+		}
+		return header.getInt();
+	}
+
+	/**
+	 * @return the graph key following the version, empty if unknown
+	 */
+	private static String readGraphKey(FileChannel channel) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		channel.read(length, 12);
+		length.flip();
+		ByteBuffer bytes = ByteBuffer.allocate(length.getInt());
+		channel.read(bytes, 16);
+		return new String(bytes.array(), StandardCharsets.UTF_8);
+	}
+
+	private static String[] readStrings(ByteBuffer section) {
+		int n = section.getInt();
+		String[] strings = new String[n];
+		for (int i = 0; i < n; i++) {
+			byte[] bytes = new byte[section.getInt()];
+			section.get(bytes);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return strings;
+	}
+
+	private static IntBuffer intColumn(ByteBuffer section) {
+		int n = section.getInt();
+		ByteBuffer column = section.slice();
+		column.limit(n * 4);
+		section.position(section.position() + n * 4);
+		return column.asIntBuffer();
+	}
+
+	private static DoubleBuffer doubleColumn(ByteBuffer section) {
+		int n = section.getInt();
+		ByteBuffer column = section.slice();
+		column.limit(n * 8);
+		section.position(section.position() + n * 8);
+		return column.asDoubleBuffer();
+	}
+
+	private static FloatBuffer floatColumn(ByteBuffer section) {
+		int n = section.getInt();
+		ByteBuffer column = section.slice();
+		column.limit(n * 4);
+		section.position(section.position() + n * 4);
+		return column.asFloatBuffer();
+	}
+
+	private static ByteBuffer byteColumn(ByteBuffer section) {
+		int n = section.getInt();
+		ByteBuffer column = section.slice();
+		column.limit(n);
+		section.position(section.position() + n);
+		return column;
+	}
+
+	/* Writing */
+
+	/**
+	 * Writes the snapshot of the otp graph into the file.
+	 *
+	 * @param graphKey : GraphRegistry key of the graph (see GraphRegistry.getKey()), null if unknown
+	 */
+	public static void write(Graph graph, String graphKey, File file) throws IOException {
+		long start = System.nanoTime();
+		StringTable strings = new StringTable();
+
+		List<Vertex> vertices = new ArrayList<>(graph.getVertices());
+		ByteArrayOutputStream verticesSection = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(verticesSection);
+		out.writeInt(vertices.size());
+		for (Vertex v: vertices) {
+			out.writeInt(v.getIndex());
+		}
+		out.writeInt(vertices.size());
+		for (Vertex v: vertices) {
+			out.writeDouble(v.getX());
+		}
+		out.writeInt(vertices.size());
+		for (Vertex v: vertices) {
+			out.writeDouble(v.getY());
+		}
+		out.writeInt(vertices.size());
+		for (Vertex v: vertices) {
+			out.writeByte(v instanceof IntersectionVertex ? VERTEX_INTERSECTION :
+					v instanceof TransitStop ? VERTEX_TRANSIT_STOP : VERTEX_OTHER);
+		}
+		out.writeInt(vertices.size());
+		for (Vertex v: vertices) {
+			out.writeInt(v instanceof TransitStop ? strings.get(((TransitStop) v).getStopId().toString()) : -1);
+		}
+		out.flush();
+
+		List<StreetEdge> streetEdges = new ArrayList<>();
+		Map<TripPattern, Boolean> patternSet = new IdentityHashMap<>();
+		List<TripPattern> patterns = new ArrayList<>();
+		for (Edge e: graph.getEdges()) {
+			if (e instanceof StreetEdge) {
+				streetEdges.add((StreetEdge) e);
+			} else if (e instanceof PatternHop) {
+				TripPattern pattern = ((PatternHop) e).getPattern();
+				if (patternSet.put(pattern, Boolean.TRUE) == null) {
+					patterns.add(pattern);
+				}
+			}
+		}
+		ByteArrayOutputStream streetEdgesSection = new ByteArrayOutputStream();
+		out = new DataOutputStream(streetEdgesSection);
+		out.writeInt(streetEdges.size());
+		for (StreetEdge e: streetEdges) {
+			out.writeInt(e.getId());
+		}
+		out.writeInt(streetEdges.size());
+		for (StreetEdge e: streetEdges) {
+			out.writeInt(e.getFromVertex().getIndex());
+		}
+		out.writeInt(streetEdges.size());
+		for (StreetEdge e: streetEdges) {
+			out.writeInt(e.getToVertex().getIndex());
+		}
+		out.writeInt(streetEdges.size());
+		for (StreetEdge e: streetEdges) {
+			out.writeFloat(e.getCarSpeed());
+		}
+		out.writeInt(streetEdges.size());
+		for (StreetEdge e: streetEdges) {
+			out.writeDouble(e.getDistance());
+		}
+		out.flush();
+
+		ByteArrayOutputStream patternsSection = new ByteArrayOutputStream();
+		out = new DataOutputStream(patternsSection);
+		int[][] patternColumns = new int[6][patterns.size()];
+		int[] stopOffsets = new int[patterns.size() + 1];
+		int[] tripOffsets = new int[patterns.size() + 1];
+		List<TripTimes> trips = new ArrayList<>();
+		for (int p = 0; p < patterns.size(); p++) {
+			TripPattern pattern = patterns.get(p);
+			patternColumns[0][p] = strings.get(pattern.code);
+			patternColumns[1][p] = strings.get(pattern.name);
+			patternColumns[2][p] = strings.get(pattern.route.getId().toString());
+			patternColumns[3][p] = strings.get(pattern.route.getShortName());
+			patternColumns[4][p] = strings.get(pattern.route.getLongName());
+			patternColumns[5][p] = strings.get(pattern.mode.name());
+			stopOffsets[p + 1] = stopOffsets[p] + pattern.getStops().size();
+			trips.addAll(pattern.scheduledTimetable.tripTimes);
+			tripOffsets[p + 1] = trips.size();
+		}
+		for (int[] column: patternColumns) {
+			writeIntColumn(out, column);
+		}
+		writeIntColumn(out, stopOffsets);
+		out.writeInt(stopOffsets[patterns.size()]);
+		for (TripPattern pattern: patterns) {
+			for (int i = 0; i < pattern.getStops().size(); i++) {
+				out.writeInt(strings.get(pattern.getStops().get(i).getId().toString()));
+			}
+		}
+		// one hop less than stops per pattern
+		int numberOfHops = stopOffsets[patterns.size()] - patterns.size();
+		out.writeInt(numberOfHops);
+		for (TripPattern pattern: patterns) {
+			List<PatternHop> hops = pattern.getPatternHops();
+			for (int i = 0; i < pattern.getStops().size() - 1; i++) {
+				out.writeInt(i < hops.size() ? hops.get(i).getId() : -1);
+			}
+		}
+		out.writeInt(numberOfHops);
+		for (TripPattern pattern: patterns) {
+			List<PatternHop> hops = pattern.getPatternHops();
+			for (int i = 0; i < pattern.getStops().size() - 1; i++) {
+				out.writeDouble(i < hops.size() ? hops.get(i).getDistance() : 0);
+			}
+		}
+		writeIntColumn(out, tripOffsets);
+		out.flush();
+
+		ByteArrayOutputStream tripsSection = new ByteArrayOutputStream();
+		out = new DataOutputStream(tripsSection);
+		int[] tripIds = new int[trips.size()];
+		int[] tripServiceIds = new int[trips.size()];
+		int[] timeOffsets = new int[trips.size() + 1];
+		for (int t = 0; t < trips.size(); t++) {
+			TripTimes tripTimes = trips.get(t);
+			tripIds[t] = strings.get(tripTimes.trip.getId().toString());
+			tripServiceIds[t] = strings.get(tripTimes.trip.getServiceId().toString());
+			timeOffsets[t + 1] = timeOffsets[t] + tripTimes.getNumStops();
+		}
+		writeIntColumn(out, tripIds);
+		writeIntColumn(out, tripServiceIds);
+		writeIntColumn(out, timeOffsets);
+		out.writeInt(timeOffsets[trips.size()]);
+		for (TripTimes tripTimes: trips) {
+			for (int i = 0; i < tripTimes.getNumStops(); i++) {
+				out.writeInt(tripTimes.getScheduledArrivalTime(i));
+			}
+		}
+		out.writeInt(timeOffsets[trips.size()]);
+		for (TripTimes tripTimes: trips) {
+			for (int i = 0; i < tripTimes.getNumStops(); i++) {
+				out.writeInt(tripTimes.getScheduledDepartureTime(i));
+			}
+		}
+		out.flush();
+
+		ByteArrayOutputStream calendarSection = new ByteArrayOutputStream();
+		out = new DataOutputStream(calendarSection);
+		CalendarService calendarService = graph.getCalendarService();
+		List<AgencyAndId> serviceIds = new ArrayList<>(calendarService.getServiceIds());
+		int[] serviceIdColumn = new int[serviceIds.size()];
+		int[] dateOffsets = new int[serviceIds.size() + 1];
+		List<int[]> datesPerService = new ArrayList<>();
+		for (int s = 0; s < serviceIds.size(); s++) {
+			serviceIdColumn[s] = strings.get(serviceIds.get(s).toString());
+			Set<ServiceDate> serviceDates = calendarService.getServiceDatesForServiceId(serviceIds.get(s));
+			int[] dates = new int[serviceDates.size()];
+			int i = 0;
+			for (ServiceDate date: serviceDates) {
+				dates[i++] = toInt(date);
+			}
+			Arrays.sort(dates);
+			datesPerService.add(dates);
+			dateOffsets[s + 1] = dateOffsets[s] + dates.length;
+		}
+		writeIntColumn(out, serviceIdColumn);
+		writeIntColumn(out, dateOffsets);
+		out.writeInt(dateOffsets[serviceIds.size()]);
+		for (int[] dates: datesPerService) {
+			for (int date: dates) {
+				out.writeInt(date);
+			}
+		}
+		out.flush();
+
+		ByteArrayOutputStream stringsSection = new ByteArrayOutputStream();
+		out = new DataOutputStream(stringsSection);
+		out.writeInt(strings.values.size());
+		for (String s: strings.values) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.flush();
+
+		try (DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			fileOut.writeLong(MAGIC);
+			fileOut.writeInt(VERSION);
+			byte[] graphKeyBytes = (graphKey == null ? "" : graphKey).getBytes(StandardCharsets.UTF_8);
+			fileOut.writeInt(graphKeyBytes.length);
+			fileOut.write(graphKeyBytes);
+			for (ByteArrayOutputStream section: Arrays.asList(stringsSection, verticesSection, streetEdgesSection,
+					patternsSection, tripsSection, calendarSection)) {
+				fileOut.writeLong(section.size());
+				section.writeTo(fileOut);
+			}
+		}
+		log.info("Graph snapshot with " + vertices.size() + " vertices, " + streetEdges.size() + " street edges, " +
+				patterns.size() + " patterns and " + trips.size() + " trips written to " + file + " in " +
+				(System.nanoTime() - start) / 1000000 + " ms.");
+	}
+
+	private static void writeIntColumn(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int value: values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static final class StringTable {
+		private final Map<String, Integer> indices = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		/**
+		 * @return the index of the string or -1 for null
+		 */
+		int get(String s) {
+			if (s == null) {
+				return -1;
+			}
+			Integer index = indices.get(s);
+			if (index == null) {
+				index = values.size();
+				indices.put(s, index);
+				values.add(s);
+			}
+			return index;
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package core;
+
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.services.GraphService;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares the load time of the otp graph (Graph.LoadLevel.FULL, Java
+ * serialization) with the load time of its GraphSnapshot. The snapshot is
+ * written first if the snapshot file does not exist or was written from
+ * another graph or version of Graph.obj. The snapshot load time
+ * includes reading all columns once, so the pages of the mapped file are
+ * actually read from disk (or the page cache).
+ *
+ * The snapshot only measures the load time of an export format: routing and
+ * network extraction still require the Graph (see GraphSnapshot).
+ *
+ * Arguments: otpGraphDir snapshotFile
+ */
+public class GraphSnapshotBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		String otpGraphDir = args[0];
+		File snapshotFile = new File(args[1]);
+
+		long start = System.nanoTime();
+		GraphService graphService = GraphRegistry.acquire(otpGraphDir);
+		Graph graph = graphService.getRouter().graph;
+		long graphNanos = System.nanoTime() - start;
+		String graphKey = GraphRegistry.getKey(graphService);
+
+		if (!snapshotFile.exists() || !graphKey.equals(GraphSnapshot.readGraphKey(snapshotFile))) {
+			if (snapshotFile.exists()) {
+				System.out.println("Snapshot " + snapshotFile + " is stale, writing it again.");
+			}
+			GraphSnapshot.write(graph, graphKey, snapshotFile);
+		}
+		GraphRegistry.release(graphService);
+		graphService = null;
+		graph = null;
+		System.gc();
+
+		start = System.nanoTime();
+		GraphSnapshot snapshot = GraphSnapshot.load(snapshotFile, graphKey);
+		long loadNanos = System.nanoTime() - start;
+		double checksum = 0;
+		for (int v = 0; v < snapshot.getNumberOfVertices(); v++) {
+			checksum += snapshot.getVertexIndex(v) + snapshot.getVertexX(v) + snapshot.getVertexY(v) + snapshot.getVertexKind(v);
+		}
+		for (int e = 0; e < snapshot.getNumberOfStreetEdges(); e++) {
+			checksum += snapshot.getStreetEdgeId(e) + snapshot.getStreetEdgeFromVertex(e) + snapshot.getStreetEdgeToVertex(e) +
+					snapshot.getStreetEdgeCarSpeed(e) + snapshot.getStreetEdgeLength(e);
+		}
+		for (int p = 0; p < snapshot.getNumberOfPatterns(); p++) {
+			for (int t = snapshot.getFirstPatternTrip(p); t < snapshot.getFirstPatternTrip(p) + snapshot.getNumberOfPatternTrips(p); t++) {
+				for (int s = 0; s < snapshot.getNumberOfPatternStops(p); s++) {
+					checksum += snapshot.getTripArrivalTime(t, s) + snapshot.getTripDepartureTime(t, s);
+				}
+			}
+		}
+		long snapshotNanos = System.nanoTime() - start;
+
+		System.out.printf("Graph.obj (LoadLevel.FULL): %.1f ms, %d bytes%n", graphNanos / 1e6,
+				new File(otpGraphDir, "Graph.obj").length());
+		System.out.printf("Snapshot: mapped in %.1f ms, all columns read in %.1f ms, %d bytes (checksum %.1f)%n",
+				loadNanos / 1e6, snapshotNanos / 1e6, snapshotFile.length(), checksum);
+		System.out.println("The snapshot is an export format only, it cannot be used for routing or network " +
+				"extraction, which still load Graph.obj.");
+	}
+
+}
@@ -0,0 +1,105 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes RoutingTraceRecords as one json object per line. Records are queued
+ * and written by a separate daemon thread, so the routing threads never wait
+ * for file I/O. If the queue is full, records are dropped and counted instead
+ * of blocking the routing threads. If writing fails, the writer thread stops
+ * and the following records are dropped.
+ * 
+ * File names ending with ".gz" are compressed.
+ */
+public final class JsonlRoutingTraceSink implements RoutingTraceSink {
+
+	private final static Logger log = Logger.getLogger(JsonlRoutingTraceSink.class);
+
+	private static final RoutingTraceRecord END_OF_TRACE = new RoutingTraceRecord(null, 0, 0, 0, 0, 0, null, null, 0, 0, 0, 0, false);
+
+	private final BlockingQueue<RoutingTraceRecord> queue;
+	private final Thread writerThread;
+	private final LongAdder droppedRecords = new LongAdder();
+	private volatile boolean closed = false;
+	// set if the writer thread stopped because writing failed
+	private volatile IOException writeFailure = null;
+
+	public JsonlRoutingTraceSink(String fileName, int queueCapacity) {
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		final BufferedWriter writer = IOUtils.getBufferedWriter(fileName);
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeRecords(writer);
+			}
+		}, "otp-routing-trace-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	@Override
+	public void trace(RoutingTraceRecord record) {
+		if (closed || writeFailure != null || !queue.offer(record)) {
+			droppedRecords.increment();
+		}
+	}
+
+	public long getDroppedRecords() {
+		return droppedRecords.sum();
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			// the queue is not emptied any more if the writer thread stopped
+			while (writerThread.isAlive() && !queue.offer(END_OF_TRACE, 1, TimeUnit.SECONDS)) {
+			}
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (writeFailure != null) {
+			log.error("Writing the routing trace failed, the trace is incomplete.", writeFailure);
+		}
+		if (droppedRecords.sum() > 0) {
+			log.warn(droppedRecords.sum() + " routing trace records were dropped because the trace queue was full.");
+		}
+	}
+
+	private void writeRecords(BufferedWriter writer) {
+		try {
+			while (true) {
+				RoutingTraceRecord record = queue.poll(1, TimeUnit.SECONDS);
+				if (record == null) {
+					// nothing to do, make the records written so far readable
+					writer.flush();
+					continue;
+				}
+				if (record == END_OF_TRACE) {
+					break;
+				}
+				writer.write(record.toJson());
+				writer.newLine();
+			}
+			writer.close();
+		} catch (IOException e) {
+			writeFailure = e;
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -18,8 +18,8 @@ import org.matsim.core.utils.geometry.CoordinateTransformation;
 import org.matsim.facilities.Facility;
 import org.matsim.pt.PtConstants;
 import org.matsim.pt.routes.ExperimentalTransitRoute;
-import org.matsim.pt.transitSchedule.TransitScheduleFactoryImpl;
 import org.matsim.pt.transitSchedule.api.*;
+import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.algorithm.AStar;
@@ -28,6 +28,8 @@ import org.opentripplanner.routing.edgetype.OnboardEdge;
 import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.TransitBoardAlight;
 import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.ShortestPathTree;
@@ -36,6 +38,8 @@ import org.opentripplanner.routing.vertextype.TransitVertex;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.log4j.Logger;
 
 /**
@@ -46,6 +50,11 @@ import org.apache.log4j.Logger;
  * departures with different ids independent from the original departure 24 hours before or after whereas the otp trip id is identical for all days on which the trip is operated.)
  * -consider schedule export for multiple days. Especially in rural areas otp sometimes returns pt journeys which arrive several days after the departure time.
  * 
+ * The OTPRoutingModule is thread-safe: its configuration and lookup tables are
+ * immutable after construction and statistics are counted by LongAdders, so
+ * OTPTripRouterFactory creates a single instance shared by all TripRouters
+ * (e.g. of all ParallelPersonAlgorithmRunner and replanning threads).
+ * 
  * @author gleich
  *
  */
@@ -63,37 +72,90 @@ public class OTPRoutingModule implements RoutingModule {
     // because the trip recommended by otp is not included in the Matsim transitschedule
     public static final String TELEPORT_MISSING_MATSIM_DEPARTURE = "teleport_missing_matsim_departure";
 
+    // Mode used for trips replaced "by hand"
+    // because the otp search exceeded the SearchBudget (see SearchBudget.Fallback.TELEPORT_BEELINE)
+    public static final String TELEPORT_SEARCH_BUDGET_EXCEEDED = "teleport_search_budget_exceeded";
+
     // Trips on pt lines according to the TransitSchedule.
     public static final String PT = "pt";
 
     // Line switches by OTP.
     public static final String TRANSIT_WALK = "walk";
     
-    private static Map<TraverseMode, String> otp2MatsimModes = new HashMap<TraverseMode, String>();
-    
-    private final TimeZone timeZone;
+    private static final Map<TraverseMode, String> otp2MatsimModes;
+    static {
+    	Map<TraverseMode, String> modes = new EnumMap<TraverseMode, String>(TraverseMode.class);
+    	modes.put(TraverseMode.WALK, "walk");
+    	modes.put(TraverseMode.BICYCLE, "bike");
+    	otp2MatsimModes = Collections.unmodifiableMap(modes);
+    }
 
-    
+    private static final StageActivityTypes STAGE_ACTIVITY_TYPES = 
+    		new StageActivityTypesImpl( Arrays.asList( PtConstants.TRANSIT_ACTIVITY_TYPE ) );
 
-    private int nonefound = 0;
+    private final LongAdder noRouteFound = new LongAdder();
 
-	private int npersons = 0;
+	private final LongAdder routingRequests = new LongAdder();
 
-	private TransitScheduleFactory tsf = new TransitScheduleFactoryImpl();
+	private final LongAdder wallClockCutoffs = new LongAdder();
 
-	private GraphService pathservice;
+	private final LongAdder exploredStatesCutoffs = new LongAdder();
 
-	private TransitSchedule transitSchedule;
-	
-	private Network matsimNetwork;
+	private final LongAdder tripDurationCutoffs = new LongAdder();
+
+	private final LongAdder searchBudgetFallbacks = new LongAdder();
+
+	private final LongAdder cacheHits = new LongAdder();
 
-	private CoordinateTransformation transitScheduleToPathServiceCt;
+	private final LongAdder pathsLeavingScenario = new LongAdder();
 
-	private Date day;
+	private final LongAdder requestsOutsideExtractionArea = new LongAdder();
+
+	private final GraphService pathservice;
+
+	private final TransitSchedule transitSchedule;
+
+	private final TripDepartureIndex tripDepartureIndex;
+
+	private final GraphLookupTables graphLookupTables;
+
+	// null if useCreatePseudoNetworkInsteadOfOtpPtNetwork is false
+	private final PseudoNetworkStopTable pseudoNetworkStopTable;
+
+	private final ThreadLocal<List<Id<Link>>> linksTraversedBuffer = new ThreadLocal<List<Id<Link>>>() {
+		@Override
+		protected List<Id<Link>> initialValue() {
+			return new ArrayList<Id<Link>>();
+		}
+	};
+
+	// null if routing results shall not be cached, otherwise stores all itinerary alternatives per routing request
+	private final RouteCache routeCache;
+
+	// null if routing requests shall not be traced
+	private final RoutingTracer routingTracer;
+
+	// null if the otp search shall not be limited
+	private final SearchBudget searchBudget;
+
+	// Transformed facility coordinates, snapped to street vertices only if the RouteCache, calcRoutes() or 
+	// snapToStreetVertices need the vertex
+	private final SnappedLocationCache snappedLocations;
+
+	// Route from and to the nearest street vertices instead of letting otp link the coordinates
+	private final boolean snapToStreetVertices;
+
+	// null if the scenario was extracted from the whole graph
+	private final ExtractionArea extractionArea;
+	
+	private final Network matsimNetwork;
+
+	// Start of the simulated date in the time zone of the simulation, in seconds since the epoch
+	private final long dayStartSeconds;
 	
-	private boolean chooseRandomlyAnOtpParameterProfile;
+	private final boolean chooseRandomlyAnOtpParameterProfile;
 
-	private int numOfAlternativeItinerariesToChooseFromRandomly;
+	private final int numOfAlternativeItinerariesToChooseFromRandomly;
 	
     private final boolean useCreatePseudoNetworkInsteadOfOtpPtNetwork;
 	private final static Logger log = Logger.getLogger(OTPRoutingModule.class);
@@ -109,7 +171,9 @@ public class OTPRoutingModule implements RoutingModule {
 	 * @param chooseRandomlyAnOtpParameterProfile : In order to return different itineraries, let 
 	 * otp calculate an itinerary for a specific otp parameter setting which is chosen by random from the OtpParameterProfile enum
 	 * @param numOfAlternativeItinerariesToChooseFromRandomly : In order to return different itineraries, 
-	 * let otp calculate multiple alternatives for the same parameter settings and choose one of them randomly
+	 * let otp calculate multiple alternatives for the same parameter settings and choose one of them randomly.
+	 * Has to be at least 1.
+	 * If a RouteCache is used, all alternatives are calculated once and later routing requests choose from the cached alternatives.
 	 * @param useCreatePseudoNetworkInsteadOfOtpPtNetwork
 	 */
 	public OTPRoutingModule(GraphService pathservice, TransitSchedule transitSchedule,
@@ -117,29 +181,77 @@ public class OTPRoutingModule implements RoutingModule {
 			CoordinateTransformation ct, boolean chooseRandomlyAnOtpParameterProfile, 
 			int numOfAlternativeItinerariesToChooseFromRandomly, 
 			boolean useCreatePseudoNetworkInsteadOfOtpPtNetwork) {
+		this(pathservice, transitSchedule, new TripDepartureIndex(transitSchedule), 
+				new GraphLookupTables(pathservice.getRouter().graph, transitSchedule, matsimNetwork), 
+				useCreatePseudoNetworkInsteadOfOtpPtNetwork ? new PseudoNetworkStopTable(transitSchedule) : null, 
+				matsimNetwork, dateString, 
+				timeZoneString, ct, chooseRandomlyAnOtpParameterProfile, 
+				numOfAlternativeItinerariesToChooseFromRandomly, useCreatePseudoNetworkInsteadOfOtpPtNetwork, null, null, null, 
+				false, null);
+	}
+
+	/**
+	 * @param tripDepartureIndex : built from the transitSchedule, can be shared by several OTPRoutingModules
+	 * @param graphLookupTables : built from the graph and the transitSchedule, can be shared by several OTPRoutingModules
+	 * @param pseudoNetworkStopTable : built from the transitSchedule, can be shared by several OTPRoutingModules, 
+	 * required if useCreatePseudoNetworkInsteadOfOtpPtNetwork is true
+	 * @param routeCache : cache of routing results shared by several OTPRoutingModules or null for no caching
+	 * @param routingTracer : decides which routing requests are traced or null for no tracing
+	 * @param searchBudget : limits the otp search of calcRoute() or null for no limit
+	 * @param snapToStreetVertices : if true, calcRoute() routes from and to the street vertices nearest to
+	 * the facilities, otherwise otp links the facility coordinates into the street graph for every request
+	 * (slower, but the access and egress legs start and end on the nearest edge instead of the nearest vertex)
+	 * @param extractionArea : the area the network and the transitSchedule were extracted from (see 
+	 * ReadGraph.setExtractionArea()) or null, routing requests from or to facilities outside the area are 
+	 * teleported without an otp search
+	 */
+	public OTPRoutingModule(GraphService pathservice, TransitSchedule transitSchedule,
+			TripDepartureIndex tripDepartureIndex, GraphLookupTables graphLookupTables, 
+			PseudoNetworkStopTable pseudoNetworkStopTable, Network matsimNetwork, String dateString, 
+			String timeZoneString, CoordinateTransformation ct, boolean chooseRandomlyAnOtpParameterProfile, 
+			int numOfAlternativeItinerariesToChooseFromRandomly, 
+			boolean useCreatePseudoNetworkInsteadOfOtpPtNetwork, RouteCache routeCache, RoutingTracer routingTracer, 
+			SearchBudget searchBudget, boolean snapToStreetVertices, ExtractionArea extractionArea) {
+		if(numOfAlternativeItinerariesToChooseFromRandomly < 1){
+			throw new IllegalArgumentException("numOfAlternativeItinerariesToChooseFromRandomly has to be at least 1, but is " + 
+					numOfAlternativeItinerariesToChooseFromRandomly);
+		}
 		this.pathservice = pathservice;
 		this.transitSchedule = transitSchedule;
+		this.tripDepartureIndex = tripDepartureIndex;
+		this.graphLookupTables = graphLookupTables;
+		this.pseudoNetworkStopTable = pseudoNetworkStopTable;
+		this.routeCache = routeCache;
+		this.routingTracer = routingTracer;
+		this.searchBudget = searchBudget;
 		this.matsimNetwork = matsimNetwork;
-		this.transitScheduleToPathServiceCt = ct;
-		this.timeZone = TimeZone.getTimeZone(timeZoneString);
+		this.snappedLocations = new SnappedLocationCache(pathservice.getRouter().graph, ct);
+		this.snapToStreetVertices = snapToStreetVertices;
+		this.extractionArea = extractionArea;
 		this.chooseRandomlyAnOtpParameterProfile = chooseRandomlyAnOtpParameterProfile;
 		this.numOfAlternativeItinerariesToChooseFromRandomly = numOfAlternativeItinerariesToChooseFromRandomly;
 		this.useCreatePseudoNetworkInsteadOfOtpPtNetwork = useCreatePseudoNetworkInsteadOfOtpPtNetwork;
 		try {
 			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-			df.setTimeZone(timeZone);
-			this.day = df.parse(dateString);
+			df.setTimeZone(TimeZone.getTimeZone(timeZoneString));
+			this.dayStartSeconds = df.parse(dateString).getTime() / 1000;
 		} catch (ParseException e) {
 			throw new RuntimeException(e);
 		}
-	    otp2MatsimModes.put(TraverseMode.WALK, "walk");
-	    otp2MatsimModes.put(TraverseMode.BICYCLE, "bike");
 	}
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
 	public List<? extends PlanElement> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
-        List<Leg> baseTrip = routeLeg(fromFacility, toFacility, departureTime);
+        return createEntireTrip(fromFacility, toFacility, routeLeg(fromFacility, toFacility, departureTime, person));
+	}
+
+	/**
+	 * Adds teleports from the fromFacility to the begin of the otp path and 
+	 * from its end to the toFacility.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<? extends PlanElement> createEntireTrip(Facility fromFacility, Facility toFacility, List<Leg> baseTrip) {
         if (baseTrip.isEmpty()) {
             return createTeleportationTrip(fromFacility.getLinkId(), toFacility.getLinkId(), TELEPORT_BEGIN_END);
         } else {
@@ -171,16 +283,535 @@ public class OTPRoutingModule implements RoutingModule {
 
     @Override
 	public StageActivityTypes getStageActivityTypes() {
-		return new StageActivityTypesImpl( Arrays.asList( PtConstants.TRANSIT_ACTIVITY_TYPE ) );
+		return STAGE_ACTIVITY_TYPES;
+	}
+
+	/**
+	 * @return the number of otp searches run by this module (cached routing results are not counted)
+	 */
+	public long getNumberOfRoutingRequests() {
+		return routingRequests.sum();
+	}
+
+	/**
+	 * @return the number of routing requests answered by the RouteCache
+	 */
+	public long getNumberOfCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * @return the number of routing requests for which otp did not find any path
+	 */
+	public long getNumberOfRoutingRequestsWithoutRoute() {
+		return noRouteFound.sum();
+	}
+
+	/**
+	 * @return the number of otp searches aborted because SearchBudget.getMaxWallClockSeconds() was exceeded
+	 */
+	public long getNumberOfWallClockCutoffs() {
+		return wallClockCutoffs.sum();
+	}
+
+	/**
+	 * @return the number of otp searches aborted because SearchBudget.getMaxExploredStates() was exceeded
+	 */
+	public long getNumberOfExploredStatesCutoffs() {
+		return exploredStatesCutoffs.sum();
+	}
+
+	/**
+	 * @return the number of otp searches whose paths were all discarded
+	 * because they exceeded SearchBudget.getMaxTripDurationSeconds()
+	 */
+	public long getNumberOfTripDurationCutoffs() {
+		return tripDurationCutoffs.sum();
+	}
+
+	/**
+	 * @return the number of routing requests answered by the SearchBudget.Fallback
+	 */
+	public long getNumberOfSearchBudgetFallbacks() {
+		return searchBudgetFallbacks.sum();
+	}
+
+	/**
+	 * @return the number of otp paths rejected because they leave the 
+	 * extracted scenario: they traverse street edges which are no links of the
+	 * matsim network (see GraphLookupTables.getLinkId()), stops which are not 
+	 * in the transitSchedule or otp trips without a matsim Departure on the
+	 * simulated day
+	 */
+	public long getNumberOfPathsLeavingScenario() {
+		return pathsLeavingScenario.sum();
+	}
+
+	/**
+	 * @return the number of routing requests from or to facilities outside the
+	 * ExtractionArea, which were teleported without an otp search
+	 */
+	public long getNumberOfRequestsOutsideExtractionArea() {
+		return requestsOutsideExtractionArea.sum();
 	}
 
 	@SuppressWarnings("rawtypes")
-	private LinkedList<Leg> routeLeg(Facility fromFacility, Facility toFacility, double departureTime) {
+	private LinkedList<Leg> routeLeg(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
 		LinkedList<Leg> legs = new LinkedList<Leg>();
+		OtpParameterProfile profile = chooseRandomlyAnOtpParameterProfile ? chooseRandomOtpParameterProfile() : null;
+		int chosenItineraryAlternative = ThreadLocalRandom.current().nextInt(numOfAlternativeItinerariesToChooseFromRandomly);
+		
+		RoutingRequest options = createRoutingRequest(profile, departureTime);
+
+		SnappedLocationCache.SnappedLocation from = snappedLocations.get(fromFacility.getCoord());
+		SnappedLocationCache.SnappedLocation to = snappedLocations.get(toFacility.getCoord());
+		Coord fromCoord = from.getOtpCoord();
+		Coord toCoord = to.getOtpCoord();
+		if(isOutsideExtractionArea(from, to)){
+			// otp would only find paths leaving the extracted scenario
+			requestsOutsideExtractionArea.increment();
+			return legs;
+		}
+
+		boolean traced = routingTracer != null && routingTracer.isTraced(person);
+		long routingStartNanos = traced ? System.nanoTime() : 0;
+		RouteCache.Key cacheKey = null;
+		if(routeCache != null && from.getVertex() != null && to.getVertex() != null){
+			cacheKey = routeCache.createKey(from.getVertex().getIndex(), to.getVertex().getIndex(), departureTime, 
+					profile != null ? profile.ordinal() : -1);
+			List<Leg> cachedLegs = routeCache.get(cacheKey, departureTime);
+			if(cachedLegs != null){
+				cacheHits.increment();
+				if(traced){
+					routingTracer.trace(new RoutingTraceRecord(person != null ? person.getId().toString() : null,
+							fromCoord.getY(), fromCoord.getX(), toCoord.getY(), toCoord.getX(), departureTime, 
+							profile != null ? profile.name() : null, options.modes.toString(), 
+							0, -1, cachedLegs.size(), System.nanoTime() - routingStartNanos, true));
+				}
+				return new LinkedList<Leg>(cachedLegs);
+			}
+		}
+		
+		// All alternatives are cached for later routing requests, otherwise the
+		// alternatives after the chosen one are not needed
+		options.numItineraries = cacheKey != null ? numOfAlternativeItinerariesToChooseFromRandomly : 
+			chosenItineraryAlternative + 1;
+		setRoutingContext(options, from, to);
+
+		List<GraphPath> paths = findPaths(options);
+
+		int chosenPath = -1;
+		List<List<Leg>> alternatives = null;
+		if (paths == null) {
+			legs = createSearchBudgetFallback(fromFacility, toFacility, from, to, departureTime);
+		} else if (paths.size() > 0) {
+			// At times otp provides less paths than set in options.numItineraries
+			chosenPath = Math.min(chosenItineraryAlternative, paths.size() - 1);
+			if (cacheKey != null) {
+				alternatives = new ArrayList<>(paths.size());
+				for (int i = 0; i < paths.size(); i++) {
+					LinkedList<Leg> alternative = convertPathToLegs(paths.get(i));
+					if (i == chosenPath) {
+						legs = alternative;
+					}
+					// Paths which could not be converted into matsim legs are not cached
+					if (!alternative.isEmpty()) {
+						alternatives.add(alternative);
+					}
+				}
+			} else {
+				legs = convertPathToLegs(paths.get(chosenPath));
+			}
+		} else {
+			noRouteFound.increment();
+			log.info("No route found for " + noRouteFound.sum() + " calcRoute() requests.");
+		}
+		routingRequests.increment();
+		if(traced){
+			routingTracer.trace(new RoutingTraceRecord(person != null ? person.getId().toString() : null,
+					fromCoord.getY(), fromCoord.getX(), toCoord.getY(), toCoord.getX(), departureTime, 
+					profile != null ? profile.name() : null, options.modes.toString(), 
+					paths != null ? paths.size() : 0, chosenPath, legs.size(), System.nanoTime() - routingStartNanos, false));
+		}
+
+		// fallback legs depend on the wall clock time of the aborted search, so they are not cached
+		if(cacheKey != null && paths != null){
+			routeCache.put(cacheKey, alternatives != null && !alternatives.isEmpty() ? alternatives : 
+				Collections.<List<Leg>>singletonList(legs), departureTime);
+		}
+		return legs;
+	}
+
+	private boolean isOutsideExtractionArea(SnappedLocationCache.SnappedLocation from, 
+			SnappedLocationCache.SnappedLocation to) {
+		return extractionArea != null && 
+				(!extractionArea.contains(from.getOtpCoord().getX(), from.getOtpCoord().getY()) || 
+				!extractionArea.contains(to.getOtpCoord().getX(), to.getOtpCoord().getY()));
+	}
+
+	/**
+	 * Sets the origin and destination of the routing request. If 
+	 * snapToStreetVertices is set, otp is routed from and to the snapped street
+	 * vertices if there are any, otherwise otp links the coordinates into the 
+	 * street graph.
+	 */
+	private void setRoutingContext(RoutingRequest options, SnappedLocationCache.SnappedLocation from, 
+			SnappedLocationCache.SnappedLocation to) {
+		options.from = new GenericLocation(from.getOtpCoord().getY(), from.getOtpCoord().getX());
+		options.to = new GenericLocation(to.getOtpCoord().getY(), to.getOtpCoord().getX());
+		Graph graph = pathservice.getRouter().graph;
+		if(snapToStreetVertices && from.getVertex() != null && to.getVertex() != null){
+			options.setRoutingContext(graph, from.getVertex(), to.getVertex());
+		} else {
+			options.setRoutingContext(graph);
+		}
+	}
+
+	/**
+	 * Runs the otp search within the searchBudget (if any). Paths arriving
+	 * after the maximum trip duration are discarded.
+	 * 
+	 * @return the paths found by otp (possibly empty) or null if the search 
+	 * exceeded the searchBudget (aborted or all paths exceeding the maximum trip duration)
+	 */
+	@SuppressWarnings("rawtypes")
+	private List<GraphPath> findPaths(RoutingRequest options) {
+		ShortestPathTree shortestPathTree = searchWithinBudget(options);
+		if(shortestPathTree == null){
+			return null;
+		}
+		return discardPathsExceedingMaxTripDuration(shortestPathTree.getPaths(), options);
+	}
+
+	/**
+	 * Runs the otp search within the searchBudget (if any). States arriving 
+	 * after the maximum trip duration are not explored.
+	 * 
+	 * @return the shortest path tree or null if the search was aborted
+	 */
+	private ShortestPathTree searchWithinBudget(RoutingRequest options) {
+		AStar aStar = new AStar();
+		if(searchBudget == null){
+			return aStar.getShortestPathTree(options);
+		}
+		int maxTripDurationSeconds = searchBudget.getMaxTripDurationSeconds();
+		if(maxTripDurationSeconds > 0){
+			// otp does not explore states beyond worstTime
+			options.worstTime = Math.min(options.worstTime, options.dateTime + maxTripDurationSeconds);
+		}
+		aStar.setTraverseVisitor(searchBudget.createVisitor());
+		try {
+			return aStar.getShortestPathTree(options);
+		} catch (SearchBudget.ExceededException e) {
+			if(e.isWallClock()){
+				wallClockCutoffs.increment();
+			} else {
+				exploredStatesCutoffs.increment();
+			}
+			log.info("Otp search aborted: " + e.getMessage() + ". Aborted searches: " + 
+					(wallClockCutoffs.sum() + exploredStatesCutoffs.sum()));
+			return null;
+		}
+	}
+
+	/**
+	 * @param paths : paths found by otp, may be null
+	 * @return the paths arriving within SearchBudget.getMaxTripDurationSeconds() 
+	 * after the departure time of the options or null if otp found paths, but
+	 * all of them arrive later
+	 */
+	@SuppressWarnings("rawtypes")
+	private List<GraphPath> discardPathsExceedingMaxTripDuration(List<GraphPath> paths, RoutingRequest options) {
+		int maxTripDurationSeconds = searchBudget != null ? searchBudget.getMaxTripDurationSeconds() : 0;
+		if(paths == null || paths.isEmpty() || maxTripDurationSeconds <= 0){
+			return paths != null ? paths : Collections.<GraphPath>emptyList();
+		}
+		List<GraphPath> pathsWithinMaxTripDuration = new ArrayList<>(paths.size());
+		for(GraphPath path: paths){
+			if(path.getEndTime() - options.dateTime <= maxTripDurationSeconds){
+				pathsWithinMaxTripDuration.add(path);
+			}
+		}
+		if(pathsWithinMaxTripDuration.isEmpty()){
+			// the budget is exceeded, so the fallback applies
+			tripDurationCutoffs.increment();
+			return null;
+		}
+		return pathsWithinMaxTripDuration;
+	}
+
+	/**
+	 * Creates the legs returned if the otp search exceeded the searchBudget.
+	 * 
+	 * @return the fallback legs or an empty list if no route shall be returned
+	 */
+	@SuppressWarnings("rawtypes")
+	private LinkedList<Leg> createSearchBudgetFallback(Facility fromFacility, Facility toFacility, 
+			SnappedLocationCache.SnappedLocation from, SnappedLocationCache.SnappedLocation to, double departureTime) {
+		LinkedList<Leg> legs = new LinkedList<Leg>();
+		switch(searchBudget.getFallback()){
+		case TELEPORT_BEELINE:
+			double distance = searchBudget.getBeelineDistanceFactor() * calcBeelineDistance(from.getOtpCoord(), to.getOtpCoord());
+			double travelTime = distance / searchBudget.getBeelineSpeed();
+			Leg leg = new LegImpl(TELEPORT_SEARCH_BUDGET_EXCEEDED);
+			GenericRouteImpl route = new GenericRouteImpl(fromFacility.getLinkId(), toFacility.getLinkId());
+			route.setTravelTime(travelTime);
+			route.setDistance(distance);
+			leg.setRoute(route);
+			leg.setTravelTime(travelTime);
+			leg.setDepartureTime(departureTime);
+			legs.add(leg);
+			break;
+		case SIMPLER_PROFILE:
+			RoutingRequest options = createRoutingRequest(OtpParameterProfile.Pt_and_Walk, departureTime);
+			options.numItineraries = 1;
+			setRoutingContext(options, from, to);
+			List<GraphPath> paths = findPaths(options);
+			if(paths != null && !paths.isEmpty()){
+				legs = convertPathToLegs(paths.get(0));
+			}
+			break;
+		case NONE:
+			break;
+		}
+		if(legs.isEmpty()){
+			noRouteFound.increment();
+		} else {
+			searchBudgetFallbacks.increment();
+		}
+		return legs;
+	}
+
+	/**
+	 * @return the approximate distance in meters between two WGS84 coordinates
+	 */
+	private static double calcBeelineDistance(Coord fromCoord, Coord toCoord) {
+		double cosLat = Math.cos(Math.toRadians((fromCoord.getY() + toCoord.getY()) / 2));
+		double dx = Math.toRadians(toCoord.getX() - fromCoord.getX()) * cosLat;
+		double dy = Math.toRadians(toCoord.getY() - fromCoord.getY());
+		return 6371000 * Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Routes many trips at once. Trips whose origins are snapped to the same 
+	 * otp street vertex, which depart in the same time window of 
+	 * batchTimeWindowSeconds and which use the same OtpParameterProfile share a
+	 * single otp shortest path tree. The path to each destination is extracted
+	 * from that tree, so only one otp search per group is necessary instead of
+	 * one per trip.
+	 * 
+	 * The results differ from calcRoute() for the same trips: all trips of a
+	 * group are routed for the latest departure time in the group (the
+	 * departure times are rounded up to it), so no agent misses a pt departure
+	 * recommended by otp, but agents departing earlier wait longer. The legs
+	 * keep the departure times of that search and the routing time traced is
+	 * the time of the shared search. Only the best itinerary per destination
+	 * is available from a shortest path tree, so 
+	 * numOfAlternativeItinerariesToChooseFromRandomly is ignored. The shared
+	 * search always starts at the snapped street vertex and the paths end at
+	 * the snapped street vertices of the destinations, regardless of 
+	 * snapToStreetVertices.
+	 * 
+	 * Otherwise the rules of calcRoute() apply: trips found in the RouteCache
+	 * are not routed again (the cached legs are shifted to the departure time
+	 * of each trip) and the results of the group are cached. The shared search
+	 * is limited by the SearchBudget. If it is aborted, the SearchBudget 
+	 * Fallback is applied to each trip of the group at its own departure time,
+	 * as well as to each trip whose paths all exceed the maximum trip 
+	 * duration. Fallback legs are not cached. Trips whose origin or destination cannot be snapped to
+	 * the street network or is outside the ExtractionArea are routed individually by calcRoute().
+	 * 
+	 * @param batchTimeWindowSeconds : length of the departure time windows in which trips are grouped
+	 * @param maxTripDurationSeconds : the otp search of a group stops at departure time + maxTripDurationSeconds,
+	 * trips with a longer travel time are treated as if no route was found
+	 * @return the routed trips in the order of the requests
+	 */
+	@SuppressWarnings("rawtypes")
+	public List<List<? extends PlanElement>> calcRoutes(List<BatchRoutingRequest> requests, 
+			int batchTimeWindowSeconds, int maxTripDurationSeconds) {
+		List<List<? extends PlanElement>> trips = new ArrayList<>(Collections.nCopies(requests.size(), 
+				(List<? extends PlanElement>) null));
+		Map<BatchGroupKey, List<Integer>> groups = new LinkedHashMap<>();
+		SnappedLocationCache.SnappedLocation[] fromLocations = new SnappedLocationCache.SnappedLocation[requests.size()];
+		SnappedLocationCache.SnappedLocation[] toLocations = new SnappedLocationCache.SnappedLocation[requests.size()];
+		OtpParameterProfile[] profiles = new OtpParameterProfile[requests.size()];
+		RouteCache.Key[] cacheKeys = new RouteCache.Key[requests.size()];
+		for(int i = 0; i < requests.size(); i++){
+			BatchRoutingRequest request = requests.get(i);
+			fromLocations[i] = snappedLocations.get(request.fromFacility.getCoord());
+			toLocations[i] = snappedLocations.get(request.toFacility.getCoord());
+			if(fromLocations[i].getVertex() == null || toLocations[i].getVertex() == null || 
+					isOutsideExtractionArea(fromLocations[i], toLocations[i])){
+				trips.set(i, calcRoute(request.fromFacility, request.toFacility, request.departureTime, request.person));
+				continue;
+			}
+			profiles[i] = request.profile;
+			if(profiles[i] == null && chooseRandomlyAnOtpParameterProfile){
+				profiles[i] = chooseRandomOtpParameterProfile();
+			}
+			if(routeCache != null){
+				long lookupStartNanos = System.nanoTime();
+				cacheKeys[i] = routeCache.createKey(fromLocations[i].getVertex().getIndex(), 
+						toLocations[i].getVertex().getIndex(), request.departureTime, 
+						profiles[i] != null ? profiles[i].ordinal() : -1);
+				List<Leg> cachedLegs = routeCache.get(cacheKeys[i], request.departureTime);
+				if(cachedLegs != null){
+					cacheHits.increment();
+					if(routingTracer != null && routingTracer.isTraced(request.person)){
+						traceBatchRoutingRequest(request, fromLocations[i], toLocations[i], profiles[i], 
+								createRoutingRequest(profiles[i], request.departureTime).modes.toString(), 
+								0, -1, cachedLegs.size(), System.nanoTime() - lookupStartNanos, true);
+					}
+					trips.set(i, createEntireTrip(request.fromFacility, request.toFacility, cachedLegs));
+					continue;
+				}
+			}
+			BatchGroupKey groupKey = new BatchGroupKey(fromLocations[i].getVertex().getIndex(), 
+					(int) Math.floor(request.departureTime / batchTimeWindowSeconds), 
+					profiles[i] != null ? profiles[i].ordinal() : -1);
+			List<Integer> group = groups.get(groupKey);
+			if(group == null){
+				group = new ArrayList<>();
+				groups.put(groupKey, group);
+			}
+			group.add(i);
+		}
+		
+		Graph graph = pathservice.getRouter().graph;
+		for(List<Integer> group: groups.values()){
+			int first = group.get(0);
+			double latestDepartureTime = Double.NEGATIVE_INFINITY;
+			for(int i: group){
+				latestDepartureTime = Math.max(latestDepartureTime, requests.get(i).departureTime);
+			}
+			RoutingRequest options = createRoutingRequest(profiles[first], latestDepartureTime);
+			options.batch = true;
+			options.worstTime = options.dateTime + maxTripDurationSeconds;
+			options.setRoutingContext(graph, fromLocations[first].getVertex(), null);
+			long routingStartNanos = System.nanoTime();
+			ShortestPathTree shortestPathTree = searchWithinBudget(options);
+			long routingTimeNanos = System.nanoTime() - routingStartNanos;
+			routingRequests.increment();
+			
+			for(int i: group){
+				BatchRoutingRequest request = requests.get(i);
+				LinkedList<Leg> legs = new LinkedList<Leg>();
+				List<GraphPath> paths = null;
+				int chosenPath = -1;
+				if(shortestPathTree != null){
+					paths = discardPathsExceedingMaxTripDuration(
+							shortestPathTree.getPaths(toLocations[i].getVertex(), true), options);
+				}
+				if(paths == null){
+					legs = createSearchBudgetFallback(request.fromFacility, request.toFacility, 
+							fromLocations[i], toLocations[i], request.departureTime);
+				} else {
+					if(paths.size() > 0){
+						chosenPath = 0;
+						for(int j = 1; j < paths.size(); j++){
+							if(paths.get(j).getWeight() < paths.get(chosenPath).getWeight()){
+								chosenPath = j;
+							}
+						}
+						legs = convertPathToLegs(paths.get(chosenPath));
+					} else {
+						noRouteFound.increment();
+						log.info("No route found for " + noRouteFound.sum() + " calcRoute() requests.");
+					}
+				}
+				if(routingTracer != null && routingTracer.isTraced(request.person)){
+					// the routing time is the time of the shared otp search
+					traceBatchRoutingRequest(request, fromLocations[i], toLocations[i], profiles[i], 
+							options.modes.toString(), paths != null ? paths.size() : 0, chosenPath, legs.size(), 
+							routingTimeNanos, false);
+				}
+				if(cacheKeys[i] != null && paths != null){
+					routeCache.put(cacheKeys[i], Collections.<List<Leg>>singletonList(legs), latestDepartureTime);
+				}
+				trips.set(i, createEntireTrip(request.fromFacility, request.toFacility, legs));
+			}
+		}
+		return trips;
+	}
+
+	private void traceBatchRoutingRequest(BatchRoutingRequest request, SnappedLocationCache.SnappedLocation from, 
+			SnappedLocationCache.SnappedLocation to, OtpParameterProfile profile, String modes, int numPaths, 
+			int chosenPath, int numLegs, long routingTimeNanos, boolean cacheHit) {
+		routingTracer.trace(new RoutingTraceRecord(request.person != null ? request.person.getId().toString() : null,
+				from.getVertex().getY(), from.getVertex().getX(), to.getVertex().getY(), to.getVertex().getX(), 
+				request.departureTime, profile != null ? profile.name() : null, modes, 
+				numPaths, chosenPath, numLegs, routingTimeNanos, cacheHit));
+	}
+
+	/**
+	 * A trip to be routed by calcRoutes()
+	 */
+	public static final class BatchRoutingRequest {
+		private final Facility fromFacility;
+		private final Facility toFacility;
+		private final double departureTime;
+		private final Person person;
+		private final OtpParameterProfile profile;
+
+		/**
+		 * The OtpParameterProfile is chosen as in calcRoute()
+		 */
+		public BatchRoutingRequest(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+			this(fromFacility, toFacility, departureTime, person, null);
+		}
+
+		public BatchRoutingRequest(Facility fromFacility, Facility toFacility, double departureTime, Person person, 
+				OtpParameterProfile profile) {
+			this.fromFacility = fromFacility;
+			this.toFacility = toFacility;
+			this.departureTime = departureTime;
+			this.person = person;
+			this.profile = profile;
+		}
+
+		public Facility getFromFacility() {
+			return fromFacility;
+		}
+	}
+
+	private static final class BatchGroupKey {
+		private final int fromVertexIndex;
+		private final int departureTimeWindow;
+		private final int profile;
+
+		BatchGroupKey(int fromVertexIndex, int departureTimeWindow, int profile) {
+			this.fromVertexIndex = fromVertexIndex;
+			this.departureTimeWindow = departureTimeWindow;
+			this.profile = profile;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof BatchGroupKey)){
+				return false;
+			}
+			BatchGroupKey other = (BatchGroupKey) o;
+			return fromVertexIndex == other.fromVertexIndex && departureTimeWindow == other.departureTimeWindow &&
+					profile == other.profile;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * fromVertexIndex + departureTimeWindow) + profile;
+		}
+	}
+
+	private OtpParameterProfile chooseRandomOtpParameterProfile() {
+		return OtpParameterProfile.values()[ThreadLocalRandom.current().nextInt(OtpParameterProfile.values().length)];
+	}
+
+	/**
+	 * @param profile : the OtpParameterProfile to use or null in order to allow walk and bike
+	 */
+	private RoutingRequest createRoutingRequest(OtpParameterProfile profile, double departureTime) {
 		TraverseModeSet modeSet = new TraverseModeSet();
 		modeSet.setTransit(true);
-		OtpParameterProfile profile = OtpParameterProfile.values()[(int) (Math.random()*OtpParameterProfile.values().length)];
-		if(chooseRandomlyAnOtpParameterProfile){
+		if(profile != null){
 			modeSet.setWalk(profile.walkAllowed);
 			modeSet.setBicycle(profile.bikeAllowed);
 		} else {
@@ -188,181 +819,167 @@ public class OTPRoutingModule implements RoutingModule {
 			modeSet.setBicycle(true);
 		}
 		
-		int chosenItineraryAlternative = (int) (Math.random() * numOfAlternativeItinerariesToChooseFromRandomly);
-		
 		RoutingRequest options = new RoutingRequest(modeSet);
 		options.setMaxWalkDistance(Double.MAX_VALUE);
 		options.setWalkBoardCost(3 * 60); // override low 2-4 minute values
 		options.setBikeBoardCost(3 * 60 * 2);
 		options.setOptimize(OptimizeType.QUICK);
-		 
-		Calendar when = Calendar.getInstance();
-		when.setTimeZone(timeZone);
-		when.setTime(day);
-		when.add(Calendar.SECOND, (int) departureTime);
-		options.setDateTime(when.getTime());
-
-		Coord fromCoord = transitScheduleToPathServiceCt.transform(fromFacility.getCoord());
-		Coord toCoord = transitScheduleToPathServiceCt.transform(toFacility.getCoord());
-		options.from =  new GenericLocation(fromCoord.getY(), fromCoord.getX());
-		options.to   =  new GenericLocation(toCoord.getY(), toCoord.getX());
-		
-		options.numItineraries = chosenItineraryAlternative + 1;
-		System.out.println("--------");
-		System.out.println("Path from " + options.from + " to " + options.to + " at " + when);
-		System.out.println("\tModes: " + modeSet);
-		System.out.println("\tOptions: " + options);
-		options.setRoutingContext(pathservice.getRouter().graph);
-
-		ShortestPathTree shortestPathTree = new AStar().getShortestPathTree(options);
-		List<GraphPath> paths = shortestPathTree.getPaths();
+		options.dateTime = dayStartSeconds + (long) departureTime;
+		return options;
+	}
 
-		if (paths != null && paths.size() > 0) {
-			// At times otp provides less paths than set in options.numItineraries
-			GraphPath path = paths.get(Math.min(chosenItineraryAlternative, paths.size() - 1));
-			path.dump();
-			String stop = null;
-			long time = 0;
-            long lastDepartureSec = Long.MIN_VALUE;
-			double distance = 0;
-			if(!path.states.isEmpty()){
-				lastDepartureSec = (path.states.getFirst().getTimeInMillis() - day.getTime())/1000;
-			}
-			TraverseMode nonTransitMode = null;
-			List<Id<Link>> linksTraversedInNonTransitMode = new LinkedList<Id<Link>>();
-			for (State state : path.states) {
-                Edge backEdge = state.getBackEdge();
-//				System.out.println(state.getNonTransitMode().toString() + " " + backEdge + " " + state);
-                if (backEdge != null) {
-                    final long travelTime = state.getElapsedTimeSeconds() - time;
-                    /*
-                     *  According to a comment in otp class StreetEdge this class can be used as 
-                     *  a marker to detect edges in the street layer.
-                     */
-                    if (backEdge instanceof StreetEdge){
-                    	// Add teleport within transit stop area leg if the last leg was a pt leg
-                    	if(!legs.isEmpty()) {
-                    		if(legs.getLast().getMode().equals(PT)){
-                                TransitStopFacility egressFacility = transitSchedule.getFacilities().get(Id.create(stop, TransitStopFacility.class));
-                                legs.addAll(createTeleportationTrip(egressFacility.getLinkId(), Id.create(backEdge.getId(), Link.class), 
-                                		TELEPORT_TRANSIT_STOP_AREA));
-                    		}
-                    	}
-                    	if(nonTransitMode == null){
-                    		nonTransitMode = state.getNonTransitMode();
-                    	} else if(linksTraversedInNonTransitMode.isEmpty()){
-                    		nonTransitMode = state.getNonTransitMode();
-                    	} else if(nonTransitMode != state.getNonTransitMode()){
-                    		legs.add(createStreetNetworkNonTransitLeg(otp2MatsimModes.get(nonTransitMode), 
-                    				linksTraversedInNonTransitMode, travelTime, lastDepartureSec, distance));
-                    		time = state.getElapsedTimeSeconds();
-                        	lastDepartureSec = (state.getTimeInMillis() - day.getTime())/1000;
-                    		distance = 0;
-                    		nonTransitMode = state.getNonTransitMode();
-                    		linksTraversedInNonTransitMode.clear();
-                    	}
-                    	linksTraversedInNonTransitMode.add(Id.create(backEdge.getId(), Link.class));
-                    	distance = distance + backEdge.getDistance();
-                    	
-                    } else if (backEdge instanceof TransitBoardAlight) {
-                    // boarding or alighting at a transit stop
-                    	Trip backTrip = state.getBackTrip();
-                    	if (((TransitBoardAlight) backEdge).boarding) {
-                    		// boarding
-                    		String newStop = ((TransitVertex) state.getVertex()).getStopId().toString();
-                    		TransitStopFacility accessFacility = transitSchedule.getFacilities().get(Id.create(newStop, TransitStopFacility.class));
-                    		// System.out.println("Arrived at TransitStop: " + newStop + " .Links traversed: " + linksTraversedInNonTransitMode.toString() + "\n");
-
-                    		if(linksTraversedInNonTransitMode.isEmpty()){
-                    			/* isEmpty: either transfer between lines or trip started directly at this station */
-                    			if(stop != null){
-                    				/* trip has involved boarding or alighting at another transit stop before -> this is a transfer */
-                    				TransitStopFacility egressFacility = transitSchedule.getFacilities().get(Id.create(stop, TransitStopFacility.class));
-                    				legs.addAll(createTeleportationTrip(egressFacility.getLinkId(), accessFacility.getLinkId(), 
-                    						TELEPORT_TRANSIT_STOP_AREA));
-                    			}
-                    		} else {
-                    			/* Save the walk leg to the transit stop*/
-                    			legs.add(createStreetNetworkNonTransitLeg(otp2MatsimModes.get(nonTransitMode), 
-                    					linksTraversedInNonTransitMode, travelTime, lastDepartureSec, distance));
-                    			/* Save a teleport leg from the last link on the street layer to the transit stop */
-                    			legs.addAll(createTeleportationTrip(linksTraversedInNonTransitMode.get( 
-                    					linksTraversedInNonTransitMode.size()-1), accessFacility.getLinkId(), 
-                    					TELEPORT_TRANSIT_STOP_AREA));
-                    			linksTraversedInNonTransitMode.clear();
-                    		}
-                    		time = state.getElapsedTimeSeconds();
-                    		lastDepartureSec = (state.getTimeInMillis() - day.getTime())/1000;
-                    		distance = 0;
-                    		stop = newStop;
-                    	} else {
-                        	// alighting
+	/**
+	 * Converts the states of an otp path into matsim legs. Street network
+	 * legs, pt legs and teleports within transit stop areas are created, but
+	 * not the teleports between the facilities and the begin or end of the
+	 * otp path (see calcRoute()).
+	 * 
+	 * otp searches the whole graph, so paths may leave the extracted scenario:
+	 * paths traversing street edges which are no links of the matsim network, 
+	 * stops which are not in the transitSchedule or otp trips without a matsim
+	 * Departure on the simulated day (e.g. TripPatterns clipped to the 
+	 * ExtractionArea) are rejected, i.e. no legs are returned and calcRoute() 
+	 * teleports the trip as if otp found no route.
+	 */
+	@SuppressWarnings("rawtypes")
+	LinkedList<Leg> convertPathToLegs(GraphPath path) {
+		LinkedList<Leg> legs = new LinkedList<Leg>();
+		TransitStopFacility stop = null;
+		long time = 0;
+        long lastDepartureSec = Long.MIN_VALUE;
+		double distance = 0;
+		if(!path.states.isEmpty()){
+			lastDepartureSec = path.states.getFirst().getTimeSeconds() - dayStartSeconds;
+		}
+		TraverseMode nonTransitMode = null;
+		// Reused for all paths converted by this thread, createNetworkRoute() copies the link ids
+		List<Id<Link>> linksTraversedInNonTransitMode = linksTraversedBuffer.get();
+		linksTraversedInNonTransitMode.clear();
+		for (State state : path.states) {
+            Edge backEdge = state.getBackEdge();
+            if (backEdge != null) {
+                final long travelTime = state.getElapsedTimeSeconds() - time;
+                /*
+                 *  According to a comment in otp class StreetEdge this class can be used as 
+                 *  a marker to detect edges in the street layer.
+                 */
+                if (backEdge instanceof StreetEdge){
+                	Id<Link> linkId = graphLookupTables.getLinkId(backEdge);
+                	if(linkId == null){
+                		return rejectPathLeavingScenario(legs, "street edges which are no links of the matsim network");
+                	}
+                	// Add teleport within transit stop area leg if the last leg was a pt leg
+                	if(!legs.isEmpty()) {
+                		if(legs.getLast().getMode().equals(PT)){
+                            legs.addAll(createTeleportationTrip(stop.getLinkId(), linkId, 
+                            		TELEPORT_TRANSIT_STOP_AREA));
+                		}
+                	}
+                	if(nonTransitMode == null){
+                		nonTransitMode = state.getNonTransitMode();
+                	} else if(linksTraversedInNonTransitMode.isEmpty()){
+                		nonTransitMode = state.getNonTransitMode();
+                	} else if(nonTransitMode != state.getNonTransitMode()){
+                		legs.add(createStreetNetworkNonTransitLeg(otp2MatsimModes.get(nonTransitMode), 
+                				linksTraversedInNonTransitMode, travelTime, lastDepartureSec, distance));
+                		time = state.getElapsedTimeSeconds();
+                    	lastDepartureSec = state.getTimeSeconds() - dayStartSeconds;
+                		distance = 0;
+                		nonTransitMode = state.getNonTransitMode();
+                		linksTraversedInNonTransitMode.clear();
+                	}
+                	linksTraversedInNonTransitMode.add(linkId);
+                	distance = distance + backEdge.getDistance();
+                	
+                } else if (backEdge instanceof TransitBoardAlight) {
+                // boarding or alighting at a transit stop
+                	Trip backTrip = state.getBackTrip();
+                	TransitStopFacility newStop = getStopFacility((TransitVertex) state.getVertex());
+                	if(newStop == null){
+                		return rejectPathLeavingScenario(legs, "stops which are not in the matsim transit schedule");
+                	}
+                	if (((TransitBoardAlight) backEdge).boarding) {
+                		// boarding
+                		if(linksTraversedInNonTransitMode.isEmpty()){
+                			/* isEmpty: either transfer between lines or trip started directly at this station */
+                			if(stop != null){
+                				/* trip has involved boarding or alighting at another transit stop before -> this is a transfer */
+                				legs.addAll(createTeleportationTrip(stop.getLinkId(), newStop.getLinkId(), 
+                						TELEPORT_TRANSIT_STOP_AREA));
+                			}
+                		} else {
+                			/* Save the walk leg to the transit stop*/
+                			legs.add(createStreetNetworkNonTransitLeg(otp2MatsimModes.get(nonTransitMode), 
+                					linksTraversedInNonTransitMode, travelTime, lastDepartureSec, distance));
+                			/* Save a teleport leg from the last link on the street layer to the transit stop */
+                			legs.addAll(createTeleportationTrip(linksTraversedInNonTransitMode.get( 
+                					linksTraversedInNonTransitMode.size()-1), newStop.getLinkId(), 
+                					TELEPORT_TRANSIT_STOP_AREA));
+                			linksTraversedInNonTransitMode.clear();
+                		}
+                		time = state.getElapsedTimeSeconds();
+                		lastDepartureSec = state.getTimeSeconds() - dayStartSeconds;
+                		distance = 0;
+                		stop = newStop;
+                	} else {
+                    	// alighting
+                        TripDepartureIndex.Entry departure = findDeparture(backTrip, state.getTimeSeconds(), newStop);
+                		if(departure != null){
+                			// A TransitRoute could be found for the otp trip
                             Leg leg = new LegImpl(PT);
-                            String newStop = ((TransitVertex) state.getVertex()).getStopId().toString();
-                            TransitStopFacility accessFacility = transitSchedule.getFacilities().get(Id.create(stop, TransitStopFacility.class));
-                            TransitStopFacility egressFacility = transitSchedule.getFacilities().get(Id.create(newStop, TransitStopFacility.class));
-                            TransitRoute transitRoute = createRoute(backTrip, state.getTimeInMillis(), egressFacility);
-                    		if(!transitRoute.getId().toString().equals("")){
-                    			// A TransitRoute could be found for the otp trip
-                                final ExperimentalTransitRoute route = new ExperimentalTransitRoute( 
-                                		accessFacility, createLine(backTrip), transitRoute, egressFacility);
-                                route.setTravelTime(travelTime);
-                                route.setDistance(distance);
-                                leg.setRoute(route);
-                                leg.setTravelTime(travelTime);
-                                leg.setDepartureTime(lastDepartureSec);
-                                legs.add(leg);
-                    		} else if(state.getTimeInMillis() > day.getTime() + 24*60*60*1000) {
-                    			/* No TransitRoute could be found for the otp trip
-                    			 * 
-                    			 * If the route includes boarding a pt vehicle after the day to be simulated has ended,
-                    			 * it is highly probable that no TransitRoute for this otp trip could be found 
-                    			 * because it was not exported into the extracted Matsim transit schedule. Furthermore,
-                    			 * the route supplied by otp implies probably a very late arrival at the destination,
-                    			 * e.g. the last bus on Friday evening is already gone and as there is no bus service
-                    			 * on weekends, otp recommends to wait for the next departure on Monday. This is not a
-                    			 * realistic result, because most people would choose another means of transport or
-                    			 * another destination or would stay where they are. Therefore exporting the transit
-                    			 * schedule for an even longer time span of multiple days does not seem to be a good
-                    			 * solution, as the agent will eventually choose another plan anyway. In order to avoid
-                    			 * crashes due to otp trips without corresponding TransitRoutes, the OTPRoutingModule
-                    			 * should act as if no route was found (just as the Matsim pt router would act for the 
-                    			 * given Matsim transit schedule).
-                    			 */
-                    			legs.clear();
-                    			log.info("No route returned, because the route calculated by otp includes otp trips" +
-                    					" which could not be found in the matsim transit schedule.");
-                    			break;
-                    		} else {
-                    			// This should nether happen, because all otp trips on the day to be simulated are
-                    			// exported into the matsim schedule.
-                    			log.warn("No Matsim TransitRoute found for otp trip id \"" + 
-                    					backTrip.getId().toString() + "\" of TransitLine \"" + backTrip.getRoute().getId().toString() +
-                    					"\" although the otp trip was boarded on the day to be simulated.");
-                    		}
-                            time = state.getElapsedTimeSeconds();
-                        	lastDepartureSec = (state.getTimeInMillis() - day.getTime())/1000;
-                        	distance = 0;
-                            stop = newStop;
-                        }
-                        // OnboardEdge: interface for all otp edges onboard a pt vehicle
-                        // TransitBoardAlight implements OnboardEdge, but always returns 0
-                    } else if (backEdge instanceof OnboardEdge) {
-//                    	System.out.println("OnboardEdge " + backEdge.getId() + " with length " + backEdge.getDistance());
-                    	distance = distance + backEdge.getDistance();
+                            final ExperimentalTransitRoute route = new ExperimentalTransitRoute( 
+                            		stop, departure.getLine(), departure.getRoute(), newStop);
+                            route.setTravelTime(travelTime);
+                            route.setDistance(distance);
+                            leg.setRoute(route);
+                            leg.setTravelTime(travelTime);
+                            leg.setDepartureTime(lastDepartureSec);
+                            legs.add(leg);
+                		} else if(state.getTimeSeconds() - dayStartSeconds > 24*60*60) {
+                			/* No TransitRoute could be found for the otp trip
+                			 * 
+                			 * If the route includes boarding a pt vehicle after the day to be simulated has ended,
+                			 * it is highly probable that no TransitRoute for this otp trip could be found 
+                			 * because it was not exported into the extracted Matsim transit schedule. Furthermore,
+                			 * the route supplied by otp implies probably a very late arrival at the destination,
+                			 * e.g. the last bus on Friday evening is already gone and as there is no bus service
+                			 * on weekends, otp recommends to wait for the next departure on Monday. This is not a
+                			 * realistic result, because most people would choose another means of transport or
+                			 * another destination or would stay where they are. Therefore exporting the transit
+                			 * schedule for an even longer time span of multiple days does not seem to be a good
+                			 * solution, as the agent will eventually choose another plan anyway. In order to avoid
+                			 * crashes due to otp trips without corresponding TransitRoutes, the OTPRoutingModule
+                			 * should act as if no route was found (just as the Matsim pt router would act for the 
+                			 * given Matsim transit schedule).
+                			 */
+                			legs.clear();
+                			log.info("No route returned, because the route calculated by otp includes otp trips" +
+                					" which could not be found in the matsim transit schedule.");
+                			break;
+                		} else {
+                			// All otp trips on the day to be simulated are exported into the matsim schedule,
+                			// but TripPatterns leaving the ExtractionArea are clipped to the stops within the area.
+                			return rejectPathLeavingScenario(legs, "otp trips without a matsim Departure on the" +
+                					" day to be simulated");
+                		}
+                        time = state.getElapsedTimeSeconds();
+                    	lastDepartureSec = state.getTimeSeconds() - dayStartSeconds;
+                    	distance = 0;
+                        stop = newStop;
                     }
+                    // OnboardEdge: interface for all otp edges onboard a pt vehicle
+                    // TransitBoardAlight implements OnboardEdge, but always returns 0
+                } else if (backEdge instanceof OnboardEdge) {
+                	distance = distance + backEdge.getDistance();
                 }
+            }
 
-            } if (!linksTraversedInNonTransitMode.isEmpty()){
-            	legs.add(createStreetNetworkNonTransitLeg(otp2MatsimModes.get(nonTransitMode), 
+        } if (!linksTraversedInNonTransitMode.isEmpty()){
+        	legs.add(createStreetNetworkNonTransitLeg(otp2MatsimModes.get(nonTransitMode), 
     					linksTraversedInNonTransitMode, 
     					path.states.getLast().getElapsedTimeSeconds() - time, lastDepartureSec, distance));
-            	linksTraversedInNonTransitMode.clear();
-            }
-		} else {
-			log.info("No route found for " + ++nonefound + " calcRoute() requests.");
-		}
-		System.out.println("---------" + npersons++);
+        	linksTraversedInNonTransitMode.clear();
+        }
 
 		if(useCreatePseudoNetworkInsteadOfOtpPtNetwork){
 			adjustLinkAndStopFacilityIdsForCreatePseudoNetwork(legs);
@@ -371,6 +988,23 @@ public class OTPRoutingModule implements RoutingModule {
 		return legs;
 	}
 
+	private LinkedList<Leg> rejectPathLeavingScenario(LinkedList<Leg> legs, String reason) {
+		pathsLeavingScenario.increment();
+		log.info("No route returned for " + pathsLeavingScenario.sum() + " otp paths leaving the extracted" +
+				" scenario, e.g. because of " + reason + ".");
+		legs.clear();
+		linksTraversedBuffer.get().clear();
+		return legs;
+	}
+
+	private TransitStopFacility getStopFacility(TransitVertex vertex) {
+		TransitStopFacility stopFacility = graphLookupTables.getStopFacility(vertex);
+		if(stopFacility == null){
+			stopFacility = transitSchedule.getFacilities().get(Id.create(vertex.getStopId().toString(), TransitStopFacility.class));
+		}
+		return stopFacility;
+	}
+
 	/** Replace all TransitStopFacility ids extracted from the otp route 
 	 * with the appropriate ids created by CreatePseudoNetwork
 	 * and replace end link ids of legs before a pt leg and replace
@@ -387,10 +1021,10 @@ public class OTPRoutingModule implements RoutingModule {
 	 * stopId created by CreatePseudoNetwork (e.g. "SWU_900135311" or 
 	 * "SWU_900135311.1")
 	 * 
-	 * Unfortunately a recent improvement (2015-08-11) of createRoute() method
+	 * Unfortunately a recent improvement (2015-08-11) of findDeparture() method (formerly createRoute())
 	 * requires the usage of the correct TransitStopFacility Ids used in the 
-	 * matsim transit schedule, so getPseudoNetworkTransitStopFacilityId() is 
-	 * used there, too.
+	 * matsim transit schedule, so the PseudoNetworkStopTable is used there,
+	 * too.
 	 * 
 	 * The TELEPORT_BEGIN_END before and after the trip are added later in 
 	 * calcRoute(), so if all link ids of the PT legs are corrected here the
@@ -405,11 +1039,17 @@ public class OTPRoutingModule implements RoutingModule {
 			if(leg.getMode().equals(PT)){
 				if(leg.getRoute() instanceof ExperimentalTransitRoute){
 					ExperimentalTransitRoute route = (ExperimentalTransitRoute) leg.getRoute();
-					Id<TransitStopFacility> pseudoNetworkAccessStopId = getPseudoNetworkTransitStopFacilityId(route.getAccessStopId(), route.getLineId(), route.getRouteId());
-					Id<TransitStopFacility> pseudoNetworkEgressStopId = getPseudoNetworkTransitStopFacilityId(route.getEgressStopId(), route.getLineId(), route.getRouteId());
+					TransitRoute transitRoute = transitSchedule.getTransitLines().get(route.getLineId()).getRoutes().get(route.getRouteId());
+					TransitStopFacility pseudoNetworkAccessStop = pseudoNetworkStopTable.getFacility(transitRoute, route.getAccessStopId());
+					TransitStopFacility pseudoNetworkEgressStop = pseudoNetworkStopTable.getFacility(transitRoute, route.getEgressStopId());
+					if(pseudoNetworkAccessStop == null || pseudoNetworkEgressStop == null){
+						log.warn("No corresponding CreatePseudoNetwork TransitStopFacility found for otp stop " + 
+								(pseudoNetworkAccessStop == null ? route.getAccessStopId() : route.getEgressStopId()) +
+								" supposed to be part of TransitLine " + route.getLineId() + "'s TransitRoute " + route.getRouteId());
+						continue;
+					}
 					ExperimentalTransitRoute correctedRoute = new ExperimentalTransitRoute(
-							transitSchedule.getFacilities().get(pseudoNetworkAccessStopId), 
-							transitSchedule.getFacilities().get(pseudoNetworkEgressStopId),
+							pseudoNetworkAccessStop, pseudoNetworkEgressStop,
 							route.getLineId(), route.getRouteId());
 					correctedRoute.setTravelTime(route.getTravelTime());
 					correctedRoute.setDistance(route.getDistance());
@@ -417,13 +1057,13 @@ public class OTPRoutingModule implements RoutingModule {
 					if(i > 0){
 						Leg legBefore = legs.get(i-1);
 						if(legBefore.getMode().equals(TELEPORT_TRANSIT_STOP_AREA)){
-							legBefore.getRoute().setEndLinkId(transitSchedule.getFacilities().get(pseudoNetworkAccessStopId).getLinkId());
+							legBefore.getRoute().setEndLinkId(pseudoNetworkAccessStop.getLinkId());
 						}
 					}
 					if(i + 1 < legs.size()){
 						Leg legAfter = legs.get(i+1);
 						if(legAfter.getMode().equals(TELEPORT_TRANSIT_STOP_AREA)){
-							legAfter.getRoute().setStartLinkId(transitSchedule.getFacilities().get(pseudoNetworkEgressStopId).getLinkId());
+							legAfter.getRoute().setStartLinkId(pseudoNetworkEgressStop.getLinkId());
 						}
 					}
 				}
@@ -431,28 +1071,6 @@ public class OTPRoutingModule implements RoutingModule {
 		}
 	}
 
-	private Id<TransitStopFacility> getPseudoNetworkTransitStopFacilityId(Id<TransitStopFacility> stopFacilityId, Id<TransitLine> transitLineId, Id<TransitRoute> transitRouteId) {
-		if(transitSchedule.getTransitLines().get(transitLineId).getRoutes().get(transitRouteId).
-				getStop(transitSchedule.getFacilities().get(stopFacilityId)) != null){
-			return stopFacilityId;
-		} else {
-			int j = 0;
-			Id<TransitStopFacility> stopFacilityIdToBeTested;
-			do{
-				j++;
-				// It is unlikely that CreatePseudoNetwork has split any transit stop into more
-				// than 100 separate stops
-				if(j > 100){
-					log.warn("No corresponding CreatePseudoNetwork TransitStopFacility id found for otp stopFacilityId " + stopFacilityId +
-							" supposed to be part of TransitLine " + transitLineId + "'s TransitRoute " + transitRouteId);
-					return null;
-				}
-				stopFacilityIdToBeTested = Id.create(stopFacilityId.toString() + "." + j, TransitStopFacility.class);
-			} while(transitSchedule.getTransitLines().get(transitLineId).getRoutes().get(transitRouteId).getStop(transitSchedule.getFacilities().get(stopFacilityIdToBeTested)) == null);
-			return stopFacilityIdToBeTested;
-		}
-	}
-	
 	/**
 	 * CreatePseudoNetwork splits some TransitStopFacilities
 	 * -> what used to be a change between lines at the same stop can now be
@@ -479,15 +1097,12 @@ public class OTPRoutingModule implements RoutingModule {
 		return legsWithAddedTeleports;
 	}
 
-	private TransitRoute createRoute(Trip backTrip, long timeInMillis, TransitStopFacility otpEgressFacility) {
-		List<TransitRouteStop> emptyList = Collections.emptyList();
-		Id<TransitLine> tlId = Id.create(backTrip.getRoute().getId().toString(), TransitLine.class);
-		Id<TransitRoute> trId = Id.create("", TransitRoute.class);
+	private TripDepartureIndex.Entry findDeparture(Trip backTrip, long timeSeconds, TransitStopFacility otpEgressFacility) {
 		/*
-		 * Check all TransitRoutes of TransitLine tlId whether they include
-		 * a Matsim Departure whose id corresponds to the otp trip id given
-		 * in the otp routing result and whose arrival time corresponds to
-		 * the arrival time and day indicated by the otp state.
+		 * Look up the Matsim Departures whose id corresponds to the otp trip
+		 * id given in the otp routing result and check whether their arrival
+		 * time corresponds to the arrival time and day indicated by the otp
+		 * state.
 		 * 
 		 * The matsim departure ids differ from the otp trip ids in order to 
 		 * differentiate between matsim departures on the first simulated day 
@@ -512,57 +1127,35 @@ public class OTPRoutingModule implements RoutingModule {
 		 * at 33:00:00. The agent would stuck while waiting for the bus.
 		 *
 		 * Apparently otp always uses the time zone UTC in class State and 
-		 * State.getTimeMillis() whereas matsim uses the time zone specified in
-		 * variable timeZone. So the otp time has to be converted to the time
-		 * zone used in matsim.
+		 * State.getTimeSeconds() whereas matsim uses the time zone specified in
+		 * variable timeZone. dayStartSeconds is the start of the simulated date
+		 * in that time zone, so the difference is the matsim time of day.
 		 */
-		Date arrivalTime = new Date(timeInMillis - day.getTime());
-		Calendar scheduledOTPTripArrivalTime = Calendar.getInstance();
-		scheduledOTPTripArrivalTime.setTimeZone(timeZone);
-		scheduledOTPTripArrivalTime.setTime(arrivalTime);
-		for(TransitRoute tr: transitSchedule.getTransitLines().get(tlId).getRoutes().values()){
-			TransitStopFacility egressFacility = otpEgressFacility;
-			if(useCreatePseudoNetworkInsteadOfOtpPtNetwork && 
-					// Check whether the TransitRoute contains the otp trip searched for, if not, 
-					// the transit stop looked up here is not necessarily serviced by the TransitRoute
-					(tr.getDepartures().containsKey(Id.create(backTrip.getId().toString() + "_0", Departure.class)) || 
-							tr.getDepartures().containsKey(Id.create(backTrip.getId().toString() + "_1", Departure.class)) || 
-							tr.getDepartures().containsKey(Id.create(backTrip.getId().toString() + "_-1", Departure.class)) )){
-				Id<TransitStopFacility> egressFacilityId = getPseudoNetworkTransitStopFacilityId(otpEgressFacility.getId(), tlId, tr.getId());
-				egressFacility = transitSchedule.getFacilities().get(egressFacilityId);
+		AgencyAndId otpTripId = backTrip.getId();
+		long scheduledOTPTripArrivalTime = timeSeconds - dayStartSeconds;
+		for(int d = TripDepartureIndex.FIRST_DAY; d <= TripDepartureIndex.LAST_DAY; d++){
+			TripDepartureIndex.Entry entry = tripDepartureIndex.get(otpTripId, d);
+			if(entry == null){
+				continue;
 			}
-			if(tr.getDepartures().containsKey(Id.create(backTrip.getId().toString() + "_0", Departure.class))) {
-				double scheduledMatsimDepartureArrivalTime = tr.getDepartures().get(
-						Id.create(backTrip.getId().toString() + "_0", Departure.class)).getDepartureTime() +
-						tr.getStop(egressFacility).getArrivalOffset();
-				//Ignore possible rounding errors
-				if(Math.abs(scheduledMatsimDepartureArrivalTime - scheduledOTPTripArrivalTime.getTimeInMillis()/1000) < 0.1) {
-					trId = tr.getId();
-					return tsf.createTransitRoute(trId, null , emptyList, null);
-				}
-			} else if (tr.getDepartures().containsKey(Id.create(backTrip.getId().toString() + "_1", Departure.class))) {
-				double scheduledMatsimDepartureArrivalTime = tr.getDepartures().get(
-						Id.create(backTrip.getId().toString() + "_1", Departure.class)).getDepartureTime() +
-						tr.getStop(egressFacility).getArrivalOffset();
-				//Ignore possible rounding errors
-				if(Math.abs(scheduledMatsimDepartureArrivalTime - scheduledOTPTripArrivalTime.getTimeInMillis()/1000) < 0.1) {
-					trId = tr.getId();
-					return tsf.createTransitRoute(trId, null , emptyList, null);
-				}
-			} else if (tr.getDepartures().containsKey(Id.create(backTrip.getId().toString() + "_-1", Departure.class))){
-				double scheduledMatsimDepartureArrivalTime = tr.getDepartures().get(
-						Id.create(backTrip.getId().toString() + "_-1", Departure.class)).getDepartureTime() +
-						tr.getStop(egressFacility).getArrivalOffset();
-				//Ignore possible rounding errors
-				if(Math.abs(scheduledMatsimDepartureArrivalTime - scheduledOTPTripArrivalTime.getTimeInMillis()/1000) < 0.1) {
-					trId = tr.getId();
-					return tsf.createTransitRoute(trId, null , emptyList, null);
+			Id<TransitStopFacility> egressFacilityId = otpEgressFacility.getId();
+			if(useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+				// The TransitRoute contains the otp trip searched for, so it should serve the egress stop
+				TransitStopFacility egressFacility = pseudoNetworkStopTable.getFacility(entry.getRoute(), otpEgressFacility.getId());
+				if(egressFacility == null){
+					continue;
 				}
+				egressFacilityId = egressFacility.getId();
+			}
+			double scheduledMatsimDepartureArrivalTime = entry.getArrivalTime(egressFacilityId);
+			//Ignore possible rounding errors
+			if(Math.abs(scheduledMatsimDepartureArrivalTime - scheduledOTPTripArrivalTime) < 0.1) {
+				return entry;
 			}
 		}
 		log.info("No Matsim TransitRoute found for otp trip id \"" + 
-				backTrip.getId().toString() + "\" of TransitLine \"" + backTrip.getRoute().getId().toString() + "\". \nMaybe SCHEDULE_END_TIME_ON_FOLLOWING_DATE is too early, so the trip is not extracted into the Matsim transit schedule.");
-		return tsf.createTransitRoute(trId, null , emptyList, null);
+				otpTripId + "\" of TransitLine \"" + backTrip.getRoute().getId().toString() + "\". \nMaybe SCHEDULE_END_TIME_ON_FOLLOWING_DATE is too early, so the trip is not extracted into the Matsim transit schedule.");
+		return null;
 	}
 	
 	private Leg createStreetNetworkNonTransitLeg(String mode, List<Id<Link>> linksTraversed, 
@@ -577,8 +1170,4 @@ public class OTPRoutingModule implements RoutingModule {
 		return leg;
 	}
 
-	private TransitLine createLine(Trip backTrip) {
-		return tsf.createTransitLine(Id.create(backTrip.getRoute().getId().toString(), TransitLine.class));
-	}
-
 }
@@ -4,39 +4,80 @@ import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.listener.ShutdownListener;
 import org.matsim.core.router.MainModeIdentifier;
 import org.matsim.core.router.TripRouter;
 import org.matsim.core.utils.geometry.CoordinateTransformation;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
-import org.opentripplanner.routing.graph.Graph;
-import org.opentripplanner.routing.impl.InputStreamGraphSource;
 import org.opentripplanner.routing.services.GraphService;
 
+import org.apache.log4j.Logger;
+
 import javax.inject.Provider;
-import java.io.File;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Add the factory as ControlerListener, so the RoutingTracer (if any) is
+ * closed when the Controler shuts down.
+ */
 public final class OTPTripRouterFactory implements
-		Provider<TripRouter> {
+		Provider<TripRouter>, ShutdownListener {
 	// TripRouterFactory: Matsim interface for routers
 	
-	private CoordinateTransformation ct;
-	private String day;
-	private String timeZone;
-    private TransitSchedule transitSchedule;
-	private Network matsimNetwork;
-	private boolean chooseRandomlyAnOtpParameterProfile;
-	private int numOfAlternativeItinerariesToChooseFromRandomly;
-	private final GraphService graphservice;
+	private final static Logger log = Logger.getLogger(OTPTripRouterFactory.class);
+
+	private final CoordinateTransformation ct;
+	private final String day;
+	private final String timeZone;
+    private final TransitSchedule transitSchedule;
+    private final TripDepartureIndex tripDepartureIndex;
+    private final PseudoNetworkStopTable pseudoNetworkStopTable;
+	private final Network matsimNetwork;
+	private final boolean chooseRandomlyAnOtpParameterProfile;
+	private final int numOfAlternativeItinerariesToChooseFromRandomly;
+	// might still be loading until the routing module is created
+	private final CompletableFuture<GraphService> graphservice;
     private final boolean useCreatePseudoNetworkInsteadOfOtpPtNetwork;
+    private RouteCache routeCache = null;
+    private RoutingTracer routingTracer = null;
+    private SearchBudget searchBudget = null;
+    private GraphIdMapping graphIdMapping = null;
+    private boolean snapToStreetVertices = false;
+    private ExtractionArea extractionArea = null;
+    // created by the first call of get() and shared by all TripRouters
+    private OTPRoutingModule routingModule = null;
 
 	public OTPTripRouterFactory(TransitSchedule transitSchedule, Network matsimNetwork, 
 			CoordinateTransformation ct, String day, String timeZone, String graphFile,
 			boolean chooseRandomlyAnOtpParameterProfile, 
 			int numOfAlternativeItinerariesToChooseFromRandomly,
 			boolean useCreatePseudoNetworkInsteadOfOtpPtNetwork) {
-		graphservice = createGraphService(graphFile);
+		this(transitSchedule, matsimNetwork, ct, day, timeZone, GraphRegistry.acquireAsync(graphFile), 
+				chooseRandomlyAnOtpParameterProfile, numOfAlternativeItinerariesToChooseFromRandomly, 
+				useCreatePseudoNetworkInsteadOfOtpPtNetwork);
+	}
+
+	/**
+	 * @param graphService : the otp graph, possibly still loading (see GraphRegistry.acquireAsync()). 
+	 * The first call of get() waits until it is loaded.
+	 */
+	public OTPTripRouterFactory(TransitSchedule transitSchedule, Network matsimNetwork, 
+			CoordinateTransformation ct, String day, String timeZone, CompletableFuture<GraphService> graphService,
+			boolean chooseRandomlyAnOtpParameterProfile, 
+			int numOfAlternativeItinerariesToChooseFromRandomly,
+			boolean useCreatePseudoNetworkInsteadOfOtpPtNetwork) {
+		// checked here already, the OTPRoutingModule is only created by the first TripRouter
+		if(numOfAlternativeItinerariesToChooseFromRandomly < 1){
+			throw new IllegalArgumentException("numOfAlternativeItinerariesToChooseFromRandomly has to be at least 1, but is " + 
+					numOfAlternativeItinerariesToChooseFromRandomly);
+		}
+		this.graphservice = graphService;
 		this.transitSchedule = transitSchedule;
+		this.tripDepartureIndex = new TripDepartureIndex(transitSchedule);
+		this.pseudoNetworkStopTable = useCreatePseudoNetworkInsteadOfOtpPtNetwork ? 
+				new PseudoNetworkStopTable(transitSchedule) : null;
 		this.matsimNetwork = matsimNetwork;
 		this.ct = ct;
 		this.day = day;
@@ -46,17 +87,167 @@ public final class OTPTripRouterFactory implements
 		this.useCreatePseudoNetworkInsteadOfOtpPtNetwork = useCreatePseudoNetworkInsteadOfOtpPtNetwork;
 	}
 
+    /**
+     * @return the GraphService shared by all components of this JVM using the 
+     * same otp graph, see GraphRegistry. The reference is held until 
+     * GraphRegistry.release() is called.
+     */
     public static GraphService createGraphService(String graphFile) {
-		GraphService graphService = new GraphService();
-		graphService.registerGraph("", InputStreamGraphSource.newFileGraphSource("", new File(graphFile), Graph.LoadLevel.FULL));
-		return graphService;
+		return GraphRegistry.acquire(graphFile);
+    }
+
+
+    /**
+     * Enables caching of otp routing results. Has to be called before the 
+     * first TripRouter is created. With the cache otp calculates all 
+     * numOfAlternativeItinerariesToChooseFromRandomly itinerary alternatives
+     * at once and later routing requests (e.g. by ReRoute) for the same origin,
+     * destination, departure time bin and OtpParameterProfile choose one of 
+     * the cached alternatives randomly instead of running otp again.
+     * 
+     * @param maxEntries : maximum number of cached routing results
+     * @param maxBytes : maximum estimated heap size of all cached legs
+     * @param departureTimeBinSeconds : routing requests with origin and destination
+     * snapped to the same otp vertices and departing in the same time bin share
+     * routing results
+     */
+    public synchronized void enableRouteCache(int maxEntries, long maxBytes, int departureTimeBinSeconds) {
+    	checkRoutingModuleNotCreated();
+    	this.routeCache = new RouteCache(maxEntries, maxBytes, departureTimeBinSeconds);
+    }
+
+    public RouteCache getRouteCache() {
+    	return routeCache;
+    }
+
+    /**
+     * Enables tracing of routing requests. Has to be called before the first
+     * TripRouter is created. Tracing is off by default, the otp routing
+     * requests and paths are not printed to the console. The RoutingTracer is
+     * closed by notifyShutdown().
+     */
+    public synchronized void setRoutingTracer(RoutingTracer routingTracer) {
+    	checkRoutingModuleNotCreated();
+    	this.routingTracer = routingTracer;
+    }
+
+    /**
+     * Limits the otp search of every routing request. Has to be called before
+     * the first TripRouter is created. By default otp searches are not limited.
+     */
+    public synchronized void setSearchBudget(SearchBudget searchBudget) {
+    	checkRoutingModuleNotCreated();
+    	this.searchBudget = searchBudget;
     }
 
+    /**
+     * Translates the street edges of otp paths into the links given by the
+     * GraphIdMapping written by ExtractNetwork. Has to be called before the 
+     * first TripRouter is created. By default the link ids are the edge ids 
+     * of the street edges. The mapping has to be extracted from the graph
+     * routed on, which is checked when the graph is loaded.
+     */
+    public synchronized void setGraphIdMapping(GraphIdMapping graphIdMapping) {
+    	checkRoutingModuleNotCreated();
+    	this.graphIdMapping = graphIdMapping;
+    }
+
+    /**
+     * Routes from and to the otp street vertices nearest to the facilities
+     * instead of letting otp link the facility coordinates into the street 
+     * graph for every routing request. Faster, but the access and egress legs 
+     * start and end at the nearest vertex instead of the nearest point of the
+     * nearest edge. Has to be called before the first TripRouter is created. 
+     * Off by default.
+     */
+    public synchronized void setSnapToStreetVertices(boolean snapToStreetVertices) {
+    	checkRoutingModuleNotCreated();
+    	this.snapToStreetVertices = snapToStreetVertices;
+    }
+
+    /**
+     * Teleports routing requests from or to facilities outside the area the
+     * scenario was extracted from (see ReadGraph.setExtractionArea()) without
+     * an otp search. Has to be called before the first TripRouter is created.
+     * Paths leaving the extracted scenario are rejected in any case (see 
+     * OTPRoutingModule.getNumberOfPathsLeavingScenario()).
+     */
+    public synchronized void setExtractionArea(ExtractionArea extractionArea) {
+    	checkRoutingModuleNotCreated();
+    	this.extractionArea = extractionArea;
+    }
+
+    private void checkRoutingModuleNotCreated() {
+    	if(routingModule != null){
+    		throw new IllegalStateException("The OTPRoutingModule shared by all TripRouters was already created.");
+    	}
+    }
+
+    /**
+     * @return the OTPRoutingModule shared by all TripRouters created by this factory
+     */
+    public synchronized OTPRoutingModule getRoutingModule() {
+    	if(routingModule == null){
+    		GraphService graphService = getGraphService();
+    		if(graphIdMapping != null){
+    			checkGraphIdMapping(graphService);
+    		}
+    		GraphLookupTables graphLookupTables = graphIdMapping == null ? 
+    				new GraphLookupTables(graphService.getRouter().graph, transitSchedule, matsimNetwork) : 
+    				new GraphLookupTables(graphService.getRouter().graph, transitSchedule, graphIdMapping);
+    		routingModule = new OTPRoutingModule(graphService, transitSchedule,
+    				tripDepartureIndex, graphLookupTables, pseudoNetworkStopTable, matsimNetwork, day, timeZone, ct, 
+    				chooseRandomlyAnOtpParameterProfile, numOfAlternativeItinerariesToChooseFromRandomly, 
+    				useCreatePseudoNetworkInsteadOfOtpPtNetwork, routeCache, routingTracer, searchBudget, 
+    				snapToStreetVertices, extractionArea);
+    	}
+    	return routingModule;
+    }
+
+    /**
+     * Rejects a GraphIdMapping extracted from another graph (or another 
+     * version of the graph), its edge ids would be translated into links of 
+     * another network.
+     */
+    private void checkGraphIdMapping(GraphService graphService) {
+    	String graphKey = GraphRegistry.getKey(graphService);
+    	if(graphIdMapping.getGraphKey() == null || graphKey == null){
+    		log.warn("Cannot check whether the GraphIdMapping belongs to the otp graph, the graph is unknown to the GraphRegistry.");
+    	} else if(!graphIdMapping.getGraphKey().equals(graphKey)){
+    		throw new IllegalStateException("The GraphIdMapping was extracted from the otp graph " + 
+    				graphIdMapping.getGraphKey() + ", but the routing uses " + graphKey + 
+    				". Extract the network again.");
+    	}
+    }
+
+    /**
+     * Waits until the otp graph is loaded.
+     */
+    private GraphService getGraphService() {
+    	if(!graphservice.isDone()){
+    		log.info("Waiting for the otp graph to be loaded...");
+    		long start = System.nanoTime();
+    		graphservice.join();
+    		log.info("Waited " + (System.nanoTime() - start) / 1000000 + " ms for the otp graph.");
+    	}
+    	return graphservice.join();
+    }
+
+    /**
+     * Closes the RoutingTracer, so the end of the trace is written.
+     */
+    @Override
+    public synchronized void notifyShutdown(ShutdownEvent event) {
+    	if(routingTracer != null){
+    		routingTracer.close();
+    	}
+    }
 
     @Override
 	public TripRouter get() {
 		TripRouter tripRouter = new TripRouter();
-		// OtpRoutingModule uses the modes teleport_begin_or_end and teleport_transit_stop_area
+		// OtpRoutingModule uses the modes teleport_begin_or_end, teleport_transit_stop_area 
+		// and teleport_search_budget_exceeded
 		// -> new modes whose main mode is unknown
 		// -> return main mode pt
 		tripRouter.setMainModeIdentifier(new MainModeIdentifier(){
@@ -66,7 +257,8 @@ public final class OTPTripRouterFactory implements
 				String mode = ((Leg) tripElements.get( 0 )).getMode();
 				if(mode.equals(TransportMode.transit_walk) || 
 						mode.equals(OTPRoutingModule.TELEPORT_BEGIN_END) || 
-						mode.equals(OTPRoutingModule.TELEPORT_TRANSIT_STOP_AREA)
+						mode.equals(OTPRoutingModule.TELEPORT_TRANSIT_STOP_AREA) || 
+						mode.equals(OTPRoutingModule.TELEPORT_SEARCH_BUDGET_EXCEEDED)
 								// add walk and bike because they should be routed using otp, too
 								|| mode.equals(TransportMode.walk)
 								|| mode.equals(TransportMode.bike)
@@ -78,10 +270,7 @@ public final class OTPTripRouterFactory implements
 			}
 			
 		});
-		tripRouter.setRoutingModule("pt", new OTPRoutingModule(graphservice, transitSchedule,
-				matsimNetwork, day, timeZone, ct, chooseRandomlyAnOtpParameterProfile,
-				numOfAlternativeItinerariesToChooseFromRandomly, 
-				useCreatePseudoNetworkInsteadOfOtpPtNetwork));
+		tripRouter.setRoutingModule("pt", getRoutingModule());
 		return tripRouter;
 	}
 	
@@ -17,7 +17,7 @@ package core;
  * @author gleich
  *
  */
-enum OtpParameterProfile {
+public enum OtpParameterProfile {
 	
 	Pt_and_Walk (true, false),
 	Pt_and_Bike (false, true),
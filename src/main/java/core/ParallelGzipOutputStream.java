@@ -0,0 +1,174 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream compressing blocks of the written data concurrently.
+ * Every block is compressed into a gzip member of its own and the members are
+ * written in the order of the blocks. A file of concatenated gzip members is
+ * a valid gzip file (RFC 1952) which is read by GZIPInputStream, gunzip and
+ * the matsim readers like a single member file, it is only slightly larger.
+ *
+ * At most two blocks per thread of the executor are held in memory.
+ */
+public final class ParallelGzipOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	private final OutputStream out;
+	private final Executor executor;
+	private final int blockSize;
+	private final int maxPendingBlocks;
+	private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+	private byte[] block;
+	private int blockLength = 0;
+	private long bytesWritten = 0;
+	private boolean closed = false;
+
+	/**
+	 * Compresses blocks of DEFAULT_BLOCK_SIZE on the common ForkJoinPool.
+	 */
+	public ParallelGzipOutputStream(OutputStream out) {
+		this(out, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism(), DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param parallelism number of threads of the executor available for compression
+	 */
+	public ParallelGzipOutputStream(OutputStream out, Executor executor, int parallelism, int blockSize) {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("blockSize has to be positive, but is " + blockSize);
+		}
+		this.out = out;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.maxPendingBlocks = 2 * Math.max(parallelism, 1);
+		this.block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		block[blockLength++] = (byte) b;
+		if (blockLength == blockSize) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+			if (blockLength == blockSize) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Compresses the data written so far and writes it to the underlying
+	 * stream. Every flush ends a gzip member, so flushing often reduces the
+	 * compression ratio.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (blockLength > 0) {
+			submitBlock();
+		}
+		while (!pendingBlocks.isEmpty()) {
+			writeFirstPendingBlock();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return number of compressed bytes written to the underlying stream
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		FutureTask<byte[]> task = new FutureTask<>(() -> compress(data, length));
+		executor.execute(task);
+		pendingBlocks.add(task);
+		block = new byte[blockSize];
+		blockLength = 0;
+		while (pendingBlocks.size() >= maxPendingBlocks) {
+			writeFirstPendingBlock();
+		}
+	}
+
+	private void writeFirstPendingBlock() throws IOException {
+		byte[] compressed;
+		try {
+			compressed = pendingBlocks.poll().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		out.write(compressed);
+		bytesWritten += compressed.length;
+	}
+
+	private static byte[] compress(byte[] data, int length) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(data, 0, length);
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Compresses the source file into the target file.
+	 *
+	 * @return number of bytes of the target file
+	 */
+	public static long compress(File source, File target) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(new FileOutputStream(target));
+		try (InputStream in = new FileInputStream(source)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				gzip.write(buffer, 0, n);
+			}
+		} finally {
+			gzip.close();
+		}
+		return gzip.getBytesWritten();
+	}
+}
@@ -0,0 +1,120 @@
+package core;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.MatsimNetworkReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.matsim.core.utils.geometry.transformations.TransformationFactory;
+import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.services.GraphService;
+import org.opentripplanner.routing.spt.GraphPath;
+
+import java.lang.management.ManagementFactory;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Measures run time and heap allocation of the conversion of otp paths into
+ * matsim legs (OTPRoutingModule.convertPathToLegs()). The otp paths are
+ * calculated once between randomly chosen TransitStopFacilities before the
+ * measurement, so the otp search itself is not included.
+ *
+ * Arguments: otpGraphDir networkFile transitScheduleFile scenarioCoordinateSystem
+ * date timeZone numberOfPaths numberOfRepetitions
+ */
+public class PathConversionBenchmark {
+
+	@SuppressWarnings("rawtypes")
+	public static void main(String[] args) throws ParseException {
+		String otpGraphDir = args[0];
+		String networkFile = args[1];
+		String transitScheduleFile = args[2];
+		String scenarioCoordinateSystem = args[3];
+		String date = args[4];
+		String timeZone = args[5];
+		int numberOfPaths = Integer.parseInt(args[6]);
+		int numberOfRepetitions = Integer.parseInt(args[7]);
+
+		Config config = ConfigUtils.createConfig();
+		config.transit().setUseTransit(true);
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		new MatsimNetworkReader(scenario.getNetwork()).readFile(networkFile);
+		new TransitScheduleReader(scenario).readFile(transitScheduleFile);
+
+		CoordinateTransformation ct = TransformationFactory.getCoordinateTransformation(
+				scenarioCoordinateSystem, TransformationFactory.WGS84);
+		GraphService graphService = OTPTripRouterFactory.createGraphService(otpGraphDir);
+		OTPRoutingModule routingModule = new OTPRoutingModule(graphService, scenario.getTransitSchedule(),
+				scenario.getNetwork(), date, timeZone, ct, false, 1, false);
+
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+		df.setTimeZone(TimeZone.getTimeZone(timeZone));
+		long departureTime = df.parse(date).getTime() / 1000 + 8 * 60 * 60;
+
+		List<TransitStopFacility> facilities = new ArrayList<>(scenario.getTransitSchedule().getFacilities().values());
+		Random random = new Random(4711);
+		List<GraphPath> paths = new ArrayList<>();
+		long numberOfStates = 0;
+		// give up if otp finds no path for most of the random requests
+		for (int attempt = 0; paths.size() < numberOfPaths && attempt < 100 * numberOfPaths; attempt++) {
+			Coord from = ct.transform(facilities.get(random.nextInt(facilities.size())).getCoord());
+			Coord to = ct.transform(facilities.get(random.nextInt(facilities.size())).getCoord());
+			TraverseModeSet modeSet = new TraverseModeSet();
+			modeSet.setTransit(true);
+			modeSet.setWalk(true);
+			RoutingRequest options = new RoutingRequest(modeSet);
+			options.setMaxWalkDistance(Double.MAX_VALUE);
+			options.setOptimize(OptimizeType.QUICK);
+			options.dateTime = departureTime;
+			options.from = new GenericLocation(from.getY(), from.getX());
+			options.to = new GenericLocation(to.getY(), to.getX());
+			options.setRoutingContext(graphService.getRouter().graph);
+			List<GraphPath> found = new AStar().getShortestPathTree(options).getPaths();
+			if (found != null && !found.isEmpty()) {
+				paths.add(found.get(0));
+				numberOfStates += found.get(0).states.size();
+			}
+		}
+
+		// warm up
+		for (GraphPath path: paths) {
+			routingModule.convertPathToLegs(path);
+		}
+
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocatedBytesBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+		long nanosBefore = System.nanoTime();
+		int numberOfLegs = 0;
+		for (int i = 0; i < numberOfRepetitions; i++) {
+			for (GraphPath path: paths) {
+				numberOfLegs += routingModule.convertPathToLegs(path).size();
+			}
+		}
+		long nanos = System.nanoTime() - nanosBefore;
+		long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytesBefore;
+
+		long convertedStates = numberOfStates * numberOfRepetitions;
+		long convertedLegs = numberOfLegs;
+		System.out.printf("Converted %d paths (%d states, %d legs) %d times in %.1f ms%n", paths.size(),
+				numberOfStates, numberOfLegs / numberOfRepetitions, numberOfRepetitions, nanos / 1e6);
+		System.out.printf("Time per state: %.1f ns%n", (double) nanos / convertedStates);
+		System.out.printf("Allocated bytes per state: %.1f, per leg: %.1f%n",
+				(double) allocatedBytes / convertedStates, (double) allocatedBytes / convertedLegs);
+		System.out.printf("Allocation rate: %.1f MB/s%n", allocatedBytes / 1e6 / (nanos / 1e9));
+	}
+
+}
@@ -0,0 +1,79 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * CreatePseudoNetwork splits TransitStopFacilities served by TransitRoutes
+ * with different links into separate facilities whose ids have ".1", ".2"
+ * etc. added to the original (otp) stop id. This table maps the original otp
+ * stop id and a TransitRoute to the facility actually served by the
+ * TransitRoute. It has to be built after CreatePseudoNetwork has run (e.g.
+ * from a TransitSchedule read from a file written by ExtractNetwork) and is
+ * never modified afterwards, so it can be shared by all OTPRoutingModules.
+ */
+public final class PseudoNetworkStopTable {
+
+	private final static Logger log = Logger.getLogger(PseudoNetworkStopTable.class);
+
+	private final Map<TransitRoute, Map<Id<TransitStopFacility>, TransitStopFacility>> facilitiesByRoute =
+			new IdentityHashMap<>();
+
+	public PseudoNetworkStopTable(TransitSchedule transitSchedule) {
+		Map<Id<TransitStopFacility>, Id<TransitStopFacility>> otpStopIds = new HashMap<>();
+		for (TransitStopFacility facility: transitSchedule.getFacilities().values()) {
+			otpStopIds.put(facility.getId(), getOtpStopId(facility.getId(), transitSchedule));
+		}
+		int nEntries = 0;
+		for (TransitLine line: transitSchedule.getTransitLines().values()) {
+			for (TransitRoute route: line.getRoutes().values()) {
+				Map<Id<TransitStopFacility>, TransitStopFacility> facilities = new HashMap<>();
+				for (TransitRouteStop stop: route.getStops()) {
+					facilities.put(otpStopIds.get(stop.getStopFacility().getId()), stop.getStopFacility());
+				}
+				facilitiesByRoute.put(route, facilities);
+				nEntries += facilities.size();
+			}
+		}
+		log.info("Pseudo network stop table with " + nEntries + " entries for " + facilitiesByRoute.size() +
+				" TransitRoutes created.");
+	}
+
+	/**
+	 * @return the facility created by CreatePseudoNetwork for the otp stop
+	 * which is served by the TransitRoute or null if the TransitRoute does
+	 * not serve the otp stop
+	 */
+	public TransitStopFacility getFacility(TransitRoute route, Id<TransitStopFacility> otpStopId) {
+		Map<Id<TransitStopFacility>, TransitStopFacility> facilities = facilitiesByRoute.get(route);
+		return facilities == null ? null : facilities.get(otpStopId);
+	}
+
+	/**
+	 * Removes the addition ".1", ".2" etc. made by CreatePseudoNetwork, if
+	 * the facility with the remaining id exists.
+	 */
+	private static Id<TransitStopFacility> getOtpStopId(Id<TransitStopFacility> facilityId, TransitSchedule transitSchedule) {
+		String id = facilityId.toString();
+		int separator = id.lastIndexOf('.');
+		if (separator <= 0 || separator == id.length() - 1) {
+			return facilityId;
+		}
+		for (int i = separator + 1; i < id.length(); i++) {
+			if (!Character.isDigit(id.charAt(i))) {
+				return facilityId;
+			}
+		}
+		Id<TransitStopFacility> otpStopId = Id.create(id.substring(0, separator), TransitStopFacility.class);
+		return transitSchedule.getFacilities().containsKey(otpStopId) ? otpStopId : facilityId;
+	}
+}
@@ -26,28 +26,37 @@ import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.edgetype.PatternHop;
-import org.opentripplanner.routing.edgetype.PreAlightEdge;
-import org.opentripplanner.routing.edgetype.PreBoardEdge;
 import org.opentripplanner.routing.edgetype.StreetEdge;
-import org.opentripplanner.routing.edgetype.StreetTransitLink;
-import org.opentripplanner.routing.edgetype.TransitBoardAlight;
 import org.opentripplanner.routing.edgetype.TripPattern;
 import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.opentripplanner.routing.vertextype.IntersectionVertex;
 import org.opentripplanner.routing.vertextype.TransitStop;
 
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * TODO: 
@@ -62,21 +71,139 @@ import java.util.TimeZone;
  */
 public class ReadGraph implements Runnable {
 
+    // day offsets of the dates whose otp trips are saved in the schedule of a date
+    private static final int DATE = 0;
+    private static final int FOLLOWING_DATE = 1;
+    private static final int PREVIOUS_DATE = -1;
+
     private GraphService graphService;
     private CoordinateTransformation ct;
-    private Set<AgencyAndId> serviceIdsOnDate;
-    private Set<AgencyAndId> serviceIdsOnFollowingDate;
     private final int scheduleEndTimeOnFollowingDate;
-    private Set<AgencyAndId> serviceIdsOnPreviousDate;
     private Scenario scenario;
-    private Set<String> patternCodesProcessed = new HashSet<String>();
+    // the schedule of the date given in the constructor, written into the scenario
+    private DatedSchedule schedule;
+    // only the first pattern with a given code is converted
+    private List<TripPattern> patternsToConvert = null;
     private Set<String> otpTransitTraverseModes = new HashSet<String>();
     private final boolean useCreatePseudoNetworkInsteadOfOtpPtNetwork;
+    // collected by the single pass over all otp vertices
+    private final List<StreetEdge> streetEdges = new ArrayList<StreetEdge>();
+    private final Set<TripPattern> tripPatterns = new LinkedHashSet<TripPattern>();
+    private boolean tripPatternsCollected = false;
+    // number of TripPatterns the schedule was converted from, read from the stage cache if it is cached
+    private int numberOfTripPatterns;
+    private ExtractionArea area = null;
+    // first and last stop index of the TripPatterns clipped to the area, null without area
+    private Map<TripPattern, int[]> stopRangeByPattern = null;
+    private Node[] nodeByVertexIndex;
+    private GraphIdMapping graphIdMapping;
+    private int numberOfThreads = 1;
+    private StreamingScenarioWriter streamingWriter = null;
+    private boolean vehicleBlocking = false;
+    private int minimumLayoverTime = 5*60;
+    private final String dateString;
+    private final String timeZoneString;
+    private ExtractionStageCache stageCache = null;
+    private String targetCoordinateSystem;
+    // the elements of the network stages, only collected in order to write them into the stage cache
+    private List<Node> streetNodes = null;
+    private List<Link> streetLinks = null;
+    private List<Node> ptNodes = null;
+    private List<Link> ptLinks = null;
+    private final static Logger log = Logger.getLogger(ReadGraph.class);
 
     public Scenario getScenario() {
         return scenario;
     }
 
+    /**
+     * @return the mapping of otp vertices and street edges to the nodes and 
+     * links of the extracted street network
+     */
+    public GraphIdMapping getGraphIdMapping() {
+    	return graphIdMapping;
+    }
+
+    /**
+     * Number of threads converting the otp TripPatterns into the 
+     * TransitSchedule, 1 (default) converts them sequentially. The resulting
+     * scenario does not depend on the number of threads.
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+    	if(numberOfThreads < 1){
+    		throw new IllegalArgumentException("numberOfThreads has to be at least 1, but is " + numberOfThreads);
+    	}
+    	this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Writes the network, the TransitSchedule and the transit vehicles to the
+     * StreamingScenarioWriter while they are extracted. Street links, 
+     * TransitLines and Vehicles are not kept in the scenario, the TransitLines
+     * are converted and written one after the other. Cannot be combined with
+     * useCreatePseudoNetworkInsteadOfOtpPtNetwork which needs the complete
+     * TransitSchedule. The caller closes the writer after run().
+     */
+    public void setStreamingWriter(StreamingScenarioWriter streamingWriter) {
+    	this.streamingWriter = streamingWriter;
+    }
+
+    /**
+     * Chains the departures into vehicle blocks (see VehicleBlocking) instead
+     * of creating one vehicle per departure. Departures of otp trips with a 
+     * GTFS block id share the vehicle of their block, all other departures 
+     * of a mode are served by a vehicle waiting at their first stop if 
+     * possible. Cannot be combined with the StreamingScenarioWriter.
+     * 
+     * Only reduces the size of the transit vehicles file, the mobsim still
+     * creates a vehicle per departure and has not been verified with shared
+     * vehicle ids (see VehicleBlocking).
+     */
+    public void setVehicleBlocking(boolean vehicleBlocking) {
+    	this.vehicleBlocking = vehicleBlocking;
+    	if(vehicleBlocking){
+    		log.warn("Vehicle blocking only reduces the transit vehicles file. Several departures share a vehicle id," +
+    				" which has not been verified with a mobsim run.");
+    	}
+    }
+
+    /**
+     * Minimum time in seconds between the arrival of a vehicle at the last
+     * stop of a departure and its next departure if the departures are 
+     * chained without a GTFS block id, default 5 minutes.
+     */
+    public void setMinimumLayoverTime(int minimumLayoverTime) {
+    	if(minimumLayoverTime < 0){
+    		throw new IllegalArgumentException("minimumLayoverTime cannot be negative, but is " + minimumLayoverTime);
+    	}
+    	this.minimumLayoverTime = minimumLayoverTime;
+    }
+
+    /**
+     * Only extracts the street network and the TransitStops within the area.
+     * TripPatterns leaving the area are truncated to their longest sequence 
+     * of consecutive stops within the area, consistently in the pt network 
+     * and in the TransitSchedule. TripPatterns with less than two 
+     * consecutive stops within the area are not extracted.
+     */
+    public void setExtractionArea(ExtractionArea area) {
+    	this.area = area;
+    }
+
+    /**
+     * Reads the street network, the pt network and the schedule from the 
+     * stage cache if they were extracted with the same parameters before and
+     * writes the stages extracted into the stage cache. Only works with a 
+     * GraphService acquired from the GraphRegistry, which identifies the 
+     * graph, and cannot be combined with the StreamingScenarioWriter.
+     * 
+     * @param targetCoordinateSystem identifies the CoordinateTransformation of this ReadGraph in the stage keys
+     */
+    public void setStageCache(ExtractionStageCache stageCache, String targetCoordinateSystem) {
+    	this.stageCache = stageCache;
+    	this.targetCoordinateSystem = targetCoordinateSystem;
+    }
+
     /**
      * Usually otp trips on two consecutive days are saved, because for some 
      * agents their journey started on the first day might not finish before
@@ -101,26 +228,36 @@ public class ReadGraph implements Runnable {
         this.ct = ct;
         this.scheduleEndTimeOnFollowingDate = scheduleEndTimeOnFollowingDate;
         this.useCreatePseudoNetworkInsteadOfOtpPtNetwork = useCreatePseudoNetworkInsteadOfOtpPtNetwork;
-        TimeZone timeZone = TimeZone.getTimeZone(timeZoneString);
-        Date dateDate;
-        Calendar dateCalendar = Calendar.getInstance(timeZone);
-        Calendar followingDateCalendar = Calendar.getInstance(timeZone);
-        Calendar previousDateCalendar = Calendar.getInstance(timeZone);
+        this.dateString = dateString;
+        this.timeZoneString = timeZoneString;
+        // fail early on an invalid date
+        parseDate(dateString, timeZoneString);
+    }
+
+    private static Date parseDate(String dateString, String timeZoneString) {
 		try {
 			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-			df.setTimeZone(timeZone);
-			dateDate = df.parse(dateString);
+			df.setTimeZone(TimeZone.getTimeZone(timeZoneString));
+			return df.parse(dateString);
 		} catch (ParseException e) {
 			throw new RuntimeException(e);
 		}
-		dateCalendar.setTime(dateDate);
-		serviceIdsOnDate = graphService.getRouter().graph.getCalendarService().getServiceIdsOnDate(new ServiceDate(dateCalendar));
-		followingDateCalendar.setTime(dateDate);
-		followingDateCalendar.add(Calendar.DAY_OF_MONTH, 1);
-		serviceIdsOnFollowingDate = graphService.getRouter().graph.getCalendarService().getServiceIdsOnDate(new ServiceDate(followingDateCalendar));
-		previousDateCalendar.setTime(dateDate);
-		previousDateCalendar.add(Calendar.DAY_OF_MONTH, -1);
-		serviceIdsOnPreviousDate = graphService.getRouter().graph.getCalendarService().getServiceIdsOnDate(new ServiceDate(followingDateCalendar));
+    }
+
+    /**
+     * @return the otp service ids operating on the date moved by dayOffset days
+     */
+    private Set<AgencyAndId> getServiceIds(String dateString, int dayOffset) {
+    	Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(timeZoneString));
+    	calendar.setTime(parseDate(dateString, timeZoneString));
+    	calendar.add(Calendar.DAY_OF_MONTH, dayOffset);
+    	return graphService.getRouter().graph.getCalendarService().getServiceIdsOnDate(new ServiceDate(calendar));
+    }
+
+    private DatedSchedule createDatedSchedule(Scenario scenario, String dateString) {
+    	return new DatedSchedule(scenario, getServiceIds(dateString, DATE), 
+    			getServiceIds(dateString, FOLLOWING_DATE), getServiceIds(dateString, PREVIOUS_DATE), 
+    			vehicleBlocking ? new VehicleBlocking(minimumLayoverTime) : null);
     }
 
     public void run() {
@@ -128,19 +265,205 @@ public class ReadGraph implements Runnable {
         ptConfig.transit().setUseTransit(true);
 
         scenario = ScenarioUtils.createScenario(ptConfig);
+        schedule = createDatedSchedule(scenario, dateString);
+        if(streamingWriter != null && useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+        	throw new IllegalStateException("The pseudo network requires the complete TransitSchedule and cannot be streamed.");
+        }
+        if(streamingWriter != null && vehicleBlocking){
+        	throw new IllegalStateException("Vehicle blocking requires the complete TransitSchedule and cannot be combined with streaming.");
+        }
+        if(streamingWriter != null && stageCache != null){
+        	throw new IllegalStateException("The stage cache requires the extracted scenario and cannot be combined with streaming.");
+        }
+        long start = System.nanoTime();
     	initialize();
-    	
-        extractStreetNetwork();
-        extractPtNetworkAndTransitStops();
-        extractPtSchedule();
+
+    	String streetNetworkKey = null;
+    	String ptNetworkKey = null;
+    	String scheduleKey = null;
+    	if(stageCache != null){
+    		String graphKey = GraphRegistry.getKey(graphService);
+    		if(graphKey == null){
+    			log.warn("The GraphService was not acquired from the GraphRegistry, so the stage cache is not used.");
+    		} else {
+    			streetNetworkKey = graphKey + "|" + targetCoordinateSystem + (area == null ? "" : "|" + area);
+    			ptNetworkKey = streetNetworkKey + "|" + useCreatePseudoNetworkInsteadOfOtpPtNetwork;
+    			scheduleKey = ptNetworkKey + "|" + dateString + "|" + timeZoneString + "|" + scheduleEndTimeOnFollowingDate + 
+    					"|" + (vehicleBlocking ? minimumLayoverTime : -1);
+    		}
+    	}
+    	boolean streetNetworkCached = streetNetworkKey != null && 
+    			stageCache.read(ExtractionStageCache.Stage.STREET_NETWORK, streetNetworkKey, this::readStreetNetworkStage);
+    	boolean ptNetworkCached = ptNetworkKey != null && 
+    			stageCache.read(ExtractionStageCache.Stage.PT_NETWORK, ptNetworkKey, this::readPtNetworkStage);
+    	// the TransitStopFacilities of the pt network stage are needed to read the schedule stage
+    	boolean scheduleCached = ptNetworkCached && 
+    			stageCache.read(ExtractionStageCache.Stage.SCHEDULE, scheduleKey, this::readScheduleStage);
+    	if(streetNetworkKey != null){
+    		streetNodes = new ArrayList<Node>();
+    		streetLinks = new ArrayList<Link>();
+    		ptNodes = new ArrayList<Node>();
+    		ptLinks = new ArrayList<Link>();
+    		start = logPhase("Stage cache read", start);
+    	}
+
+    	if(!(streetNetworkCached && ptNetworkCached && scheduleCached)){
+    		extractNodesAndTransitStops(!streetNetworkCached, !ptNetworkCached);
+    		start = logPhase("Nodes and TransitStopFacilities extracted", start);
+    	}
+        if(!streetNetworkCached){
+        	extractStreetNetwork();
+        	start = logPhase("Street network extracted", start);
+        	if(streetNetworkKey != null){
+        		stageCache.write(ExtractionStageCache.Stage.STREET_NETWORK, streetNetworkKey, out -> {
+        			ScenarioCache.writeNodes(out, streetNodes);
+        			ScenarioCache.writeLinks(out, streetLinks);
+        		});
+        	}
+        }
+        if(!ptNetworkCached){
+        	if(!useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+        		extractPtNetwork();
+        		start = logPhase("Pt network extracted", start);
+        	}
+        	if(ptNetworkKey != null){
+        		stageCache.write(ExtractionStageCache.Stage.PT_NETWORK, ptNetworkKey, out -> {
+        			ScenarioCache.writeStopFacilities(out, scenario.getTransitSchedule().getFacilities().values());
+        			ScenarioCache.writeNodes(out, ptNodes);
+        			ScenarioCache.writeLinks(out, ptLinks);
+        		});
+        		scheduleCached = stageCache.read(ExtractionStageCache.Stage.SCHEDULE, scheduleKey, this::readScheduleStage);
+        	}
+        }
+        if(!scheduleCached){
+        	extractPtSchedule();
+        	numberOfTripPatterns = tripPatterns.size();
+        	start = logPhase("Pt schedule extracted", start);
+        	if(scheduleKey != null){
+        		stageCache.write(ExtractionStageCache.Stage.SCHEDULE, scheduleKey, out -> {
+        			out.writeInt(numberOfTripPatterns);
+        			ScenarioCache.writeTransitLines(out, scenario.getTransitSchedule().getTransitLines().values());
+        			ScenarioCache.writeVehicles(out, scenario.getTransitVehicles().getVehicles().values());
+        		});
+        	}
+        }
+        streetNodes = null;
+        streetLinks = null;
+        ptNodes = null;
+        ptLinks = null;
         
 		if(useCreatePseudoNetworkInsteadOfOtpPtNetwork){
 			CreatePseudoNetwork ptNetCreator = new CreatePseudoNetwork(scenario.getTransitSchedule(), 
 					scenario.getNetwork(), "PseudoPtNetwork");
 			ptNetCreator.createNetwork();
+			logPhase("Pseudo pt network created", start);
+		}
+		if(streamingWriter == null){
+			log.info("Extracted " + scenario.getNetwork().getNodes().size() + " nodes, " + 
+					scenario.getNetwork().getLinks().size() + " links, " + 
+					scenario.getTransitSchedule().getFacilities().size() + " TransitStopFacilities, " + 
+					scenario.getTransitSchedule().getTransitLines().size() + " TransitLines from " + 
+					numberOfTripPatterns + " otp TripPatterns" + (scheduleCached ? " (stage cache)." : "."));
 		}
     }
 
+    /**
+     * Extracts the schedules of further dates from the graph loaded for run(),
+     * sharing the street and pt network of the scenario. Each returned
+     * Scenario contains the TransitStopFacilities and vehicle types of the
+     * scenario and the TransitLines and vehicles of its date, the network is
+     * left empty. The dates are extracted in parallel using the number of
+     * threads set.
+     *
+     * @param dateStrings dates in the format yyyy-MM-dd, interpreted like the dateString of the constructor
+     * @return the scenarios in the order of the dateStrings
+     */
+    public Map<String, Scenario> extractSchedules(List<String> dateStrings) {
+    	if(scenario == null){
+    		throw new IllegalStateException("The network has to be extracted by run() first.");
+    	}
+    	if(useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+    		throw new IllegalStateException("The pseudo network depends on the TransitSchedule and cannot be shared between dates.");
+    	}
+    	long start = System.nanoTime();
+    	List<TripPattern> patterns = getPatternsToConvert();
+    	List<DatedSchedule> schedules = new ArrayList<DatedSchedule>(dateStrings.size());
+    	for(String date: dateStrings){
+    		Config ptConfig = ConfigUtils.createConfig();
+    		ptConfig.transit().setUseTransit(true);
+    		Scenario datedScenario = ScenarioUtils.createScenario(ptConfig);
+    		for(VehicleType vehType: scenario.getTransitVehicles().getVehicleTypes().values()){
+    			datedScenario.getTransitVehicles().addVehicleType(vehType);
+    		}
+    		for(TransitStopFacility stopFacility: scenario.getTransitSchedule().getFacilities().values()){
+    			datedScenario.getTransitSchedule().addStopFacility(stopFacility);
+    		}
+    		schedules.add(createDatedSchedule(datedScenario, date));
+    	}
+    	// parallelize over the dates, the TripPatterns of a date are converted one after the other
+    	ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+    	try {
+    		pool.submit(() -> schedules.parallelStream().forEach(target -> {
+    			for(PatternConversion conversion: convertTripPatterns(patterns, null, target)){
+    				mergeTripPattern(conversion, target);
+    			}
+    			if(target.vehicleBlocking != null){
+    				target.vehicleBlocking.assign(target.scenario.getTransitVehicles());
+    			}
+    		})).get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException(e);
+    	} catch (ExecutionException e) {
+    		throw new RuntimeException(e.getCause());
+    	} finally {
+    		pool.shutdown();
+    	}
+    	Map<String, Scenario> scenarioByDate = new LinkedHashMap<String, Scenario>();
+    	for(int i = 0; i < dateStrings.size(); i++){
+    		Scenario datedScenario = schedules.get(i).scenario;
+    		scenarioByDate.put(dateStrings.get(i), datedScenario);
+    		log.info("Extracted " + datedScenario.getTransitSchedule().getTransitLines().size() + " TransitLines and " +
+    				datedScenario.getTransitVehicles().getVehicles().size() + " vehicles for " + dateStrings.get(i) + ".");
+    	}
+    	logPhase("Schedules of " + dateStrings.size() + " dates extracted", start);
+    	return scenarioByDate;
+    }
+
+    /**
+     * @return the current time in order to measure the next phase
+     */
+    private static long logPhase(String phase, long start) {
+    	long now = System.nanoTime();
+    	log.info(phase + " in " + (now - start) / 1000000 + " ms.");
+    	return now;
+    }
+
+    private void readStreetNetworkStage(ScenarioCache.Input in) throws IOException {
+    	List<Node> nodes = ScenarioCache.readNodes(in, scenario.getNetwork());
+    	List<Link> links = ScenarioCache.readLinks(in, scenario.getNetwork());
+    	// the ids of street nodes and links are the otp vertex indices and edge ids
+    	graphIdMapping = new GraphIdMapping(nodes.size(), links.size());
+    	for(Node node: nodes){
+    		graphIdMapping.putNodeId(Integer.parseInt(node.getId().toString()), node.getId());
+    	}
+    	for(Link link: links){
+    		graphIdMapping.putLinkId(Integer.parseInt(link.getId().toString()), link.getId());
+    	}
+    }
+
+    private void readPtNetworkStage(ScenarioCache.Input in) throws IOException {
+    	ScenarioCache.readStopFacilities(in, scenario.getTransitSchedule());
+    	ScenarioCache.readNodes(in, scenario.getNetwork());
+    	ScenarioCache.readLinks(in, scenario.getNetwork());
+    }
+
+    private void readScheduleStage(ScenarioCache.Input in) throws IOException {
+    	numberOfTripPatterns = in.readInt();
+    	ScenarioCache.readTransitLines(in, scenario.getTransitSchedule());
+    	ScenarioCache.readVehicleList(in, scenario.getTransitVehicles());
+    }
+
     private void initialize() {
     	for(TraverseMode mode: TraverseMode.values()){
     		if(mode.isTransit()){
@@ -152,203 +475,405 @@ public class ReadGraph implements Runnable {
                 vehCapacity.setStandingRoom(50);
             	vehType.setCapacity(vehCapacity);
             	scenario.getTransitVehicles().addVehicleType(vehType);
+            	if(streamingWriter != null){
+            		streamingWriter.writeVehicleType(vehType);
+            	}
     		}
     	}
 	}
 
-	private void extractStreetNetwork() {
+    /**
+     * The only pass over all otp vertices: creates the nodes of the street 
+     * network and the TransitStopFacilities and collects the street edges and
+     * the TripPatterns (via their PatternHops) for the following phases.
+     */
+	private void extractNodesAndTransitStops(boolean extractStreetNodes, boolean extractTransitStops) {
         Network network = scenario.getNetwork();
-        for (Vertex v : graphService.getRouter().graph.getVertices()) {
-            if (v instanceof IntersectionVertex) {
-                // Can be an OSM node, but can also be a split OSM way to insert a transit stop.
-                Node n = network.getFactory().createNode(Id.create(v.getIndex(), Node.class), ct.transform(CoordUtils.createCoord(v.getX(), v.getY())));
-                network.addNode(n);
-            }
+        Graph graph = graphService.getRouter().graph;
+        if (extractStreetNodes) {
+        	graphIdMapping = new GraphIdMapping(graph.countVertices(), graph.countEdges());
+        	nodeByVertexIndex = new Node[graph.countVertices()];
         }
-        for (Vertex v : graphService.getRouter().graph.getVertices()) {
-            if (v instanceof IntersectionVertex) {
+        for (Vertex v : graph.getVertices()) {
+            if (area != null && !area.contains(v.getX(), v.getY())) {
+            	// the TripPatterns are clipped to the area after collecting them
+            	collectTripPatterns(v);
+            	continue;
+            }
+            if (v instanceof IntersectionVertex && extractStreetNodes) {
+                // Can be an OSM node, but can also be a split OSM way to insert a transit stop.
+                Id<Node> nodeId = Id.create(v.getIndex(), Node.class);
+                Node n = network.getFactory().createNode(nodeId, ct.transform(CoordUtils.createCoord(v.getX(), v.getY())));
+                if (streamingWriter == null) {
+                	network.addNode(n);
+                } else {
+                	streamingWriter.writeNode(n);
+                }
+                if (v.getIndex() >= nodeByVertexIndex.length) {
+                	nodeByVertexIndex = Arrays.copyOf(nodeByVertexIndex, Math.max(v.getIndex() + 1, 2 * nodeByVertexIndex.length));
+                }
+                nodeByVertexIndex[v.getIndex()] = n;
+                if (streetNodes != null) {
+                	streetNodes.add(n);
+                }
+                graphIdMapping.putNodeId(v.getIndex(), nodeId);
                 for (Edge e : v.getOutgoing()) {
                     if (e instanceof StreetEdge) {
-                        Node fromNode = network.getNodes().get(Id.create(e.getFromVertex().getIndex(), Node.class));
-                        Node toNode = network.getNodes().get(Id.create(e.getToVertex().getIndex(), Node.class));
-                        Link l = network.getFactory().createLink(Id.create(e.getId(), Link.class), fromNode, toNode);
-                        l.setFreespeed(((StreetEdge) e).getCarSpeed());
-                        l.setLength(e.getDistance());
-//                        System.out.println("link " + l.getId() + " StreetClass " + ((StreetEdge) e).getStreetClass());
-                        // set default capacity (independent from the road type because the road type is unknown)
-                        l.getCapacity(2000);
-                        
-                        network.addLink(l);
-                    } else if (e instanceof StreetTransitLink) {
-                        // Found a street transit link
+                    	streetEdges.add((StreetEdge) e);
                     }
                 }
+            } else if (v instanceof TransitStop && extractTransitStops) {
+            	extractTransitStop((TransitStop) v);
             }
+            collectTripPatterns(v);
+        }
+        tripPatternsCollected = true;
+	}
+
+	private void collectTripPatterns(Vertex v) {
+		for (Edge e : v.getOutgoing()) {
+			if (e instanceof PatternHop) {
+				tripPatterns.add(((PatternHop) e).getPattern());
+			}
+		}
+	}
+
+	/**
+	 * @return the TripPatterns to convert (only the first pattern with a given code) 
+	 */
+	private List<TripPattern> getPatternsToConvert() {
+		if(patternsToConvert == null){
+			if(!tripPatternsCollected){
+				// the pass over all vertices was skipped because all stages were cached
+				for (Vertex v : graphService.getRouter().graph.getVertices()) {
+					collectTripPatterns(v);
+				}
+				tripPatternsCollected = true;
+			}
+			clipTripPatterns();
+			Set<String> patternCodesProcessed = new HashSet<String>();
+			patternsToConvert = new ArrayList<TripPattern>();
+			for(TripPattern pattern: tripPatterns){
+				if(getStopRange(pattern) != null && patternCodesProcessed.add(pattern.code)){
+					patternsToConvert.add(pattern);
+				}
+			}
+		}
+		return patternsToConvert;
+	}
+
+	/**
+	 * Computes the stop ranges of all TripPatterns within the area once, 
+	 * before the TripPatterns are converted concurrently.
+	 */
+	private void clipTripPatterns() {
+		if(area == null || stopRangeByPattern != null){
+			return;
+		}
+		stopRangeByPattern = new HashMap<TripPattern, int[]>();
+		int nTruncated = 0;
+		for(TripPattern pattern: tripPatterns){
+			// longest sequence of consecutive stops within the area
+			int bestFirst = 0;
+			int bestLast = -1;
+			int first = -1;
+			for(int i = 0; i < pattern.getStops().size(); i++){
+				if(area.contains(pattern.getStops().get(i).getLon(), pattern.getStops().get(i).getLat())){
+					if(first < 0){
+						first = i;
+					}
+					if(i - first > bestLast - bestFirst){
+						bestFirst = first;
+						bestLast = i;
+					}
+				} else {
+					first = -1;
+				}
+			}
+			if(bestLast > bestFirst){
+				stopRangeByPattern.put(pattern, new int[]{bestFirst, bestLast});
+				if(bestLast - bestFirst < pattern.getStops().size() - 1){
+					nTruncated++;
+				}
+			}
+		}
+		log.info("Clipped " + tripPatterns.size() + " otp TripPatterns to the extraction area: " + 
+				(tripPatterns.size() - stopRangeByPattern.size()) + " outside, " + nTruncated + " truncated.");
+	}
+
+	/**
+	 * @return the first and the last stop index of the pattern to extract, 
+	 * null if less than two consecutive stops are within the area
+	 */
+	private int[] getStopRange(TripPattern pattern) {
+		if(stopRangeByPattern == null){
+			return new int[]{0, pattern.getStops().size() - 1};
+		}
+		return stopRangeByPattern.get(pattern);
+	}
+
+	private void extractStreetNetwork() {
+        Network network = scenario.getNetwork();
+        for (StreetEdge e : streetEdges) {
+        	Node fromNode = getNode(e.getFromVertex());
+        	Node toNode = getNode(e.getToVertex());
+        	if (fromNode == null || toNode == null) {
+        		// leaves the extraction area
+        		continue;
+        	}
+        	Id<Link> linkId = Id.create(e.getId(), Link.class);
+        	Link l = network.getFactory().createLink(linkId, fromNode, toNode);
+        	l.setFreespeed(e.getCarSpeed());
+        	l.setLength(e.getDistance());
+        	// set default capacity (independent from the road type because the road type is unknown)
+        	l.getCapacity(2000);
+
+        	if (streamingWriter == null) {
+        		network.addLink(l);
+        	} else {
+        		streamingWriter.writeLink(l);
+        	}
+        	graphIdMapping.putLinkId(e.getId(), linkId);
+        	if (streetLinks != null) {
+        		streetLinks.add(l);
+        	}
+        }
+        // only needed while extracting the street network
+        nodeByVertexIndex = null;
+    }
+
+    private Node getNode(Vertex v) {
+    	return v.getIndex() < nodeByVertexIndex.length ? nodeByVertexIndex[v.getIndex()] : null;
+    }
+
+    private void extractTransitStop(TransitStop transitStop) {
+        Network network = scenario.getNetwork();
+        String stopId = transitStop.getStopId().toString();
+        Coord coord = ct.transform(CoordUtils.createCoord(transitStop.getX(), transitStop.getY()));
+        /* isBlocking set to false because several lines each stopping at a different stop in otp are mapped to one matsim stop */
+        TransitStopFacility transitStopFacility = scenario.getTransitSchedule().getFactory().createTransitStopFacility(
+        		Id.create(stopId, TransitStopFacility.class),
+        		coord,
+        		false);
+        if(useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+        	scenario.getTransitSchedule().addStopFacility(transitStopFacility);
+        } else {
+        	Node node = network.getFactory().createNode(
+        			Id.createNodeId(stopId),
+        			coord);
+        	// also needed in the network when streaming in order to create the pt links
+        	network.addNode(node);
+        	Id<Link> linkId = Id.createLinkId(stopId);
+        	Link link = network.getFactory().createLink(linkId, node, node);
+        	// Different lines with different modes can use the same stop -> allow all pt modes
+        	link.setAllowedModes(otpTransitTraverseModes);
+        	// Increase flow and storage capacity in order to avoid pt vehicles blocking each other
+        	link.setCapacity(1000000);
+        	link.setFreespeed(1000000);
+        	link.setLength(1000000);
+        	transitStopFacility.setLinkId(linkId);
+        	scenario.getTransitSchedule().addStopFacility(transitStopFacility);
+        	if(ptNodes != null){
+        		ptNodes.add(node);
+        		ptLinks.add(link);
+        	}
+        	if(streamingWriter == null){
+        		network.addLink(link);
+        	} else {
+        		streamingWriter.writeNode(node);
+        		streamingWriter.writeLink(link);
+        		streamingWriter.writeStopFacility(transitStopFacility);
+        	}
         }
     }
 
-    private void extractPtNetworkAndTransitStops(){
+    /**
+     * Creates a link between the TransitStops of each PatternHop
+     */
+    private void extractPtNetwork(){
         Network network = scenario.getNetwork();
-        /* Extract TransitStops */
-        for (Vertex v : graphService.getRouter().graph.getVertices()) {
-        	if (v instanceof TransitStop) {
-        		TransitStop transitStop = (TransitStop) v;
-        		String stopId = transitStop.getStopId().toString();
-        		Coord coord = ct.transform(CoordUtils.createCoord(transitStop.getX(), transitStop.getY()));
-        		/* isBlocking set to false because several lines each stopping at a different stop in otp are mapped to one matsim stop */
-        		TransitStopFacility transitStopFacility = scenario.getTransitSchedule().getFactory().createTransitStopFacility(
-        				Id.create(stopId, TransitStopFacility.class),
-        				coord,
-        				false);
-        		if(useCreatePseudoNetworkInsteadOfOtpPtNetwork){
-            		scenario.getTransitSchedule().addStopFacility(transitStopFacility);
+        clipTripPatterns();
+        for(TripPattern pattern: tripPatterns){
+        	int[] stopRange = getStopRange(pattern);
+        	if(stopRange == null){
+        		continue;
+        	}
+        	// hop i connects the stops i and i + 1
+        	for(PatternHop patternHop: pattern.getPatternHops().subList(stopRange[0], stopRange[1])){
+        		Node fromNode = network.getNodes().get(Id.create(patternHop.getBeginStop().getId().toString(), Node.class));
+        		Node toNode = network.getNodes().get(Id.create(patternHop.getEndStop().getId().toString(), Node.class));
+        		Link l = network.getFactory().createLink(Id.create(patternHop.getId(), Link.class), fromNode, toNode);
+        		Set<String> allowedModes = new HashSet<String>();
+        		allowedModes.add(patternHop.getMode().toString());
+        		l.setAllowedModes(allowedModes);
+        		l.setLength(patternHop.getDistance());
+        		// Increase capacity and freespeed in order to avoid pt trips hindering each other
+        		l.setCapacity(1000000);
+        		l.setFreespeed(20);
+        		if(streamingWriter == null){
+        			network.addLink(l);
         		} else {
-            		Node node = network.getFactory().createNode(
-            				Id.createNodeId(stopId),
-            				coord);
-            		network.addNode(node);
-            		Id<Link> linkId = Id.createLinkId(stopId);
-            		Link link = network.getFactory().createLink(linkId, node, node);
-            		// Different lines with different modes can use the same stop -> allow all pt modes
-            		link.setAllowedModes(otpTransitTraverseModes);
-            		// Increase flow and storage capacity in order to avoid pt vehicles blocking each other
-            		link.setCapacity(1000000);
-            		link.setFreespeed(1000000);
-            		link.setLength(1000000);
-            		network.addLink(link);
-            		transitStopFacility.setLinkId(linkId);
-            		scenario.getTransitSchedule().addStopFacility(transitStopFacility);
+        			streamingWriter.writeLink(l);
+        		}
+        		if(ptLinks != null){
+        			ptLinks.add(l);
         		}
         	}
         }
-        /* Extract links between TransitStops */
-		if(!useCreatePseudoNetworkInsteadOfOtpPtNetwork){
-			for(Vertex v: graphService.getRouter().graph.getVertices()){
-				if(v instanceof TransitStop){
-					TransitStop departureStop = (TransitStop) v;
-					for(Edge e: v.getOutgoing()){
-						/* skip edges between the Transit stop vertex and the PatternStopVertex (departure vertex of a pt line) */
-						if(e instanceof PreBoardEdge){
-							Vertex allLinesDepartVertex = e.getToVertex();
-							for(Edge departureEdge: allLinesDepartVertex.getOutgoing()){
-								// should be always true, but otp's network model might change or might be less strict than it appears
-								if(departureEdge instanceof TransitBoardAlight && 
-										departureEdge.getToVertex().getOutgoing().size() == 1){
-									Edge probablyPatternHop = departureEdge.getToVertex().getOutgoing().iterator().next();
-									// should be always true, but otp's network model might change or might be less strict than it appears
-									if(probablyPatternHop instanceof PatternHop){
-										PatternHop patternHop = (PatternHop) probablyPatternHop;
-										Vertex lineArrivalVertex = patternHop.getToVertex();
-										for(Edge arrivalTransitBoardAlight: lineArrivalVertex.getOutgoing()){        							
-											if(arrivalTransitBoardAlight instanceof TransitBoardAlight){
-												Vertex allLinesArrivalVertex = arrivalTransitBoardAlight.getToVertex();
-												// should be always true, but otp's network model might change or might be less strict than it appears
-												if(allLinesArrivalVertex.getOutgoing().size() == 1){
-													Edge prealight = allLinesArrivalVertex.getOutgoing().iterator().next();
-													if(prealight instanceof PreAlightEdge){
-														Vertex arrivalStopVertex = prealight.getToVertex();
-														if(arrivalStopVertex instanceof TransitStop){
-															TransitStop arrivalStop = (TransitStop) arrivalStopVertex;
-															Node fromNode = network.getNodes().get(Id.create(departureStop.getStopId().toString(), Node.class));
-															Node toNode = network.getNodes().get(Id.create(arrivalStop.getStopId().toString(), Node.class));
-															Link l = network.getFactory().createLink(Id.create(patternHop.getId(), Link.class), fromNode, toNode);
-															Set<String> allowedModes = new HashSet<String>();
-															allowedModes.add(patternHop.getMode().toString());
-															l.setAllowedModes(allowedModes);
-															l.setLength(patternHop.getDistance());
-															// Increase capacity and freespeed in order to avoid pt trips hindering each other
-															l.setCapacity(1000000);
-															l.setFreespeed(20);
-															network.addLink(l);
-														}
-													}        	        						
-												}
-											}
-										}
-									}
-								}
-							}
-						}
-					}
-				}
-			}
-		}
     }
 
+    /**
+     * Converts the TripPatterns into TransitLines, TransitRoutes, Departures 
+     * and Vehicles. The conversion of the patterns is independent of each 
+     * other and runs on a ForkJoinPool if numberOfThreads > 1. The results 
+     * are merged into the scenario sequentially in the order of the patterns,
+     * so the outcome is the same as in the sequential mode.
+     */
     private void extractPtSchedule(){
-        for(Vertex v: graphService.getRouter().graph.getVertices()){
-        	if(v instanceof TransitStop){
-        		for(Edge e: v.getOutgoing()){
-        			/* skip edges between the Transit stop vertex and the PatternStopVertex (departure vertex of a pt line) */
-        			if(e instanceof PreBoardEdge){
-        				Vertex allLinesDepartVertex = e.getToVertex();
-        				for(Edge departureEdge: allLinesDepartVertex.getOutgoing()){
-        					// should be always true, but otp's network model might change or might be less strict than it appears
-        					if(departureEdge instanceof TransitBoardAlight && 
-        							departureEdge.getToVertex().getOutgoing().size() == 1){
-        						Edge probablyPatternHop = departureEdge.getToVertex().getOutgoing().iterator().next();
-            					// should be always true, but otp's network model might change or might be less strict than it appears
-        						if(probablyPatternHop instanceof PatternHop){
-        							PatternHop patternHop = (PatternHop) probablyPatternHop;
-        							writeTripPattern(patternHop.getPattern());
-        						}
-        					}
-        				}
+    	List<TripPattern> patternsToConvert = getPatternsToConvert();
+        ForkJoinPool pool = numberOfThreads > 1 ? new ForkJoinPool(numberOfThreads) : null;
+        try {
+        	if(streamingWriter == null){
+        		for(PatternConversion conversion: convertTripPatterns(patternsToConvert, pool, schedule)){
+        			mergeTripPattern(conversion, schedule);
+        		}
+        		if(schedule.vehicleBlocking != null){
+        			schedule.vehicleBlocking.assign(scenario.getTransitVehicles());
+        		}
+        	} else {
+        		// Convert and write one TransitLine after the other
+        		Map<String, List<TripPattern>> patternsByLine = new LinkedHashMap<String, List<TripPattern>>();
+        		for(TripPattern pattern: patternsToConvert){
+        			List<TripPattern> patternsOfLine = patternsByLine.get(pattern.route.getId().toString());
+        			if(patternsOfLine == null){
+        				patternsOfLine = new ArrayList<TripPattern>();
+        				patternsByLine.put(pattern.route.getId().toString(), patternsOfLine);
         			}
+        			patternsOfLine.add(pattern);
         		}
+        		for(Map.Entry<String, List<TripPattern>> entry: patternsByLine.entrySet()){
+        			for(PatternConversion conversion: convertTripPatterns(entry.getValue(), pool, schedule)){
+        				mergeTripPattern(conversion, schedule);
+        			}
+        			Id<TransitLine> lineId = Id.create(entry.getKey(), TransitLine.class);
+        			TransitLine transitLine = scenario.getTransitSchedule().getTransitLines().get(lineId);
+        			streamingWriter.writeTransitLine(transitLine);
+        			scenario.getTransitSchedule().removeTransitLine(transitLine);
+        			schedule.routesBySignature.remove(lineId);
+        		}
+        	}
+        } finally {
+        	if(pool != null){
+        		pool.shutdown();
         	}
         }
     }
-    
-	private void writeTripPattern(TripPattern pattern) {
-		Id<TransitLine> lineId = Id.create(pattern.route.getId().toString(), TransitLine.class);
-		if(!patternCodesProcessed.contains(pattern.code)){
-			if(!scenario.getTransitSchedule().getTransitLines().containsKey(lineId)){
-//				System.out.println("Line " + lineId.toString() + ", pattern.name: " + pattern.name);
-				TransitLine transitLine = scenario.getTransitSchedule().getFactory().createTransitLine(lineId);
-				transitLine.setName(pattern.route.getShortName() + ": " + pattern.route.getLongName());
-				scenario.getTransitSchedule().addTransitLine(transitLine);
+
+    /**
+     * The ids shared by the trips of a pattern are resolved sequentially 
+     * first, so the conversion threads only create the ids of the trips.
+     * 
+     * @param pool converts the patterns in parallel, null converts them sequentially
+     * @return the conversions in the order of the patterns
+     */
+    private List<PatternConversion> convertTripPatterns(final List<TripPattern> patterns, ForkJoinPool pool, 
+    		final DatedSchedule target){
+    	final List<PatternIds> patternIds = new ArrayList<PatternIds>(patterns.size());
+    	for(TripPattern pattern: patterns){
+    		patternIds.add(resolvePatternIds(pattern, target.scenario));
+    	}
+    	if(pool == null){
+    		List<PatternConversion> conversions = new ArrayList<PatternConversion>(patterns.size());
+    		for(int i = 0; i < patterns.size(); i++){
+    			conversions.add(convertTripPattern(patterns.get(i), patternIds.get(i), target));
+    		}
+    		return conversions;
+    	}
+    	try {
+    		return pool.submit(() -> IntStream.range(0, patterns.size()).parallel()
+    				.mapToObj(i -> convertTripPattern(patterns.get(i), patternIds.get(i), target))
+    				.collect(Collectors.toList())).get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException(e);
+    	} catch (ExecutionException e) {
+    		throw new RuntimeException(e.getCause());
+    	}
+    }
+
+	/**
+	 * Resolves the ids of a TripPattern which are shared by all its trips: 
+	 * the TransitLine, the links of the NetworkRoute, the stops and the 
+	 * VehicleType.
+	 */
+	private PatternIds resolvePatternIds(TripPattern pattern, Scenario scenario) {
+		PatternIds ids = new PatternIds(createId(pattern.route.getId().toString(), TransitLine.class), 
+				scenario.getTransitVehicles().getVehicleTypes().get(
+						createId(pattern.mode.toString() + " Default Vehicle", VehicleType.class)));
+		// the whole pattern or the part within the extraction area, hop i connects the stops i and i + 1
+		int[] stopRange = getStopRange(pattern);
+		int firstStop = stopRange[0];
+		int lastStop = stopRange[1];
+		List<PatternHop> hops = pattern.getPatternHops();
+		if(lastStop > firstStop){
+			ids.startLinkId = createId(hops.get(firstStop).getBeginStop().getId().toString(), Link.class);
+			ids.endLinkId = createId(hops.get(lastStop - 1).getEndStop().getId().toString(), Link.class);
+			ids.linksBetweenStartAndEnd = new ArrayList<Id<Link>>();
+			for(int i = firstStop; i <= lastStop - 2; i++){
+				ids.linksBetweenStartAndEnd.add(createId(hops.get(i).getId(), Link.class));
+				ids.linksBetweenStartAndEnd.add(createId(hops.get(i).getEndStop().getId().toString(), Link.class));
+			}
+			// Add last patternhop without adding the terminus stop
+			ids.linksBetweenStartAndEnd.add(createId(hops.get(lastStop - 1).getId(), Link.class));
+			int numStops = lastStop - firstStop + 1;
+			ids.stopIds = new Object[numStops];
+			ids.stopFacilities = new TransitStopFacility[numStops];
+			for(int j = 0; j < numStops; j++){
+				/* Assuming that org.onebusaway.gtfs.model.Stop and 
+				 * org.opentripplanner.routing.vertextype.TransitStop use the same ids
+				 */
+				Id<TransitStopFacility> stopId = createId(pattern.getStops().get(firstStop + j).getId().toString(), 
+						TransitStopFacility.class);
+				ids.stopIds[j] = stopId;
+				ids.stopFacilities[j] = scenario.getTransitSchedule().getFacilities().get(stopId);
 			}
-//			System.out.println("Line " + lineId.toString() + ", pattern.name: " + pattern.name + ", code: " + pattern.code + ", route: " + pattern.route);
-			Id<Link> startLinkId = Id.create(pattern.getPatternHops().get(0).getBeginStop().getId().toString(), Link.class);
-			Id<Link> endLinkId = Id.create(pattern.getPatternHops().get(pattern.getPatternHops().size()-1).getEndStop().getId().toString(), Link.class);
-			if(pattern.getPatternHops().size() > 0){
-				NetworkRoute netRoute = (NetworkRoute) (new LinkNetworkRouteFactory()).createRoute(startLinkId, endLinkId);
-				List<Id<Link>> linksBetweenStartAndEnd = new LinkedList<Id<Link>>();
-				for(int i = 0; i <= pattern.getPatternHops().size() - 2; i++){
-					linksBetweenStartAndEnd.add(Id.create(pattern.getPatternHops().get(i).getId(), Link.class));
-					linksBetweenStartAndEnd.add(Id.create(pattern.getPatternHops().get(i).getEndStop().getId().toString(), Link.class));
+		}
+		return ids;
+	}
+
+	/**
+	 * Does not modify the scenario, so it can be called concurrently for 
+	 * different TripPatterns.
+	 */
+	private PatternConversion convertTripPattern(TripPattern pattern, PatternIds ids, DatedSchedule target) {
+		PatternConversion conversion = new PatternConversion(pattern, ids.lineId);
+		int[] stopRange = getStopRange(pattern);
+		int firstStop = stopRange[0];
+		int lastStop = stopRange[1];
+		if(lastStop > firstStop){
+			NetworkRoute netRoute = (NetworkRoute) (new LinkNetworkRouteFactory()).createRoute(ids.startLinkId, ids.endLinkId);
+			netRoute.setLinkIds(ids.startLinkId, ids.linksBetweenStartAndEnd, ids.endLinkId);
+			conversion.netRoute = netRoute;
+			/* Iterate over all trips (arrival and departure times saved in one TripTimes
+			 * object per Trip), they are grouped into TransitRoutes with equal 
+			 * arrival and departure offsets when merged into the scenario
+			 */
+			for(TripTimes tripTimes: pattern.scheduledTimetable.tripTimes){
+				// save pt trips operating on the day to be simulated
+				if(target.serviceIdsOnDate.contains(tripTimes.trip.getServiceId())){
+					conversion.trips.add(convertTripTime(ids, tripTimes, firstStop, lastStop, DATE, target.scenario));
 				}
-				// Add last patternhop without adding the terminus stop
-				linksBetweenStartAndEnd.add(Id.create(pattern.getPatternHops().get(pattern.getPatternHops().size() - 1).getId(), Link.class));
-				netRoute.setLinkIds(startLinkId, linksBetweenStartAndEnd, endLinkId);
-				if(pattern.getStops().size() > 1){
-					/* Iterate over all trips (arrival and departure times saved in one TripTimes
-					 * object per Trip) and group them into TransitRoutes with equal 
-					 * arrival and departure offsets
-					 */
-					for(TripTimes tripTimes: pattern.scheduledTimetable.tripTimes){
-						// save pt trips operating on the day to be simulated
-						if(serviceIdsOnDate.contains(tripTimes.trip.getServiceId())){
-							writeTripTime(pattern, lineId, netRoute, tripTimes, 0);
-						}
-						if(serviceIdsOnFollowingDate.contains(tripTimes.trip.getServiceId()) && 
-								tripTimes.getDepartureTime(0) < scheduleEndTimeOnFollowingDate){
-							writeTripTime(pattern, lineId, netRoute, tripTimes, 1);
-						}
-						if(serviceIdsOnPreviousDate.contains(tripTimes.trip.getServiceId()) && 
-								tripTimes.getDepartureTime(tripTimes.getNumStops() - 2) > 24*60*60){
-							writeTripTime(pattern, lineId, netRoute, tripTimes, -1);
-						}
-					}
-				} else {
-					System.err.println("Only one TransitStop for TransitRoute (code) " + pattern.code);
+				if(target.serviceIdsOnFollowingDate.contains(tripTimes.trip.getServiceId()) && 
+						tripTimes.getDepartureTime(firstStop) < scheduleEndTimeOnFollowingDate){
+					conversion.trips.add(convertTripTime(ids, tripTimes, firstStop, lastStop, FOLLOWING_DATE, target.scenario));
+				}
+				if(target.serviceIdsOnPreviousDate.contains(tripTimes.trip.getServiceId()) && 
+						tripTimes.getDepartureTime(lastStop - 1) > 24*60*60){
+					conversion.trips.add(convertTripTime(ids, tripTimes, firstStop, lastStop, PREVIOUS_DATE, target.scenario));
 				}
-			} else {
-				System.err.println("No PatternHop for TransitRoute (code) " + pattern.code);
 			}
-			patternCodesProcessed.add(pattern.code);
 		}
+		return conversion;
 	}
 
 	/*
@@ -357,54 +882,245 @@ public class ReadGraph implements Runnable {
 	 * differentiating between trips on the first simulated day ("_0") and 
 	 * trips on the previous ("_-1") or the following day ("_1")
 	 */
-	private void writeTripTime(TripPattern pattern, Id<TransitLine> lineId,
-			NetworkRoute netRoute, TripTimes tripTimes, int day) {
-		List<TransitRouteStop> transitRouteStops = new LinkedList<TransitRouteStop>();
-		for(int i = 0; i < tripTimes.getNumStops(); i++){
-			/* Assuming that org.onebusaway.gtfs.model.Stop and 
-			 * org.opentripplanner.routing.vertextype.TransitStop use the same ids
-			 */
-			Id<TransitStopFacility> stopId = Id.create(pattern.getStops().get(i).getId().toString(), TransitStopFacility.class);
-			TransitStopFacility stopFacility = scenario.getTransitSchedule().getFacilities().get(stopId);
-			double arrivalDelay = tripTimes.getScheduledArrivalTime(i) - tripTimes.getScheduledArrivalTime(0);
-			double departureDelay = tripTimes.getScheduledDepartureTime(i) - tripTimes.getScheduledArrivalTime(0);
+	private TripConversion convertTripTime(PatternIds ids, TripTimes tripTimes, int firstStop, int lastStop, 
+			int day, Scenario scenario) {
+		int numStops = lastStop - firstStop + 1;
+		List<TransitRouteStop> transitRouteStops = new ArrayList<TransitRouteStop>(numStops);
+		double[] arrivalOffsets = new double[numStops];
+		double[] departureOffsets = new double[numStops];
+		for(int j = 0; j < numStops; j++){
+			int i = firstStop + j;
+			TransitStopFacility stopFacility = ids.stopFacilities[j];
+			double arrivalDelay = tripTimes.getScheduledArrivalTime(i) - tripTimes.getScheduledArrivalTime(firstStop);
+			double departureDelay = tripTimes.getScheduledDepartureTime(i) - tripTimes.getScheduledArrivalTime(firstStop);
 			TransitRouteStop routeStop = scenario.getTransitSchedule().getFactory().createTransitRouteStop(stopFacility, arrivalDelay, departureDelay);
 			routeStop.setAwaitDepartureTime(true);
 			transitRouteStops.add(routeStop);
+			arrivalOffsets[j] = arrivalDelay;
+			departureOffsets[j] = departureDelay;
 		}
 
-		Id<Departure> tripId;
-		Id<Vehicle> vehicleId;
-		Departure departure;
-		
 		// differentiate otp trips repeated on different days to be simulated
 		// -> add id addition and move departure time by number indicated in variable day
-		tripId = Id.create(tripTimes.trip.getId().toString() + "_" + day, Departure.class);
-		vehicleId = Id.create(tripTimes.trip.getId().toString() + "_" + day, Vehicle.class);
-		departure = scenario.getTransitSchedule().getFactory().createDeparture(
-				tripId, tripTimes.getScheduledArrivalTime(0) + day*24*60*60);
-
-		departure.setVehicleId(vehicleId);
-		VehicleType vehType= scenario.getTransitVehicles().getVehicleTypes().get(
-				Id.create(pattern.mode.toString() + " Default Vehicle", VehicleType.class));
-		Vehicle veh = scenario.getTransitVehicles().getFactory().createVehicle(vehicleId, vehType);
-		scenario.getTransitVehicles().addVehicle(veh);
-
-		// Check if a TransitRoute with the same arrival and departure offsets already exists
-		boolean existingTransitRouteFound = false;
-		for(TransitRoute transitRoute: scenario.getTransitSchedule().getTransitLines().get(lineId).getRoutes().values()){
-			if(transitRoute.getStops().equals(transitRouteStops)){
-				transitRoute.addDeparture(departure);
-				existingTransitRouteFound = true;
+		String otpTripId = tripTimes.trip.getId().toString();
+		Id<Departure> tripId;
+		Id<Vehicle> vehicleId = null;
+		Id<TransitRoute> routeId;
+		// the only ids created by the conversion threads, see createId()
+		synchronized (Id.class) {
+			tripId = Id.create(otpTripId + "_" + day, Departure.class);
+			// with vehicle blocking the vehicles of the blocks are created by VehicleBlocking
+			if(!vehicleBlocking){
+				vehicleId = Id.create(otpTripId + "_" + day, Vehicle.class);
+			}
+			routeId = Id.create(otpTripId, TransitRoute.class);
+		}
+		Departure departure = scenario.getTransitSchedule().getFactory().createDeparture(
+				tripId, tripTimes.getScheduledArrivalTime(firstStop) + day*24*60*60);
+
+		Vehicle veh = null;
+		if(vehicleId != null){
+			departure.setVehicleId(vehicleId);
+			veh = scenario.getTransitVehicles().getFactory().createVehicle(vehicleId, ids.vehicleType);
+		}
+		// block ids are unique per agency, their trips are served by one vehicle per day
+		String blockId = tripTimes.trip.getBlockId();
+		if(blockId != null && !blockId.isEmpty()){
+			blockId = tripTimes.trip.getId().getAgencyId() + "_" + blockId + "_" + day;
+		} else {
+			blockId = null;
+		}
+		return new TripConversion(routeId, 
+				transitRouteStops, new RouteSignature(ids.stopIds, arrivalOffsets, departureOffsets, true), 
+				departure, veh, ids.vehicleType, blockId);
+	}
+
+	private void mergeTripPattern(PatternConversion conversion, DatedSchedule target) {
+		Scenario scenario = target.scenario;
+		TripPattern pattern = conversion.pattern;
+		if(!scenario.getTransitSchedule().getTransitLines().containsKey(conversion.lineId)){
+			TransitLine transitLine = scenario.getTransitSchedule().getFactory().createTransitLine(conversion.lineId);
+			transitLine.setName(pattern.route.getShortName() + ": " + pattern.route.getLongName());
+			scenario.getTransitSchedule().addTransitLine(transitLine);
+		}
+		if(conversion.netRoute == null){
+			System.err.println("No PatternHop for TransitRoute (code) " + pattern.code);
+			return;
+		} else if(pattern.getStops().size() <= 1){
+			System.err.println("Only one TransitStop for TransitRoute (code) " + pattern.code);
+			return;
+		}
+		TransitLine transitLine = scenario.getTransitSchedule().getTransitLines().get(conversion.lineId);
+		Map<RouteSignature, TransitRoute> routesOfLine = target.routesBySignature.get(conversion.lineId);
+		if(routesOfLine == null){
+			routesOfLine = new HashMap<RouteSignature, TransitRoute>();
+			target.routesBySignature.put(conversion.lineId, routesOfLine);
+		}
+		for(TripConversion trip: conversion.trips){
+			// with vehicle blocking the vehicles of the blocks are added after all departures are merged
+			if(target.vehicleBlocking == null){
+				if(streamingWriter == null || target != schedule){
+					scenario.getTransitVehicles().addVehicle(trip.vehicle);
+				} else {
+					streamingWriter.writeVehicle(trip.vehicle);
+				}
+			}
+
+			// Check if a TransitRoute with the same stops and arrival and departure offsets already exists
+			TransitRoute transitRoute = routesOfLine.get(trip.signature);
+			if(transitRoute == null){
+				transitRoute = scenario.getTransitSchedule().getFactory().createTransitRoute(
+						trip.routeId, conversion.netRoute, trip.transitRouteStops, pattern.mode.toString());
+				transitRoute.setDescription("Code: " + pattern.code + ", Name: " + pattern.name);
+				transitLine.addRoute(transitRoute);
+				routesOfLine.put(trip.signature, transitRoute);
+			}
+			transitRoute.addDeparture(trip.departure);
+			if(target.vehicleBlocking != null){
+				target.vehicleBlocking.add(trip.departure, transitRoute, trip.vehicleType, trip.blockId);
 			}
 		}
-		if(!existingTransitRouteFound){
-			Id<TransitRoute> routeId = Id.create(tripTimes.trip.getId().toString(), TransitRoute.class);
-			TransitRoute transitRoute = scenario.getTransitSchedule().getFactory().createTransitRoute(
-					routeId, netRoute, transitRouteStops, pattern.mode.toString());
-			transitRoute.setDescription("Code: " + pattern.code + ", Name: " + pattern.name);
-			transitRoute.addDeparture(departure);
-			scenario.getTransitSchedule().getTransitLines().get(lineId).addRoute(transitRoute);
+	}
+
+	/**
+	 * Ids are interned in a cache which is not safe for concurrent creation of
+	 * the same id, so the conversion threads create their ids one at a time.
+	 */
+	private static <T> Id<T> createId(String key, Class<T> type) {
+		synchronized (Id.class) {
+			return Id.create(key, type);
+		}
+	}
+
+	/**
+	 * Scenario receiving the TransitLines and Vehicles of a date and the otp
+	 * service ids operating on the date and the days before and after.
+	 */
+	private static final class DatedSchedule {
+		private final Scenario scenario;
+		private final Set<AgencyAndId> serviceIdsOnDate;
+		private final Set<AgencyAndId> serviceIdsOnFollowingDate;
+		private final Set<AgencyAndId> serviceIdsOnPreviousDate;
+		private final Map<Id<TransitLine>, Map<RouteSignature, TransitRoute>> routesBySignature = 
+				new HashMap<Id<TransitLine>, Map<RouteSignature, TransitRoute>>();
+		// null if every departure gets its own vehicle
+		private final VehicleBlocking vehicleBlocking;
+
+		DatedSchedule(Scenario scenario, Set<AgencyAndId> serviceIdsOnDate, 
+				Set<AgencyAndId> serviceIdsOnFollowingDate, Set<AgencyAndId> serviceIdsOnPreviousDate, 
+				VehicleBlocking vehicleBlocking) {
+			this.scenario = scenario;
+			this.serviceIdsOnDate = serviceIdsOnDate;
+			this.serviceIdsOnFollowingDate = serviceIdsOnFollowingDate;
+			this.serviceIdsOnPreviousDate = serviceIdsOnPreviousDate;
+			this.vehicleBlocking = vehicleBlocking;
+		}
+	}
+
+	/**
+	 * Ids of a TripPattern shared by all its trips, see resolvePatternIds().
+	 * Read-only after they are resolved.
+	 */
+	private static final class PatternIds {
+		private final Id<TransitLine> lineId;
+		private final VehicleType vehicleType;
+		// the following are null if less than two stops of the pattern are extracted
+		private Id<Link> startLinkId;
+		private Id<Link> endLinkId;
+		private List<Id<Link>> linksBetweenStartAndEnd;
+		// ids and facilities of the extracted stops, shared by the RouteSignatures of the trips
+		private Object[] stopIds;
+		private TransitStopFacility[] stopFacilities;
+
+		PatternIds(Id<TransitLine> lineId, VehicleType vehicleType) {
+			this.lineId = lineId;
+			this.vehicleType = vehicleType;
+		}
+	}
+
+	/**
+	 * The TransitLine, NetworkRoute and trips of a TripPattern, not yet 
+	 * added to the scenario.
+	 */
+	private static final class PatternConversion {
+		private final TripPattern pattern;
+		private final Id<TransitLine> lineId;
+		// null if the pattern has no PatternHop
+		private NetworkRoute netRoute;
+		private final List<TripConversion> trips = new ArrayList<TripConversion>();
+
+		PatternConversion(TripPattern pattern, Id<TransitLine> lineId) {
+			this.pattern = pattern;
+			this.lineId = lineId;
+		}
+	}
+
+	private static final class TripConversion {
+		private final Id<TransitRoute> routeId;
+		private final List<TransitRouteStop> transitRouteStops;
+		private final RouteSignature signature;
+		private final Departure departure;
+		// null with vehicle blocking
+		private final Vehicle vehicle;
+		private final VehicleType vehicleType;
+		private final String blockId;
+
+		TripConversion(Id<TransitRoute> routeId, List<TransitRouteStop> transitRouteStops, 
+				RouteSignature signature, Departure departure, Vehicle vehicle, VehicleType vehicleType, 
+				String blockId) {
+			this.routeId = routeId;
+			this.transitRouteStops = transitRouteStops;
+			this.signature = signature;
+			this.departure = departure;
+			this.vehicle = vehicle;
+			this.vehicleType = vehicleType;
+			this.blockId = blockId;
+		}
+	}
+
+	/**
+	 * Stop sequence and arrival and departure offsets of a trip. Trips of a
+	 * TransitLine with equal signatures are grouped into one TransitRoute.
+	 * The hash code is computed once, so looking up the TransitRoute of a trip
+	 * does not depend on the number of TransitRoutes of the line.
+	 */
+	private static final class RouteSignature {
+		private final Object[] stopIds;
+		private final double[] arrivalOffsets;
+		private final double[] departureOffsets;
+		private final boolean awaitDepartureTime;
+		private final int hashCode;
+
+		RouteSignature(Object[] stopIds, double[] arrivalOffsets, double[] departureOffsets, 
+				boolean awaitDepartureTime) {
+			this.stopIds = stopIds;
+			this.arrivalOffsets = arrivalOffsets;
+			this.departureOffsets = departureOffsets;
+			this.awaitDepartureTime = awaitDepartureTime;
+			int hash = Arrays.hashCode(stopIds);
+			hash = 31 * hash + Arrays.hashCode(arrivalOffsets);
+			hash = 31 * hash + Arrays.hashCode(departureOffsets);
+			this.hashCode = 31 * hash + (awaitDepartureTime ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj){
+				return true;
+			}
+			if(!(obj instanceof RouteSignature)){
+				return false;
+			}
+			RouteSignature other = (RouteSignature) obj;
+			return hashCode == other.hashCode && awaitDepartureTime == other.awaitDepartureTime &&
+					Arrays.equals(stopIds, other.stopIds) && 
+					Arrays.equals(arrivalOffsets, other.arrivalOffsets) && 
+					Arrays.equals(departureOffsets, other.departureOffsets);
 		}
 	}
 }
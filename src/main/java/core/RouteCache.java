@@ -0,0 +1,243 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.population.LegImpl;
+import org.matsim.core.population.routes.NetworkRoute;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Least recently used cache of otp routing results, shared by all
+ * OTPRoutingModules of an OTPTripRouterFactory.
+ *
+ * Routing results are stored per snapped origin and destination vertex,
+ * departure time bin and OtpParameterProfile. Many agents whose activities
+ * are located close to each other are snapped to the same otp vertices, so
+ * they can reuse the same routing result. The cached legs keep the departure
+ * times of the routing request which calculated them. The returned copies
+ * are shifted to the departure time of the routing request served, travel
+ * times are kept.
+ *
+ * Each entry holds all itinerary alternatives calculated by otp for the
+ * routing request, so later routing requests (e.g. by ReRoute) are served by
+ * choosing one of the alternatives randomly instead of running otp again.
+ *
+ * The cache is bounded by the number of entries and by an estimate of the
+ * memory used by the cached legs. Legs are copied when they are stored and
+ * when they are returned, so agents never share mutable Leg objects.
+ */
+public final class RouteCache {
+
+	private final static Logger log = Logger.getLogger(RouteCache.class);
+
+	// Rough estimates of the heap used by cached objects
+	private static final long BYTES_PER_ENTRY = 128;
+	private static final long BYTES_PER_LEG = 160;
+	private static final long BYTES_PER_LINK_ID = 8;
+
+	private static final long LOG_STATISTICS_INTERVAL = 10000;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final int departureTimeBinSeconds;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	// hits and misses, only used to log the statistics every LOG_STATISTICS_INTERVAL requests
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * @param maxEntries : maximum number of cached routing results
+	 * @param maxBytes : maximum estimated heap size of all cached legs
+	 * @param departureTimeBinSeconds : routing requests departing in the same
+	 * time bin (departureTime / departureTimeBinSeconds) share routing results
+	 */
+	public RouteCache(int maxEntries, long maxBytes, int departureTimeBinSeconds) {
+		if (maxEntries <= 0 || maxBytes <= 0 || departureTimeBinSeconds <= 0) {
+			throw new IllegalArgumentException("RouteCache bounds and departure time bin have to be positive.");
+		}
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.departureTimeBinSeconds = departureTimeBinSeconds;
+	}
+
+	/**
+	 * @param profile : ordinal of the OtpParameterProfile or -1 if no profile was chosen
+	 */
+	Key createKey(int fromVertexIndex, int toVertexIndex, double departureTime, int profile) {
+		return new Key(fromVertexIndex, toVertexIndex, (int) Math.floor(departureTime / departureTimeBinSeconds),
+				profile);
+	}
+
+	/**
+	 * @param departureTime : departure time of the routing request, the legs
+	 * returned are shifted from the departure time of the cached routing request to it
+	 * @return a copy of the legs of a randomly chosen cached itinerary
+	 * alternative or null if nothing is cached for the key
+	 */
+	List<Leg> get(Key key, double departureTime) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null) {
+			misses.increment();
+			logStatisticsIfNecessary();
+			return null;
+		}
+		hits.increment();
+		logStatisticsIfNecessary();
+		return copyLegs(entry.alternatives.get(ThreadLocalRandom.current().nextInt(entry.alternatives.size())), 
+				departureTime - entry.departureTime);
+	}
+
+	/**
+	 * @param alternatives : the itinerary alternatives, at least one (which
+	 * may be an empty list of legs if no route was found)
+	 * @param departureTime : departure time of the routing request which calculated the alternatives
+	 */
+	void put(Key key, List<List<Leg>> alternatives, double departureTime) {
+		if (alternatives.isEmpty()) {
+			throw new IllegalArgumentException("At least one itinerary alternative has to be cached.");
+		}
+		List<List<Leg>> copies = new ArrayList<>(alternatives.size());
+		for (List<Leg> legs: alternatives) {
+			copies.add(copyLegs(legs, 0));
+		}
+		Entry entry = new Entry(copies, departureTime);
+		synchronized (this) {
+			Entry replaced = entries.put(key, entry);
+			bytes += entry.bytes;
+			if (replaced != null) {
+				bytes -= replaced.bytes;
+			}
+			Iterator<Entry> eldest = entries.values().iterator();
+			while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+				bytes -= eldest.next().bytes;
+				eldest.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getEstimatedBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "RouteCache [hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() +
+				", entries=" + size() + ", estimatedBytes=" + getEstimatedBytes() + "]";
+	}
+
+	private void logStatisticsIfNecessary() {
+		// exactly one thread sees each multiple of the interval
+		if (requests.incrementAndGet() % LOG_STATISTICS_INTERVAL == 0) {
+			log.info(this);
+		}
+	}
+
+	/**
+	 * @param shift : seconds added to the departure times of the legs
+	 */
+	static List<Leg> copyLegs(List<Leg> legs, double shift) {
+		List<Leg> copies = new ArrayList<>(legs.size());
+		for (Leg leg: legs) {
+			Leg copy = new LegImpl(leg.getMode());
+			copy.setDepartureTime(leg.getDepartureTime() + shift);
+			copy.setTravelTime(leg.getTravelTime());
+			if (leg.getRoute() != null) {
+				copy.setRoute(leg.getRoute().clone());
+			}
+			copies.add(copy);
+		}
+		return copies;
+	}
+
+	private static long estimateBytes(List<List<Leg>> alternatives) {
+		long estimate = BYTES_PER_ENTRY;
+		for (List<Leg> legs: alternatives) {
+			for (Leg leg: legs) {
+				estimate += BYTES_PER_LEG;
+				Route route = leg.getRoute();
+				if (route instanceof NetworkRoute) {
+					estimate += BYTES_PER_LINK_ID * ((NetworkRoute) route).getLinkIds().size();
+				}
+			}
+		}
+		return estimate;
+	}
+
+	private static final class Entry {
+		private final List<List<Leg>> alternatives;
+		private final double departureTime;
+		private final long bytes;
+
+		Entry(List<List<Leg>> alternatives, double departureTime) {
+			this.alternatives = alternatives;
+			this.departureTime = departureTime;
+			this.bytes = estimateBytes(alternatives);
+		}
+	}
+
+	static final class Key {
+		private final int fromVertexIndex;
+		private final int toVertexIndex;
+		private final int departureTimeBin;
+		private final int profile;
+
+		private Key(int fromVertexIndex, int toVertexIndex, int departureTimeBin, int profile) {
+			this.fromVertexIndex = fromVertexIndex;
+			this.toVertexIndex = toVertexIndex;
+			this.departureTimeBin = departureTimeBin;
+			this.profile = profile;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return fromVertexIndex == other.fromVertexIndex && toVertexIndex == other.toVertexIndex &&
+					departureTimeBin == other.departureTimeBin && profile == other.profile;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = fromVertexIndex;
+			result = 31 * result + toVertexIndex;
+			result = 31 * result + departureTimeBin;
+			result = 31 * result + profile;
+			return result;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package core;
+
+/**
+ * Compact description of a single otp routing request and its result, written
+ * by a RoutingTraceSink instead of dumping the request and the otp path to
+ * the console.
+ */
+public final class RoutingTraceRecord {
+
+	private final String personId;
+	private final double fromLat;
+	private final double fromLon;
+	private final double toLat;
+	private final double toLon;
+	private final double departureTime;
+	private final String profile;
+	private final String modes;
+	private final int numPaths;
+	private final int chosenPath;
+	private final int numLegs;
+	private final long routingTimeNanos;
+	private final boolean cacheHit;
+
+	/**
+	 * @param personId : may be null if the routing request is not associated with a person
+	 * @param profile : name of the OtpParameterProfile or null if none was chosen
+	 * @param numPaths : number of paths returned by otp
+	 * @param chosenPath : index of the path converted into legs or -1 if none
+	 * @param cacheHit : true if the legs were taken from the RouteCache, then
+	 * numPaths is 0, chosenPath is -1 and the routing time is the time of the lookup
+	 */
+	public RoutingTraceRecord(String personId, double fromLat, double fromLon, double toLat, double toLon, 
+			double departureTime, String profile, String modes, int numPaths, int chosenPath, int numLegs, 
+			long routingTimeNanos, boolean cacheHit) {
+		this.personId = personId;
+		this.fromLat = fromLat;
+		this.fromLon = fromLon;
+		this.toLat = toLat;
+		this.toLon = toLon;
+		this.departureTime = departureTime;
+		this.profile = profile;
+		this.modes = modes;
+		this.numPaths = numPaths;
+		this.chosenPath = chosenPath;
+		this.numLegs = numLegs;
+		this.routingTimeNanos = routingTimeNanos;
+		this.cacheHit = cacheHit;
+	}
+
+	public String getPersonId() {
+		return personId;
+	}
+
+	public double getFromLat() {
+		return fromLat;
+	}
+
+	public double getFromLon() {
+		return fromLon;
+	}
+
+	public double getToLat() {
+		return toLat;
+	}
+
+	public double getToLon() {
+		return toLon;
+	}
+
+	public double getDepartureTime() {
+		return departureTime;
+	}
+
+	public String getProfile() {
+		return profile;
+	}
+
+	public String getModes() {
+		return modes;
+	}
+
+	public int getNumPaths() {
+		return numPaths;
+	}
+
+	public int getChosenPath() {
+		return chosenPath;
+	}
+
+	public int getNumLegs() {
+		return numLegs;
+	}
+
+	public long getRoutingTimeNanos() {
+		return routingTimeNanos;
+	}
+
+	public boolean isCacheHit() {
+		return cacheHit;
+	}
+
+	/**
+	 * @return the record as a single line json object without line break
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"person\":");
+		appendJsonString(json, personId);
+		json.append(",\"fromLat\":").append(fromLat);
+		json.append(",\"fromLon\":").append(fromLon);
+		json.append(",\"toLat\":").append(toLat);
+		json.append(",\"toLon\":").append(toLon);
+		json.append(",\"departureTime\":").append(departureTime);
+		json.append(",\"profile\":");
+		appendJsonString(json, profile);
+		json.append(",\"modes\":");
+		appendJsonString(json, modes);
+		json.append(",\"numPaths\":").append(numPaths);
+		json.append(",\"chosenPath\":").append(chosenPath);
+		json.append(",\"numLegs\":").append(numLegs);
+		json.append(",\"routingTimeMicros\":").append(routingTimeNanos / 1000);
+		json.append(",\"cacheHit\":").append(cacheHit);
+		json.append('}');
+		return json.toString();
+	}
+
+	private static void appendJsonString(StringBuilder json, String value) {
+		if (value == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
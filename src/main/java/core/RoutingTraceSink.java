@@ -0,0 +1,18 @@
+package core;
+
+/**
+ * Receives trace records of single otp routing requests, see RoutingTracer.
+ * 
+ * Implementations are called concurrently by all routing threads and should
+ * return quickly, e.g. by handing the record over to a writer thread.
+ */
+public interface RoutingTraceSink {
+
+	void trace(RoutingTraceRecord record);
+
+	/**
+	 * Writes all pending records and releases the resources of the sink.
+	 */
+	void close();
+
+}
@@ -0,0 +1,49 @@
+package core;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which routing requests of the OTPRoutingModule are traced and passes
+ * their RoutingTraceRecords to a RoutingTraceSink. Tracing is off unless a 
+ * RoutingTracer is set at the OTPTripRouterFactory.
+ * 
+ * A routing request is traced if its person opted in or with the given sample
+ * rate otherwise.
+ */
+public final class RoutingTracer {
+
+	private final RoutingTraceSink sink;
+	private final double sampleRate;
+	private final Set<Id<Person>> tracedPersons;
+
+	/**
+	 * @param sampleRate : share of routing requests (0.0 - 1.0) traced independent from the person
+	 * @param tracedPersons : persons whose routing requests are always traced
+	 */
+	public RoutingTracer(RoutingTraceSink sink, double sampleRate, Set<Id<Person>> tracedPersons) {
+		this.sink = sink;
+		this.sampleRate = sampleRate;
+		this.tracedPersons = Collections.unmodifiableSet(new HashSet<>(tracedPersons));
+	}
+
+	public boolean isTraced(Person person) {
+		if (person != null && tracedPersons.contains(person.getId())) {
+			return true;
+		}
+		return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+
+	public void trace(RoutingTraceRecord record) {
+		sink.trace(record);
+	}
+
+	public void close() {
+		sink.close();
+	}
+}
@@ -0,0 +1,640 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.LinkImpl;
+import org.matsim.core.network.NetworkImpl;
+import org.matsim.core.population.routes.LinkNetworkRouteFactory;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleCapacity;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary cache of the network, the TransitSchedule and the transit vehicles
+ * written by ExtractNetwork. Reading the cache avoids parsing the xml files
+ * with the matsim readers on every start of GeneratePopulationAndRunScenario.
+ * The header of the cache records the canonical path, length and last
+ * modification time of each xml file it was written from. The cache is only
+ * used if all of them still match, so editing, replacing or moving one of the
+ * xml files invalidates it.
+ *
+ * The cache holds what ReadGraph extracts, including the type and original
+ * id of the links. Attributes it does not store (the engine information and
+ * freight capacity of vehicle types) would be lost, so a cache written from a
+ * scenario using them is marked incomplete and never used.
+ *
+ * File layout (big endian): magic, version, the header (complete flag, xml
+ * files), then the network (capacity period, nodes, links), the
+ * TransitSchedule (stop facilities, transit lines with routes and departures)
+ * and the vehicles (vehicle types, vehicles). Every list is preceded by its
+ * number of elements, strings are stored as length prefixed UTF-8. The file
+ * is read sequentially through a FileChannel.
+ */
+public final class ScenarioCache {
+
+	private final static Logger log = Logger.getLogger(ScenarioCache.class);
+
+	/**
+	 * Name of the cache file written by ExtractNetwork into the directory of
+	 * the network file.
+	 */
+	public static final String FILE_NAME = "scenario_cache.bin";
+
+	private static final int MAGIC = 0x4d534343; // "MSCC"
+	private static final int VERSION = 2;
+
+	private ScenarioCache() {
+	}
+
+	/**
+	 * @return true if the cache file exists, is complete and was written from
+	 * exactly the xml files given (same canonical paths, lengths and last
+	 * modification times)
+	 */
+	public static boolean isUpToDate(File cacheFile, String... xmlFiles) {
+		if (!cacheFile.isFile()) {
+			return false;
+		}
+		Map<String, SourceFile> expected = new HashMap<>();
+		try {
+			for (String xmlFile : xmlFiles) {
+				SourceFile source = new SourceFile(new File(xmlFile));
+				expected.put(source.canonicalPath, source);
+			}
+		} catch (IOException e) {
+			log.warn("Cannot resolve the xml files of the scenario cache " + cacheFile, e);
+			return false;
+		}
+		Map<String, SourceFile> recorded;
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			recorded = readHeader(new Input(channel), cacheFile);
+		} catch (IOException e) {
+			log.info("Scenario cache " + cacheFile + " is not used: " + e.getMessage());
+			return false;
+		}
+		if (!recorded.equals(expected)) {
+			log.info("Scenario cache " + cacheFile + " was written from other or modified xml files, it is not used.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param xmlFiles : the xml files the scenario was read from or written to,
+	 * they have to exist and must not be modified after the cache is written
+	 */
+	public static void write(Scenario scenario, File file, String... xmlFiles) throws IOException {
+		long start = System.nanoTime();
+		String unsupported = findUnsupportedAttributes(scenario);
+		if (unsupported != null) {
+			log.warn("The scenario cache " + file + " is marked incomplete and will not be used: " + unsupported);
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(unsupported == null);
+			out.writeInt(xmlFiles.length);
+			for (String xmlFile : xmlFiles) {
+				SourceFile source = new SourceFile(new File(xmlFile));
+				writeString(out, source.canonicalPath);
+				out.writeLong(source.length);
+				out.writeLong(source.lastModified);
+			}
+			writeNetwork(out, scenario.getNetwork());
+			writeTransitSchedule(out, scenario.getTransitSchedule());
+			writeVehicles(out, scenario.getTransitVehicles());
+		}
+		log.info("Scenario cache with " + file.length() + " bytes written to " + file + " in " +
+				(System.nanoTime() - start) / 1000000 + " ms.");
+	}
+
+	/**
+	 * Adds the network, the TransitSchedule and the transit vehicles of the
+	 * cache file to the (empty) scenario.
+	 */
+	public static void load(File file, Scenario scenario) throws IOException {
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Input in = new Input(channel);
+			readHeader(in, file);
+			readNetwork(in, scenario.getNetwork());
+			readTransitSchedule(in, scenario.getTransitSchedule());
+			readVehicles(in, scenario.getTransitVehicles());
+		}
+		log.info("Scenario cache " + file + " loaded in " + (System.nanoTime() - start) / 1000000 + " ms.");
+	}
+
+	/**
+	 * Reads the header up to the network.
+	 *
+	 * @return the xml files recorded by canonical path
+	 * @throws IOException if the file is no (complete) scenario cache of this version
+	 */
+	private static Map<String, SourceFile> readHeader(Input in, File file) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException(file + " is no scenario cache file.");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version " + version + " of the scenario cache file " + file);
+		}
+		if (!in.readBoolean()) {
+			throw new IOException("The scenario cache file " + file + " is incomplete.");
+		}
+		int nSources = in.readInt();
+		Map<String, SourceFile> sources = new HashMap<>();
+		for (int i = 0; i < nSources; i++) {
+			SourceFile source = new SourceFile(in.readString(), in.readLong(), in.readLong());
+			sources.put(source.canonicalPath, source);
+		}
+		return sources;
+	}
+
+	/**
+	 * @return a description of the attributes of the scenario which the cache
+	 * cannot store, null if there are none
+	 */
+	private static String findUnsupportedAttributes(Scenario scenario) {
+		for (VehicleType type : scenario.getTransitVehicles().getVehicleTypes().values()) {
+			if (type.getEngineInformation() != null) {
+				return "vehicle type " + type.getId() + " has engine information";
+			}
+			if (type.getCapacity() != null && type.getCapacity().getFreightCapacity() != null) {
+				return "vehicle type " + type.getId() + " has a freight capacity";
+			}
+		}
+		return null;
+	}
+
+	private static void writeNetwork(DataOutputStream out, Network network) throws IOException {
+		out.writeDouble(network.getCapacityPeriod());
+		writeNodes(out, network.getNodes().values());
+		writeLinks(out, network.getLinks().values());
+	}
+
+	private static void readNetwork(Input in, Network network) throws IOException {
+		double capacityPeriod = in.readDouble();
+		if (network instanceof NetworkImpl) {
+			((NetworkImpl) network).setCapacityPeriod(capacityPeriod);
+		}
+		readNodes(in, network);
+		readLinks(in, network);
+	}
+
+	static void writeNodes(DataOutputStream out, Collection<? extends Node> nodes) throws IOException {
+		out.writeInt(nodes.size());
+		for (Node node : nodes) {
+			writeString(out, node.getId().toString());
+			out.writeDouble(node.getCoord().getX());
+			out.writeDouble(node.getCoord().getY());
+		}
+	}
+
+	static void writeLinks(DataOutputStream out, Collection<? extends Link> links) throws IOException {
+		out.writeInt(links.size());
+		for (Link link : links) {
+			writeString(out, link.getId().toString());
+			writeString(out, link.getFromNode().getId().toString());
+			writeString(out, link.getToNode().getId().toString());
+			out.writeDouble(link.getLength());
+			out.writeDouble(link.getFreespeed());
+			out.writeDouble(link.getCapacity());
+			out.writeDouble(link.getNumberOfLanes());
+			out.writeInt(link.getAllowedModes().size());
+			for (String mode : link.getAllowedModes()) {
+				writeString(out, mode);
+			}
+			LinkImpl linkImpl = link instanceof LinkImpl ? (LinkImpl) link : null;
+			writeNullableString(out, linkImpl == null ? null : linkImpl.getType());
+			writeNullableString(out, linkImpl == null ? null : linkImpl.getOrigId());
+		}
+	}
+
+	/**
+	 * @return the nodes read and added to the network
+	 */
+	static List<Node> readNodes(Input in, Network network) throws IOException {
+		int nNodes = in.readInt();
+		List<Node> nodes = new ArrayList<>(nNodes);
+		for (int i = 0; i < nNodes; i++) {
+			Id<Node> nodeId = Id.create(in.readString(), Node.class);
+			Coord coord = CoordUtils.createCoord(in.readDouble(), in.readDouble());
+			Node node = network.getFactory().createNode(nodeId, coord);
+			network.addNode(node);
+			nodes.add(node);
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return the links read and added to the network
+	 */
+	static List<Link> readLinks(Input in, Network network) throws IOException {
+		// most links share a few sets of allowed modes
+		Map<List<String>, Set<String>> allowedModesCache = new HashMap<>();
+		int nLinks = in.readInt();
+		List<Link> links = new ArrayList<>(nLinks);
+		for (int i = 0; i < nLinks; i++) {
+			Id<Link> linkId = Id.create(in.readString(), Link.class);
+			Node fromNode = network.getNodes().get(Id.create(in.readString(), Node.class));
+			Node toNode = network.getNodes().get(Id.create(in.readString(), Node.class));
+			Link link = network.getFactory().createLink(linkId, fromNode, toNode);
+			link.setLength(in.readDouble());
+			link.setFreespeed(in.readDouble());
+			link.setCapacity(in.readDouble());
+			link.setNumberOfLanes(in.readDouble());
+			int nModes = in.readInt();
+			List<String> modes = new ArrayList<>(nModes);
+			for (int m = 0; m < nModes; m++) {
+				modes.add(in.readString());
+			}
+			Set<String> allowedModes = allowedModesCache.get(modes);
+			if (allowedModes == null) {
+				allowedModes = new HashSet<>(modes);
+				allowedModesCache.put(modes, allowedModes);
+			}
+			link.setAllowedModes(allowedModes);
+			String type = in.readNullableString();
+			String origId = in.readNullableString();
+			if (link instanceof LinkImpl) {
+				if (type != null) {
+					((LinkImpl) link).setType(type);
+				}
+				if (origId != null) {
+					((LinkImpl) link).setOrigId(origId);
+				}
+			}
+			network.addLink(link);
+			links.add(link);
+		}
+		return links;
+	}
+
+	private static void writeTransitSchedule(DataOutputStream out, TransitSchedule schedule) throws IOException {
+		writeStopFacilities(out, schedule.getFacilities().values());
+		writeTransitLines(out, schedule.getTransitLines().values());
+	}
+
+	private static void readTransitSchedule(Input in, TransitSchedule schedule) throws IOException {
+		readStopFacilities(in, schedule);
+		readTransitLines(in, schedule);
+	}
+
+	static void writeStopFacilities(DataOutputStream out, Collection<TransitStopFacility> stops) throws IOException {
+		out.writeInt(stops.size());
+		for (TransitStopFacility stop : stops) {
+			writeString(out, stop.getId().toString());
+			out.writeDouble(stop.getCoord().getX());
+			out.writeDouble(stop.getCoord().getY());
+			writeNullableString(out, stop.getLinkId());
+			writeNullableString(out, stop.getName());
+			out.writeBoolean(stop.getIsBlockingLane());
+		}
+	}
+
+	static void writeTransitLines(DataOutputStream out, Collection<TransitLine> lines) throws IOException {
+		out.writeInt(lines.size());
+		for (TransitLine line : lines) {
+			writeString(out, line.getId().toString());
+			writeNullableString(out, line.getName());
+			out.writeInt(line.getRoutes().size());
+			for (TransitRoute route : line.getRoutes().values()) {
+				writeString(out, route.getId().toString());
+				writeNullableString(out, route.getDescription());
+				writeString(out, route.getTransportMode());
+				out.writeInt(route.getStops().size());
+				for (TransitRouteStop stop : route.getStops()) {
+					writeString(out, stop.getStopFacility().getId().toString());
+					out.writeDouble(stop.getArrivalOffset());
+					out.writeDouble(stop.getDepartureOffset());
+					out.writeBoolean(stop.isAwaitDepartureTime());
+				}
+				NetworkRoute netRoute = route.getRoute();
+				out.writeBoolean(netRoute != null);
+				if (netRoute != null) {
+					writeString(out, netRoute.getStartLinkId().toString());
+					out.writeInt(netRoute.getLinkIds().size());
+					for (Id<Link> linkId : netRoute.getLinkIds()) {
+						writeString(out, linkId.toString());
+					}
+					writeString(out, netRoute.getEndLinkId().toString());
+				}
+				out.writeInt(route.getDepartures().size());
+				for (Departure departure : route.getDepartures().values()) {
+					writeString(out, departure.getId().toString());
+					out.writeDouble(departure.getDepartureTime());
+					writeNullableString(out, departure.getVehicleId());
+				}
+			}
+		}
+	}
+
+	static void readStopFacilities(Input in, TransitSchedule schedule) throws IOException {
+		TransitScheduleFactory factory = schedule.getFactory();
+		int nStops = in.readInt();
+		for (int i = 0; i < nStops; i++) {
+			Id<TransitStopFacility> stopId = Id.create(in.readString(), TransitStopFacility.class);
+			Coord coord = CoordUtils.createCoord(in.readDouble(), in.readDouble());
+			String linkId = in.readNullableString();
+			String name = in.readNullableString();
+			TransitStopFacility stop = factory.createTransitStopFacility(stopId, coord, in.readBoolean());
+			if (linkId != null) {
+				stop.setLinkId(Id.create(linkId, Link.class));
+			}
+			if (name != null) {
+				stop.setName(name);
+			}
+			schedule.addStopFacility(stop);
+		}
+	}
+
+	/**
+	 * The stop facilities of the TransitRoutes have to be in the schedule.
+	 */
+	static void readTransitLines(Input in, TransitSchedule schedule) throws IOException {
+		TransitScheduleFactory factory = schedule.getFactory();
+		int nLines = in.readInt();
+		for (int i = 0; i < nLines; i++) {
+			TransitLine line = factory.createTransitLine(Id.create(in.readString(), TransitLine.class));
+			String lineName = in.readNullableString();
+			if (lineName != null) {
+				line.setName(lineName);
+			}
+			int nRoutes = in.readInt();
+			for (int r = 0; r < nRoutes; r++) {
+				Id<TransitRoute> routeId = Id.create(in.readString(), TransitRoute.class);
+				String description = in.readNullableString();
+				String mode = in.readString();
+				int nRouteStops = in.readInt();
+				List<TransitRouteStop> stops = new ArrayList<>(nRouteStops);
+				for (int s = 0; s < nRouteStops; s++) {
+					TransitStopFacility stopFacility = schedule.getFacilities().get(
+							Id.create(in.readString(), TransitStopFacility.class));
+					TransitRouteStop stop = factory.createTransitRouteStop(stopFacility, in.readDouble(), in.readDouble());
+					stop.setAwaitDepartureTime(in.readBoolean());
+					stops.add(stop);
+				}
+				NetworkRoute netRoute = null;
+				if (in.readBoolean()) {
+					Id<Link> startLinkId = Id.create(in.readString(), Link.class);
+					int nLinks = in.readInt();
+					List<Id<Link>> linkIds = new ArrayList<>(nLinks);
+					for (int l = 0; l < nLinks; l++) {
+						linkIds.add(Id.create(in.readString(), Link.class));
+					}
+					Id<Link> endLinkId = Id.create(in.readString(), Link.class);
+					netRoute = (NetworkRoute) (new LinkNetworkRouteFactory()).createRoute(startLinkId, endLinkId);
+					netRoute.setLinkIds(startLinkId, linkIds, endLinkId);
+				}
+				TransitRoute route = factory.createTransitRoute(routeId, netRoute, stops, mode);
+				if (description != null) {
+					route.setDescription(description);
+				}
+				int nDepartures = in.readInt();
+				for (int d = 0; d < nDepartures; d++) {
+					Departure departure = factory.createDeparture(Id.create(in.readString(), Departure.class), in.readDouble());
+					String vehicleId = in.readNullableString();
+					if (vehicleId != null) {
+						departure.setVehicleId(Id.create(vehicleId, Vehicle.class));
+					}
+					route.addDeparture(departure);
+				}
+				line.addRoute(route);
+			}
+			schedule.addTransitLine(line);
+		}
+	}
+
+	private static void writeVehicles(DataOutputStream out, Vehicles vehicles) throws IOException {
+		writeVehicleTypes(out, vehicles.getVehicleTypes().values());
+		writeVehicles(out, vehicles.getVehicles().values());
+	}
+
+	private static void readVehicles(Input in, Vehicles vehicles) throws IOException {
+		readVehicleTypes(in, vehicles);
+		readVehicleList(in, vehicles);
+	}
+
+	static void writeVehicleTypes(DataOutputStream out, Collection<VehicleType> types) throws IOException {
+		out.writeInt(types.size());
+		for (VehicleType type : types) {
+			writeString(out, type.getId().toString());
+			writeNullableString(out, type.getDescription());
+			VehicleCapacity capacity = type.getCapacity();
+			out.writeInt(capacity == null || capacity.getSeats() == null ? -1 : capacity.getSeats());
+			out.writeInt(capacity == null || capacity.getStandingRoom() == null ? -1 : capacity.getStandingRoom());
+			out.writeDouble(type.getLength());
+			out.writeDouble(type.getWidth());
+			out.writeDouble(type.getMaximumVelocity());
+			out.writeDouble(type.getPcuEquivalents());
+			out.writeDouble(type.getAccessTime());
+			out.writeDouble(type.getEgressTime());
+			writeString(out, type.getDoorOperationMode().name());
+		}
+	}
+
+	static void writeVehicles(DataOutputStream out, Collection<Vehicle> vehicles) throws IOException {
+		out.writeInt(vehicles.size());
+		for (Vehicle vehicle : vehicles) {
+			writeString(out, vehicle.getId().toString());
+			writeString(out, vehicle.getType().getId().toString());
+		}
+	}
+
+	static void readVehicleTypes(Input in, Vehicles vehicles) throws IOException {
+		int nTypes = in.readInt();
+		for (int i = 0; i < nTypes; i++) {
+			VehicleType type = vehicles.getFactory().createVehicleType(Id.create(in.readString(), VehicleType.class));
+			String description = in.readNullableString();
+			if (description != null) {
+				type.setDescription(description);
+			}
+			int seats = in.readInt();
+			int standingRoom = in.readInt();
+			if (seats >= 0 || standingRoom >= 0) {
+				VehicleCapacity capacity = vehicles.getFactory().createVehicleCapacity();
+				if (seats >= 0) {
+					capacity.setSeats(seats);
+				}
+				if (standingRoom >= 0) {
+					capacity.setStandingRoom(standingRoom);
+				}
+				type.setCapacity(capacity);
+			}
+			type.setLength(in.readDouble());
+			type.setWidth(in.readDouble());
+			type.setMaximumVelocity(in.readDouble());
+			type.setPcuEquivalents(in.readDouble());
+			type.setAccessTime(in.readDouble());
+			type.setEgressTime(in.readDouble());
+			type.setDoorOperationMode(VehicleType.DoorOperationMode.valueOf(in.readString()));
+			vehicles.addVehicleType(type);
+		}
+	}
+
+	/**
+	 * The vehicle types of the vehicles have to be in the Vehicles.
+	 */
+	static void readVehicleList(Input in, Vehicles vehicles) throws IOException {
+		int nVehicles = in.readInt();
+		for (int i = 0; i < nVehicles; i++) {
+			Id<Vehicle> vehicleId = Id.create(in.readString(), Vehicle.class);
+			VehicleType type = vehicles.getVehicleTypes().get(Id.create(in.readString(), VehicleType.class));
+			vehicles.addVehicle(vehicles.getFactory().createVehicle(vehicleId, type));
+		}
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeNullableString(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			writeString(out, value.toString());
+		}
+	}
+
+	/**
+	 * An xml file the cache was written from, identified by its canonical path.
+	 */
+	private static final class SourceFile {
+		private final String canonicalPath;
+		private final long length;
+		private final long lastModified;
+
+		SourceFile(File file) throws IOException {
+			this(file.getCanonicalPath(), file.length(), file.lastModified());
+		}
+
+		SourceFile(String canonicalPath, long length, long lastModified) {
+			this.canonicalPath = canonicalPath;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SourceFile)) {
+				return false;
+			}
+			SourceFile other = (SourceFile) o;
+			return canonicalPath.equals(other.canonicalPath) && length == other.length &&
+					lastModified == other.lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return canonicalPath.hashCode();
+		}
+	}
+
+	/**
+	 * Reads the cache sequentially through a direct buffer refilled from the
+	 * FileChannel, so the file size is not limited by the size of a single
+	 * mapped buffer.
+	 */
+	static final class Input {
+		private final FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+		Input(FileChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes) {
+				return;
+			}
+			if (bytes > buffer.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(bytes, 2 * buffer.capacity()));
+				larger.put(buffer);
+				buffer = larger;
+			} else {
+				buffer.compact();
+			}
+			while (buffer.position() < bytes) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("Unexpected end of the scenario cache file.");
+				}
+			}
+			buffer.flip();
+		}
+
+		int readInt() throws IOException {
+			ensure(4);
+			return buffer.getInt();
+		}
+
+		long readLong() throws IOException {
+			ensure(8);
+			return buffer.getLong();
+		}
+
+		double readDouble() throws IOException {
+			ensure(8);
+			return buffer.getDouble();
+		}
+
+		boolean readBoolean() throws IOException {
+			ensure(1);
+			return buffer.get() != 0;
+		}
+
+		String readString() throws IOException {
+			int length = readInt();
+			ensure(length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		String readNullableString() throws IOException {
+			int length = readInt();
+			if (length < 0) {
+				return null;
+			}
+			ensure(length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
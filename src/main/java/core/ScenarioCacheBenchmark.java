@@ -0,0 +1,61 @@
+package core;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.MatsimNetworkReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
+import org.matsim.vehicles.VehicleReaderV1;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares reading the network, the TransitSchedule and the transit vehicles
+ * from the xml files written by ExtractNetwork with loading them from the
+ * ScenarioCache. The cache is written first if it is not up to date.
+ *
+ * Arguments: networkFile transitScheduleFile transitVehicleFile cacheFile
+ */
+public class ScenarioCacheBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		String networkFile = args[0];
+		String transitScheduleFile = args[1];
+		String transitVehicleFile = args[2];
+		File cacheFile = new File(args[3]);
+
+		long start = System.nanoTime();
+		Scenario xmlScenario = createScenario();
+		new MatsimNetworkReader(xmlScenario.getNetwork()).readFile(networkFile);
+		new TransitScheduleReader(xmlScenario).readFile(transitScheduleFile);
+		new VehicleReaderV1(xmlScenario.getTransitVehicles()).readFile(transitVehicleFile);
+		long xmlNanos = System.nanoTime() - start;
+
+		if (!ScenarioCache.isUpToDate(cacheFile, networkFile, transitScheduleFile, transitVehicleFile)) {
+			ScenarioCache.write(xmlScenario, cacheFile, networkFile, transitScheduleFile, transitVehicleFile);
+		}
+		int nLinks = xmlScenario.getNetwork().getLinks().size();
+		int nLines = xmlScenario.getTransitSchedule().getTransitLines().size();
+		xmlScenario = null;
+		System.gc();
+
+		start = System.nanoTime();
+		Scenario cachedScenario = createScenario();
+		ScenarioCache.load(cacheFile, cachedScenario);
+		long cacheNanos = System.nanoTime() - start;
+
+		System.out.printf("Xml: %.1f ms (%d links, %d TransitLines)%n", xmlNanos / 1e6, nLinks, nLines);
+		System.out.printf("Cache: %.1f ms (%d links, %d TransitLines), %d bytes, %.1fx faster%n", cacheNanos / 1e6,
+				cachedScenario.getNetwork().getLinks().size(), cachedScenario.getTransitSchedule().getTransitLines().size(),
+				cacheFile.length(), (double) xmlNanos / cacheNanos);
+	}
+
+	private static Scenario createScenario() {
+		Config config = ConfigUtils.createConfig();
+		config.transit().setUseTransit(true);
+		return ScenarioUtils.createScenario(config);
+	}
+
+}
@@ -0,0 +1,142 @@
+package core;
+
+import org.opentripplanner.routing.algorithm.TraverseVisitor;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Edge;
+
+/**
+ * Limits the effort spent by otp on a single routing request of the
+ * OTPRoutingModule. Some origin destination pairs make otp explore huge parts
+ * of the graph, e.g. rural trips where otp waits for a departure on the
+ * following Monday. The budget is enforced during the otp search:
+ *
+ * -maxWallClockSeconds and maxExploredStates abort the search
+ * -maxTripDurationSeconds sets the search horizon of otp (states arriving
+ * later are not explored) and paths arriving later are discarded
+ *
+ * If the search is aborted or all paths found exceed maxTripDurationSeconds,
+ * the Fallback decides which legs are returned. Fallback legs are not cached.
+ * Limits which are 0 or negative are not enforced.
+ */
+public final class SearchBudget {
+
+	public enum Fallback {
+		/** Act as if no route was found */
+		NONE,
+		/** Teleport from origin to destination with a travel time estimated from the beeline distance */
+		TELEPORT_BEELINE,
+		/** Search again using the OtpParameterProfile Pt_and_Walk and a single itinerary */
+		SIMPLER_PROFILE
+	}
+
+	// States explored between two checks of the wall clock time
+	private static final int WALL_CLOCK_CHECK_INTERVAL = 1024;
+
+	private final double maxWallClockSeconds;
+	private final int maxExploredStates;
+	private final int maxTripDurationSeconds;
+	private final Fallback fallback;
+	private final double beelineDistanceFactor;
+	private final double beelineSpeed;
+
+	/**
+	 * @param beelineDistanceFactor : factor applied to the beeline distance for Fallback.TELEPORT_BEELINE
+	 * @param beelineSpeed : speed in m/s for Fallback.TELEPORT_BEELINE
+	 */
+	public SearchBudget(double maxWallClockSeconds, int maxExploredStates, int maxTripDurationSeconds,
+			Fallback fallback, double beelineDistanceFactor, double beelineSpeed) {
+		if (fallback == Fallback.TELEPORT_BEELINE && (beelineDistanceFactor <= 0 || beelineSpeed <= 0)) {
+			throw new IllegalArgumentException("Beeline distance factor and speed have to be positive.");
+		}
+		this.maxWallClockSeconds = maxWallClockSeconds;
+		this.maxExploredStates = maxExploredStates;
+		this.maxTripDurationSeconds = maxTripDurationSeconds;
+		this.fallback = fallback;
+		this.beelineDistanceFactor = beelineDistanceFactor;
+		this.beelineSpeed = beelineSpeed;
+	}
+
+	/**
+	 * Beeline teleports (if used) assume a detour factor of 1.3 and 15 km/h.
+	 */
+	public SearchBudget(double maxWallClockSeconds, int maxExploredStates, int maxTripDurationSeconds,
+			Fallback fallback) {
+		this(maxWallClockSeconds, maxExploredStates, maxTripDurationSeconds, fallback, 1.3, 15 / 3.6);
+	}
+
+	public double getMaxWallClockSeconds() {
+		return maxWallClockSeconds;
+	}
+
+	public int getMaxExploredStates() {
+		return maxExploredStates;
+	}
+
+	public int getMaxTripDurationSeconds() {
+		return maxTripDurationSeconds;
+	}
+
+	public Fallback getFallback() {
+		return fallback;
+	}
+
+	public double getBeelineDistanceFactor() {
+		return beelineDistanceFactor;
+	}
+
+	public double getBeelineSpeed() {
+		return beelineSpeed;
+	}
+
+	/**
+	 * @return a visitor for a single otp search which throws an
+	 * ExceededException as soon as the budget is exceeded
+	 */
+	TraverseVisitor createVisitor() {
+		return new BudgetVisitor();
+	}
+
+	private final class BudgetVisitor implements TraverseVisitor {
+		private final long abortTimeNanos = maxWallClockSeconds > 0 ?
+				System.nanoTime() + (long) (maxWallClockSeconds * 1e9) : Long.MAX_VALUE;
+		private int exploredStates = 0;
+
+		@Override
+		public void visitVertex(State state) {
+			exploredStates++;
+			if (maxExploredStates > 0 && exploredStates > maxExploredStates) {
+				throw new ExceededException(false);
+			}
+			if (abortTimeNanos != Long.MAX_VALUE && exploredStates % WALL_CLOCK_CHECK_INTERVAL == 0 &&
+					System.nanoTime() > abortTimeNanos) {
+				throw new ExceededException(true);
+			}
+		}
+
+		@Override
+		public void visitEdge(Edge edge, State state) {
+		}
+
+		@Override
+		public void visitEnqueue(State state) {
+		}
+	}
+
+	/**
+	 * Aborts an otp search. No stack trace is filled in, because it is used
+	 * for control flow only.
+	 */
+	static final class ExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private final boolean wallClock;
+
+		ExceededException(boolean wallClock) {
+			super(wallClock ? "wall clock time exceeded" : "explored states exceeded", null, false, false);
+			this.wallClock = wallClock;
+		}
+
+		boolean isWallClock() {
+			return wallClock;
+		}
+	}
+}
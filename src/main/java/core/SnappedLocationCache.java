@@ -0,0 +1,186 @@
+package core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the otp location of matsim facility
+ * coordinates: the coordinate transformed into the coordinate system of the
+ * otp graph and the nearest otp street vertex. The facilities of an agent
+ * (e.g. home and work) never move, so repeated routing requests from and to
+ * the same facility neither transform the coordinate again nor search the
+ * street index again.
+ *
+ * The nearest vertex identifies the location in the RouteCache and in the
+ * groups of OTPRoutingModule.calcRoutes(). Whether otp is routed from and to
+ * the nearest vertex instead of linking the coordinate into the street graph
+ * (splitting the nearest edge) is decided by the OTPRoutingModule. The 
+ * street index is only searched when the vertex of a location is requested
+ * first, so routing without snapping, RouteCache and calcRoutes() only
+ * transforms the coordinates.
+ *
+ * The cache is keyed by the coordinate values (not by the Coord object,
+ * which might be modified) and holds at most maxEntries locations.
+ */
+public final class SnappedLocationCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000000;
+
+	// Search radius (in degrees latitude) for snapping coordinates to street vertices
+	private static final double SNAP_MIN_RADIUS_DEGREES = 0.0005;
+	private static final double SNAP_MAX_RADIUS_DEGREES = 0.05;
+
+	private final Graph graph;
+	private final CoordinateTransformation ct;
+	private final Map<Key, SnappedLocation> locations;
+
+	/**
+	 * Holds at most DEFAULT_MAX_ENTRIES locations.
+	 */
+	public SnappedLocationCache(Graph graph, CoordinateTransformation ct) {
+		this(graph, ct, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param ct : transforms coordinates of the matsim scenario into the coordinate system of the otp graph
+	 * @param maxEntries : maximum number of cached locations, the least recently used ones are evicted
+	 */
+	public SnappedLocationCache(Graph graph, CoordinateTransformation ct, final int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("The SnappedLocationCache bound has to be positive.");
+		}
+		this.graph = graph;
+		this.ct = ct;
+		this.locations = new LinkedHashMap<Key, SnappedLocation>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, SnappedLocation> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param coord : in the coordinate system of the matsim scenario
+	 */
+	public SnappedLocation get(Coord coord) {
+		Key key = new Key(coord.getX(), coord.getY());
+		SnappedLocation location;
+		synchronized (this) {
+			location = locations.get(key);
+		}
+		if (location == null) {
+			// transform outside of the lock, concurrent threads might transform the same coordinate twice
+			location = new SnappedLocation(this, ct.transform(coord));
+			synchronized (this) {
+				SnappedLocation previous = locations.get(key);
+				if (previous != null) {
+					return previous;
+				}
+				locations.put(key, location);
+			}
+		}
+		return location;
+	}
+
+	public synchronized int size() {
+		return locations.size();
+	}
+
+	/**
+	 * Snaps a coordinate (in the coordinate system of the otp graph) to the
+	 * nearest street vertex.
+	 *
+	 * @return the nearest street vertex or null if there is none within SNAP_MAX_RADIUS_DEGREES
+	 */
+	private Vertex getNearestStreetVertex(Coord otpCoord) {
+		double cosLat = Math.cos(Math.toRadians(otpCoord.getY()));
+		for (double radius = SNAP_MIN_RADIUS_DEGREES; radius <= SNAP_MAX_RADIUS_DEGREES; radius *= 4) {
+			Envelope envelope = new Envelope(new Coordinate(otpCoord.getX(), otpCoord.getY()));
+			envelope.expandBy(radius / cosLat, radius);
+			Vertex nearest = null;
+			double nearestSquaredDistance = Double.POSITIVE_INFINITY;
+			for (Vertex v: graph.streetIndex.getVerticesForEnvelope(envelope)) {
+				if (!(v instanceof StreetVertex)) {
+					continue;
+				}
+				double dx = (v.getX() - otpCoord.getX()) * cosLat;
+				double dy = v.getY() - otpCoord.getY();
+				if (dx * dx + dy * dy < nearestSquaredDistance) {
+					nearestSquaredDistance = dx * dx + dy * dy;
+					nearest = v;
+				}
+			}
+			if (nearest != null) {
+				return nearest;
+			}
+		}
+		return null;
+	}
+
+	public static final class SnappedLocation {
+		private final SnappedLocationCache cache;
+		private final Coord otpCoord;
+		// set before snapped, concurrent threads might snap the same location twice
+		private Vertex vertex = null;
+		private volatile boolean snapped = false;
+
+		private SnappedLocation(SnappedLocationCache cache, Coord otpCoord) {
+			this.cache = cache;
+			this.otpCoord = otpCoord;
+		}
+
+		/**
+		 * @return the coordinate in the coordinate system of the otp graph
+		 */
+		public Coord getOtpCoord() {
+			return otpCoord;
+		}
+
+		/**
+		 * Searches the street index on the first call.
+		 *
+		 * @return the nearest otp street vertex or null if there is none close to the coordinate
+		 */
+		public Vertex getVertex() {
+			if (!snapped) {
+				vertex = cache.getNearestStreetVertex(otpCoord);
+				snapped = true;
+			}
+			return vertex;
+		}
+	}
+
+	private static final class Key {
+		private final double x;
+		private final double y;
+
+		Key(double x, double y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return Double.compare(x, other.x) == 0 && Double.compare(y, other.y) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Double.hashCode(x) + Double.hashCode(y);
+		}
+	}
+}
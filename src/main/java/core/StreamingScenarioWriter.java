@@ -0,0 +1,376 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the network (network_v1), the TransitSchedule (transitSchedule_v1)
+ * and the transit vehicles (vehicleDefinitions_v1.0) while ReadGraph extracts
+ * them, so they do not have to be kept in the Scenario until they are
+ * written by the matsim writers.
+ *
+ * Each file consists of two sections which are produced interleaved (nodes
+ * and links, stop facilities and transit lines, vehicle types and vehicles),
+ * so the sections are written to temporary part files in the directory of
+ * the output file and concatenated by close(). Output files ending with
+ * ".gz" are gzipped.
+ */
+public final class StreamingScenarioWriter implements Closeable {
+
+	private final static Logger log = Logger.getLogger(StreamingScenarioWriter.class);
+
+	private final String networkFile;
+	private final String transitScheduleFile;
+	private final String transitVehicleFile;
+
+	private final Part nodes;
+	private final Part links;
+	private final Part stopFacilities;
+	private final Part transitLines;
+	private final Part vehicleTypes;
+	private final Part vehicles;
+
+	private double capacityPeriod = 3600;
+	private boolean parallelGzip = false;
+	private boolean closed = false;
+
+	public StreamingScenarioWriter(String networkFile, String transitScheduleFile, String transitVehicleFile) {
+		this.networkFile = networkFile;
+		this.transitScheduleFile = transitScheduleFile;
+		this.transitVehicleFile = transitVehicleFile;
+		this.nodes = new Part(networkFile, "nodes");
+		this.links = new Part(networkFile, "links");
+		this.stopFacilities = new Part(transitScheduleFile, "stops");
+		this.transitLines = new Part(transitScheduleFile, "lines");
+		this.vehicleTypes = new Part(transitVehicleFile, "types");
+		this.vehicles = new Part(transitVehicleFile, "vehicles");
+	}
+
+	/**
+	 * Compresses output files ending with ".gz" with a
+	 * ParallelGzipOutputStream instead of on the writing thread.
+	 */
+	public void setParallelGzip(boolean parallelGzip) {
+		this.parallelGzip = parallelGzip;
+	}
+
+	public void setCapacityPeriod(double capacityPeriod) {
+		this.capacityPeriod = capacityPeriod;
+	}
+
+	public void writeNode(Node node) {
+		nodes.write("\t\t<node id=\"" + escape(node.getId()) + "\" x=\"" + node.getCoord().getX() +
+				"\" y=\"" + node.getCoord().getY() + "\" />\n");
+	}
+
+	public void writeLink(Link link) {
+		StringBuilder modes = new StringBuilder();
+		for (Iterator<String> it = link.getAllowedModes().iterator(); it.hasNext(); ) {
+			modes.append(it.next());
+			if (it.hasNext()) {
+				modes.append(',');
+			}
+		}
+		links.write("\t\t<link id=\"" + escape(link.getId()) +
+				"\" from=\"" + escape(link.getFromNode().getId()) +
+				"\" to=\"" + escape(link.getToNode().getId()) +
+				"\" length=\"" + link.getLength() +
+				"\" freespeed=\"" + link.getFreespeed() +
+				"\" capacity=\"" + link.getCapacity() +
+				"\" permlanes=\"" + link.getNumberOfLanes() +
+				"\" oneway=\"1\" modes=\"" + escape(modes.toString()) + "\" />\n");
+	}
+
+	public void writeStopFacility(TransitStopFacility stopFacility) {
+		StringBuilder sb = new StringBuilder("\t\t<stopFacility id=\"").append(escape(stopFacility.getId()))
+				.append("\" x=\"").append(stopFacility.getCoord().getX())
+				.append("\" y=\"").append(stopFacility.getCoord().getY()).append('"');
+		if (stopFacility.getLinkId() != null) {
+			sb.append(" linkRefId=\"").append(escape(stopFacility.getLinkId())).append('"');
+		}
+		if (stopFacility.getName() != null) {
+			sb.append(" name=\"").append(escape(stopFacility.getName())).append('"');
+		}
+		sb.append(" isBlocking=\"").append(stopFacility.getIsBlockingLane()).append("\"/>\n");
+		stopFacilities.write(sb.toString());
+	}
+
+	/**
+	 * Writes the TransitLine with all its TransitRoutes and Departures. The
+	 * line is not needed by the writer afterwards.
+	 */
+	public void writeTransitLine(TransitLine transitLine) {
+		StringBuilder sb = new StringBuilder("\t<transitLine id=\"").append(escape(transitLine.getId())).append('"');
+		if (transitLine.getName() != null) {
+			sb.append(" name=\"").append(escape(transitLine.getName())).append('"');
+		}
+		sb.append(">\n");
+		for (TransitRoute route : transitLine.getRoutes().values()) {
+			sb.append("\t\t<transitRoute id=\"").append(escape(route.getId())).append("\">\n");
+			if (route.getDescription() != null) {
+				sb.append("\t\t\t<description>").append(escape(route.getDescription())).append("</description>\n");
+			}
+			sb.append("\t\t\t<transportMode>").append(escape(route.getTransportMode())).append("</transportMode>\n");
+			sb.append("\t\t\t<routeProfile>\n");
+			for (TransitRouteStop stop : route.getStops()) {
+				sb.append("\t\t\t\t<stop refId=\"").append(escape(stop.getStopFacility().getId())).append('"');
+				if (stop.getArrivalOffset() != Time.UNDEFINED_TIME) {
+					sb.append(" arrivalOffset=\"").append(Time.writeTime(stop.getArrivalOffset())).append('"');
+				}
+				if (stop.getDepartureOffset() != Time.UNDEFINED_TIME) {
+					sb.append(" departureOffset=\"").append(Time.writeTime(stop.getDepartureOffset())).append('"');
+				}
+				sb.append(" awaitDeparture=\"").append(stop.isAwaitDepartureTime()).append("\"/>\n");
+			}
+			sb.append("\t\t\t</routeProfile>\n");
+			if (route.getRoute() != null) {
+				sb.append("\t\t\t<route>\n");
+				appendLinkRef(sb, route.getRoute().getStartLinkId());
+				for (Id<Link> linkId : route.getRoute().getLinkIds()) {
+					appendLinkRef(sb, linkId);
+				}
+				appendLinkRef(sb, route.getRoute().getEndLinkId());
+				sb.append("\t\t\t</route>\n");
+			}
+			sb.append("\t\t\t<departures>\n");
+			for (Departure departure : route.getDepartures().values()) {
+				sb.append("\t\t\t\t<departure id=\"").append(escape(departure.getId()))
+						.append("\" departureTime=\"").append(Time.writeTime(departure.getDepartureTime())).append('"');
+				if (departure.getVehicleId() != null) {
+					sb.append(" vehicleRefId=\"").append(escape(departure.getVehicleId())).append('"');
+				}
+				sb.append("/>\n");
+			}
+			sb.append("\t\t\t</departures>\n");
+			sb.append("\t\t</transitRoute>\n");
+		}
+		sb.append("\t</transitLine>\n\n");
+		transitLines.write(sb.toString());
+	}
+
+	private static void appendLinkRef(StringBuilder sb, Id<Link> linkId) {
+		sb.append("\t\t\t\t<link refId=\"").append(escape(linkId)).append("\"/>\n");
+	}
+
+	public void writeVehicleType(VehicleType vehicleType) {
+		StringBuilder sb = new StringBuilder("\t<vehicleType id=\"").append(escape(vehicleType.getId())).append("\">\n");
+		if (vehicleType.getDescription() != null) {
+			sb.append("\t\t<description>").append(escape(vehicleType.getDescription())).append("</description>\n");
+		}
+		if (vehicleType.getCapacity() != null) {
+			sb.append("\t\t<capacity>\n");
+			if (vehicleType.getCapacity().getSeats() != null) {
+				sb.append("\t\t\t<seats persons=\"").append(vehicleType.getCapacity().getSeats()).append("\"/>\n");
+			}
+			if (vehicleType.getCapacity().getStandingRoom() != null) {
+				sb.append("\t\t\t<standingRoom persons=\"").append(vehicleType.getCapacity().getStandingRoom()).append("\"/>\n");
+			}
+			sb.append("\t\t</capacity>\n");
+		}
+		sb.append("\t\t<length meter=\"").append(vehicleType.getLength()).append("\"/>\n");
+		sb.append("\t\t<width meter=\"").append(vehicleType.getWidth()).append("\"/>\n");
+		sb.append("\t\t<accessTime secondsPerPerson=\"").append(vehicleType.getAccessTime()).append("\"/>\n");
+		sb.append("\t\t<egressTime secondsPerPerson=\"").append(vehicleType.getEgressTime()).append("\"/>\n");
+		sb.append("\t\t<doorOperation mode=\"").append(vehicleType.getDoorOperationMode()).append("\"/>\n");
+		sb.append("\t</vehicleType>\n");
+		vehicleTypes.write(sb.toString());
+	}
+
+	public void writeVehicle(Vehicle vehicle) {
+		vehicles.write("\t<vehicle id=\"" + escape(vehicle.getId()) + "\" type=\"" +
+				escape(vehicle.getType().getId()) + "\"/>\n");
+	}
+
+	/**
+	 * Concatenates the part files into the output files (concurrently) and
+	 * deletes them.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		final String capperiod = Time.writeTime(capacityPeriod);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<?>> writes = new ArrayList<>();
+			writes.add(executor.submit(() -> concatenate(networkFile,
+					"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+					"<!DOCTYPE network SYSTEM \"http://www.matsim.org/files/dtd/network_v1.dtd\">\n\n" +
+					"<network>\n\n\t<nodes>\n",
+					nodes,
+					"\t</nodes>\n\n\t<links capperiod=\"" + capperiod + "\">\n",
+					links,
+					"\t</links>\n\n</network>\n")));
+			writes.add(executor.submit(() -> concatenate(transitScheduleFile,
+					"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+					"<!DOCTYPE transitSchedule SYSTEM \"http://www.matsim.org/files/dtd/transitSchedule_v1.dtd\">\n\n" +
+					"<transitSchedule>\n\n\t<transitStops>\n",
+					stopFacilities,
+					"\t</transitStops>\n\n",
+					transitLines,
+					"</transitSchedule>\n")));
+			writes.add(executor.submit(() -> concatenate(transitVehicleFile,
+					"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n\n" +
+					"<vehicleDefinitions xmlns=\"http://www.matsim.org/files/dtd\" " +
+					"xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" " +
+					"xsi:schemaLocation=\"http://www.matsim.org/files/dtd http://www.matsim.org/files/dtd/vehicleDefinitions_v1.0.xsd\">\n",
+					vehicleTypes,
+					"",
+					vehicles,
+					"</vehicleDefinitions>\n")));
+			for (Future<?> write : writes) {
+				write.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+			for (Part part : new Part[]{nodes, links, stopFacilities, transitLines, vehicleTypes, vehicles}) {
+				part.delete();
+			}
+		}
+		log.info("Streamed " + nodes.count + " nodes and " + links.count + " links to " + networkFile + ", " +
+				stopFacilities.count + " TransitStopFacilities and " + transitLines.count + " TransitLines to " +
+				transitScheduleFile + ", " + vehicles.count + " vehicles to " + transitVehicleFile);
+	}
+
+	private Void concatenate(String file, String header, Part first, String middle, Part second,
+			String footer) throws IOException {
+		long start = System.nanoTime();
+		first.close();
+		second.close();
+		try (BufferedWriter out = openWriter(file)) {
+			out.write(header);
+			first.copyTo(out);
+			out.write(middle);
+			second.copyTo(out);
+			out.write(footer);
+		}
+		log.info("Wrote " + new File(file).length() + " bytes to " + file + " in " +
+				(System.nanoTime() - start) / 1000000 + " ms.");
+		return null;
+	}
+
+	private BufferedWriter openWriter(String file) throws IOException {
+		if (parallelGzip && file.endsWith(".gz")) {
+			return new BufferedWriter(new OutputStreamWriter(
+					new ParallelGzipOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8));
+		}
+		return IOUtils.getBufferedWriter(file);
+	}
+
+	private static String escape(Object value) {
+		String s = value.toString();
+		StringBuilder sb = null;
+		for (int i = 0; i < s.length(); i++) {
+			String replacement;
+			switch (s.charAt(i)) {
+				case '&': replacement = "&amp;"; break;
+				case '<': replacement = "&lt;"; break;
+				case '>': replacement = "&gt;"; break;
+				case '"': replacement = "&quot;"; break;
+				default: replacement = null;
+			}
+			if (replacement != null && sb == null) {
+				sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+			}
+			if (sb != null) {
+				if (replacement != null) {
+					sb.append(replacement);
+				} else {
+					sb.append(s.charAt(i));
+				}
+			}
+		}
+		return sb == null ? s : sb.toString();
+	}
+
+	/**
+	 * Uncompressed temporary file holding one section of an output file.
+	 */
+	private static final class Part {
+		private final File file;
+		private BufferedWriter writer;
+		private int count = 0;
+
+		Part(String outputFile, String section) {
+			File dir = new File(outputFile).getAbsoluteFile().getParentFile();
+			try {
+				file = File.createTempFile(new File(outputFile).getName() + "." + section + ".", ".part", dir);
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		synchronized void write(String s) {
+			try {
+				writer.write(s);
+				count++;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		void close() throws IOException {
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+		}
+
+		void copyTo(BufferedWriter out) throws IOException {
+			char[] buffer = new char[1 << 16];
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+			}
+		}
+
+		void delete() {
+			try {
+				close();
+			} catch (IOException e) {
+				log.warn("Could not close " + file, e);
+			}
+			file.delete();
+		}
+	}
+}
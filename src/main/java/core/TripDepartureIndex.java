@@ -0,0 +1,155 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.onebusaway.gtfs.model.AgencyAndId;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup from otp trip ids to the matsim departures created for them by
+ * ReadGraph.writeTripTime().
+ *
+ * ReadGraph saves an otp trip once per day on which it is operated and adds
+ * the day ("_-1", "_0" or "_1") to the otp trip id in order to create the
+ * matsim departure id. Instead of searching all TransitRoutes of a
+ * TransitLine for these departure ids on every routing request, the index is
+ * built once from the TransitSchedule. It is never modified after
+ * construction, so a single instance can be shared by all OTPRoutingModules.
+ *
+ * The departures are keyed by the otp trip ids (agency id and trip id), so
+ * a lookup neither converts the otp trip id into a String nor allocates.
+ * The departure id only contains both parts joined by "_", so a departure
+ * is indexed under every possible split of its otp trip id. Only the split
+ * used by otp matches, the other keys are never looked up.
+ */
+public final class TripDepartureIndex {
+
+	/** Days relative to the simulated date for which ReadGraph exports departures */
+	static final int FIRST_DAY = -1;
+	static final int LAST_DAY = 1;
+
+	private final static Logger log = Logger.getLogger(TripDepartureIndex.class);
+
+	private final Map<AgencyAndId, Entry[]> entriesByOtpTripId = new HashMap<>();
+
+	public TripDepartureIndex(TransitSchedule transitSchedule) {
+		Map<TransitRoute, RouteStopOffsets> offsetsByRoute = new IdentityHashMap<>();
+		int nDepartures = 0;
+		for (TransitLine line: transitSchedule.getTransitLines().values()) {
+			for (TransitRoute route: line.getRoutes().values()) {
+				for (Departure departure: route.getDepartures().values()) {
+					String departureId = departure.getId().toString();
+					int separator = departureId.lastIndexOf('_');
+					if (separator < 0) {
+						continue;
+					}
+					int day;
+					try {
+						day = Integer.parseInt(departureId.substring(separator + 1));
+					} catch (NumberFormatException e) {
+						// not created by ReadGraph
+						continue;
+					}
+					if (day < FIRST_DAY || day > LAST_DAY) {
+						continue;
+					}
+					RouteStopOffsets offsets = offsetsByRoute.get(route);
+					if (offsets == null) {
+						offsets = new RouteStopOffsets(route.getStops());
+						offsetsByRoute.put(route, offsets);
+					}
+					String otpTripId = departureId.substring(0, separator);
+					Entry entry = new Entry(line, route, departure, offsets);
+					for (int split = otpTripId.indexOf('_'); split >= 0; split = otpTripId.indexOf('_', split + 1)) {
+						AgencyAndId key = new AgencyAndId(otpTripId.substring(0, split), otpTripId.substring(split + 1));
+						Entry[] entries = entriesByOtpTripId.get(key);
+						if (entries == null) {
+							entries = new Entry[LAST_DAY - FIRST_DAY + 1];
+							entriesByOtpTripId.put(key, entries);
+						}
+						entries[day - FIRST_DAY] = entry;
+					}
+					nDepartures++;
+				}
+			}
+		}
+		log.info("Indexed " + nDepartures + " departures (" + entriesByOtpTripId.size() + " otp trip id keys).");
+	}
+
+	/**
+	 * @param otpTripId the otp trip id, e.g. agency "VBB" and id "110063"
+	 * @param day day relative to the simulated date, between FIRST_DAY and LAST_DAY
+	 * @return the matsim departure of the otp trip on that day or null if it was not exported
+	 */
+	public Entry get(AgencyAndId otpTripId, int day) {
+		Entry[] entries = entriesByOtpTripId.get(otpTripId);
+		if (entries == null || day < FIRST_DAY || day > LAST_DAY) {
+			return null;
+		}
+		return entries[day - FIRST_DAY];
+	}
+
+	public static final class Entry {
+		private final TransitLine line;
+		private final TransitRoute route;
+		private final Departure departure;
+		private final RouteStopOffsets offsets;
+
+		private Entry(TransitLine line, TransitRoute route, Departure departure, RouteStopOffsets offsets) {
+			this.line = line;
+			this.route = route;
+			this.departure = departure;
+			this.offsets = offsets;
+		}
+
+		public TransitLine getLine() {
+			return line;
+		}
+
+		public TransitRoute getRoute() {
+			return route;
+		}
+
+		public Departure getDeparture() {
+			return departure;
+		}
+
+		/**
+		 * @return the scheduled arrival time at the given stop (matsim time of day,
+		 * can be greater than 24:00:00) or NaN if the TransitRoute does not serve it
+		 */
+		public double getArrivalTime(Id<TransitStopFacility> stopFacilityId) {
+			return departure.getDepartureTime() + offsets.getArrivalOffset(stopFacilityId);
+		}
+	}
+
+	/**
+	 * Arrival offsets of a TransitRoute by stop, shared by all departures of
+	 * the route. A stop served twice keeps its first arrival offset.
+	 */
+	private static final class RouteStopOffsets {
+		private final Map<Id<TransitStopFacility>, Double> arrivalOffsets;
+
+		RouteStopOffsets(List<TransitRouteStop> stops) {
+			arrivalOffsets = new HashMap<>(2 * stops.size());
+			for (TransitRouteStop stop : stops) {
+				arrivalOffsets.putIfAbsent(stop.getStopFacility().getId(), stop.getArrivalOffset());
+			}
+		}
+
+		double getArrivalOffset(Id<TransitStopFacility> stopFacilityId) {
+			Double arrivalOffset = arrivalOffsets.get(stopFacilityId);
+			return arrivalOffset == null ? Double.NaN : arrivalOffset;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package core;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Chains the departures of a TransitSchedule into vehicle blocks, so one
+ * transit vehicle serves several departures one after the other instead of
+ * one vehicle per departure.
+ *
+ * Departures of trips with a GTFS block id are served by one vehicle per
+ * block (and day), as long as they do not overlap in time. All other
+ * departures are chained greedily per transport mode: a departure is served
+ * by the vehicle that arrived first at its first stop at least
+ * minimumLayoverTime before, otherwise by a new vehicle.
+ *
+ * A vehicle becomes available at the end of its departure's dwell time at
+ * the last stop, not at the arrival there. So the departures of a vehicle
+ * never overlap in time, even with a layover shorter than the dwell time.
+ *
+ * Blocking only reduces the number of vehicles written to the transit 
+ * vehicles file. It does not reduce the memory of the mobsim: matsim's 
+ * TransitQSimEngine without Umlaeufe still creates a vehicle and a driver 
+ * per departure, and no Umlaeufe are written. Departures sharing a vehicle 
+ * id have not been verified with a mobsim run, so schedules for simulation
+ * should be extracted without blocking.
+ */
+final class VehicleBlocking {
+
+	private final static Logger log = Logger.getLogger(VehicleBlocking.class);
+
+	private final double minimumLayoverTime;
+	private final Map<String, List<BlockedDeparture>> departuresByBlockId = new LinkedHashMap<>();
+	private final Map<String, List<BlockedDeparture>> departuresByMode = new LinkedHashMap<>();
+	private int nDepartures = 0;
+
+	VehicleBlocking(double minimumLayoverTime) {
+		this.minimumLayoverTime = minimumLayoverTime;
+	}
+
+	/**
+	 * @param vehicleType the VehicleType of the departure, determines the VehicleType of its block
+	 * @param blockId unique for the day of the departure, null if the trip has no GTFS block id
+	 */
+	void add(Departure departure, TransitRoute transitRoute, VehicleType vehicleType, String blockId) {
+		BlockedDeparture blocked = new BlockedDeparture(departure, transitRoute, vehicleType);
+		if (blockId == null) {
+			addTo(departuresByMode, transitRoute.getTransportMode(), blocked);
+		} else {
+			addTo(departuresByBlockId, blockId, blocked);
+		}
+		nDepartures++;
+	}
+
+	/**
+	 * Sets the vehicle ids of all departures added and adds the vehicles of
+	 * the blocks to the vehicles.
+	 */
+	void assign(Vehicles vehicles) {
+		int nVehicles = 0;
+		for (Map.Entry<String, List<BlockedDeparture>> entry : departuresByBlockId.entrySet()) {
+			List<BlockedDeparture> block = entry.getValue();
+			block.sort(Comparator.comparingDouble(d -> d.startTime));
+			Vehicle vehicle = null;
+			double availableTime = Double.NEGATIVE_INFINITY;
+			for (BlockedDeparture departure : block) {
+				if (departure.startTime < availableTime) {
+					// overlapping trips of a block, chained with the departures without block id
+					addTo(departuresByMode, departure.transitRoute.getTransportMode(), departure);
+					continue;
+				}
+				if (vehicle == null) {
+					vehicle = vehicles.getFactory().createVehicle(
+							createVehicleId("block_" + entry.getKey()), departure.vehicleType);
+					vehicles.addVehicle(vehicle);
+					nVehicles++;
+				}
+				departure.departure.setVehicleId(vehicle.getId());
+				availableTime = departure.endTime;
+			}
+		}
+		int nBlockVehicles = nVehicles;
+
+		for (Map.Entry<String, List<BlockedDeparture>> entry : departuresByMode.entrySet()) {
+			List<BlockedDeparture> departures = entry.getValue();
+			departures.sort(Comparator.comparingDouble(d -> d.startTime));
+			// vehicles waiting at a stop, the first one to become available first
+			Map<Id<TransitStopFacility>, PriorityQueue<IdleVehicle>> idleVehiclesByStop = new HashMap<>();
+			int vehicleIndex = 0;
+			for (BlockedDeparture departure : departures) {
+				PriorityQueue<IdleVehicle> idleVehicles = idleVehiclesByStop.get(departure.startStopId);
+				Vehicle vehicle;
+				if (idleVehicles != null && !idleVehicles.isEmpty() &&
+						idleVehicles.peek().availableTime + minimumLayoverTime <= departure.startTime) {
+					vehicle = idleVehicles.poll().vehicle;
+				} else {
+					vehicle = vehicles.getFactory().createVehicle(
+							createVehicleId(entry.getKey() + "_vehicle_" + vehicleIndex++), departure.vehicleType);
+					vehicles.addVehicle(vehicle);
+					nVehicles++;
+				}
+				departure.departure.setVehicleId(vehicle.getId());
+				PriorityQueue<IdleVehicle> idleAtEnd = idleVehiclesByStop.get(departure.endStopId);
+				if (idleAtEnd == null) {
+					idleAtEnd = new PriorityQueue<>(Comparator.comparingDouble((IdleVehicle v) -> v.availableTime));
+					idleVehiclesByStop.put(departure.endStopId, idleAtEnd);
+				}
+				idleAtEnd.add(new IdleVehicle(vehicle, departure.endTime));
+			}
+		}
+		log.info("Assigned " + nDepartures + " departures to " + nVehicles + " vehicles (" +
+				nBlockVehicles + " from GTFS block ids).");
+	}
+
+	/**
+	 * The schedules of several dates are blocked concurrently, see the id
+	 * creation in ReadGraph.
+	 */
+	private static Id<Vehicle> createVehicleId(String key) {
+		synchronized (Id.class) {
+			return Id.create(key, Vehicle.class);
+		}
+	}
+
+	private static void addTo(Map<String, List<BlockedDeparture>> map, String key, BlockedDeparture departure) {
+		List<BlockedDeparture> departures = map.get(key);
+		if (departures == null) {
+			departures = new ArrayList<>();
+			map.put(key, departures);
+		}
+		departures.add(departure);
+	}
+
+	private static final class BlockedDeparture {
+		private final Departure departure;
+		private final TransitRoute transitRoute;
+		private final VehicleType vehicleType;
+		private final double startTime;
+		private final double endTime;
+		private final Id<TransitStopFacility> startStopId;
+		private final Id<TransitStopFacility> endStopId;
+
+		BlockedDeparture(Departure departure, TransitRoute transitRoute, VehicleType vehicleType) {
+			this.departure = departure;
+			this.transitRoute = transitRoute;
+			this.vehicleType = vehicleType;
+			this.startTime = departure.getDepartureTime();
+			// the vehicle leaves the last stop after its dwell time there
+			TransitRouteStop lastStop = transitRoute.getStops().get(transitRoute.getStops().size() - 1);
+			this.endTime = startTime + Math.max(lastStop.getArrivalOffset(), lastStop.getDepartureOffset());
+			this.startStopId = transitRoute.getStops().get(0).getStopFacility().getId();
+			this.endStopId = transitRoute.getStops().get(transitRoute.getStops().size() - 1).getStopFacility().getId();
+		}
+	}
+
+	private static final class IdleVehicle {
+		private final Vehicle vehicle;
+		private final double availableTime;
+
+		IdleVehicle(Vehicle vehicle, double availableTime) {
+			this.vehicle = vehicle;
+			this.availableTime = availableTime;
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package examples.bologna;
 
+import org.opentripplanner.routing.services.GraphService;
+
+import core.GraphRegistry;
+
 import run.ExtractNetwork;
 import run.GeneratePopulationAndRunScenario;
 import run.RunOTP;
@@ -36,8 +40,14 @@ public class Run {
     public static void main(String[] args){
 //    	RunOTP.runGraphBuilder(OTP_GRAPH_DIR);
 //    	RunOTP.runGraphVisualizer(OTP_GRAPH_DIR);
-    	runExtractNetwork();
-    	runGeneratePopulationAndScenario();
+    	// Keep the otp graph loaded, so ExtractNetwork and the simulation share it
+    	GraphService graphService = GraphRegistry.acquire(OTP_GRAPH_DIR);
+    	try {
+    		runExtractNetwork();
+    		runGeneratePopulationAndScenario();
+    	} finally {
+    		GraphRegistry.release(graphService);
+    	}
     }
 
 	private static void runExtractNetwork() {
@@ -11,7 +11,6 @@ import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.network.MatsimNetworkReader;
 import org.matsim.core.network.NetworkImpl;
 import org.matsim.core.population.ActivityImpl;
-import org.matsim.core.router.PlanRouter;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
@@ -21,6 +20,8 @@ import org.matsim.population.algorithms.PersonPrepareForSim;
 import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
 import org.matsim.vehicles.VehicleReaderV1;
 
+import core.AsyncOTPRoutingModule;
+import core.AsyncPlanRouter;
 import core.OTPTripRouterFactory;
 
 import java.io.IOException;
@@ -107,14 +108,20 @@ public class GenerateAndRoutePopulation {
 				scenario.getNetwork(), new IdentityTransformation(), "2013-08-24", "Europe/Berlin", 
 				"/Users/michaelzilske/gtfs-ulm/Graph.obj", false, 1, false);
 
+		// otp searches run on a pool of their own, all trips of a person are routed in parallel
+		final AsyncOTPRoutingModule asyncRoutingModule = new AsyncOTPRoutingModule(trf.getRoutingModule(),
+				Runtime.getRuntime().availableProcessors());
+
 		// make sure all routes are calculated.
 		ParallelPersonAlgorithmRunner.run(population, config.global().getNumberOfThreads(),
 				new ParallelPersonAlgorithmRunner.PersonAlgorithmProvider() {
 			@Override
 			public AbstractPersonAlgorithm getPersonAlgorithm() {
-				return new PersonPrepareForSim(new PlanRouter(trf.get(), scenario.getActivityFacilities()), scenario);
+				return new PersonPrepareForSim(new AsyncPlanRouter(trf.get(), scenario.getActivityFacilities(), 
+						asyncRoutingModule), scenario);
 			}
 		});
+		asyncRoutingModule.shutdown();
 
 		new PopulationWriter(population, scenario.getNetwork()).writeV5("/Users/zilske/gtfs-bvg/population.xml");
 
@@ -1,15 +1,38 @@
 package run;
 
-import org.matsim.api.core.v01.network.Network;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.network.NetworkWriter;
 import org.matsim.core.utils.geometry.transformations.TransformationFactory;
 import org.matsim.pt.transitSchedule.api.TransitScheduleWriter;
 import org.matsim.vehicles.VehicleWriterV1;
 
-import core.OTPTripRouterFactory;
+import org.opentripplanner.routing.services.GraphService;
+
+import core.ExtractionArea;
+import core.ExtractionStageCache;
+import core.GraphIdMapping;
+import core.GraphRegistry;
+import core.ParallelGzipOutputStream;
 import core.ReadGraph;
+import core.ScenarioCache;
+import core.StreamingScenarioWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 public class ExtractNetwork {
+
+	private final static Logger log = Logger.getLogger(ExtractNetwork.class);
 	
 	private String otpGraphDir;
 	private String targetScenarioCoordinateSystem;
@@ -20,6 +43,12 @@ public class ExtractNetwork {
 	private String networkFile;
 	private String transitScheduleFile;
 	private String transitVehicleFile;
+	private boolean streaming = false;
+	private boolean parallelGzip = false;
+	private String stageCacheDirectory = null;
+	private List<String> additionalDates = new ArrayList<>();
+	private boolean vehicleBlocking = false;
+	private ExtractionArea area = null;
 	
 	public ExtractNetwork(String otpGraphDir, String targetScenarioCoordinateSystem, String date, 
 			String timeZone, int scheduleEndTimeOnFollowingDay, 
@@ -35,21 +64,220 @@ public class ExtractNetwork {
 		this.transitScheduleFile = transitScheduleFile;
 		this.transitVehicleFile = transitVehicleFile;
 	}
+
+	/**
+	 * Writes the network, the TransitSchedule and the transit vehicles while 
+	 * they are extracted instead of building the complete scenario in memory 
+	 * first. File names ending with ".gz" are gzipped. Has no effect with 
+	 * useCreatePseudoNetworkInsteadOfOtpPtNetwork.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Compresses output files ending with ".gz" in blocks on several threads
+	 * (see ParallelGzipOutputStream) instead of on the writing thread.
+	 */
+	public void setParallelGzip(boolean parallelGzip) {
+		this.parallelGzip = parallelGzip;
+	}
+
+	/**
+	 * Keeps the extracted street network, pt network and schedule in the 
+	 * directory, so extracting the same graph again (e.g. for another date) 
+	 * only reruns the stages whose parameters changed. See 
+	 * ExtractionStageCache. Not used in streaming mode.
+	 */
+	public void setStageCacheDirectory(String stageCacheDirectory) {
+		this.stageCacheDirectory = stageCacheDirectory;
+	}
 	
+	/**
+	 * Additionally writes the TransitSchedule and the transit vehicles of the
+	 * dates (yyyy-MM-dd) using the graph loaded for date. The file names get 
+	 * "_" and the date inserted before ".xml", e.g. transitSchedule_2016-11-08.xml.gz,
+	 * the network is shared by all dates. Cannot be combined with 
+	 * useCreatePseudoNetworkInsteadOfOtpPtNetwork.
+	 */
+	public void setAdditionalDates(List<String> additionalDates) {
+		if(useCreatePseudoNetworkInsteadOfOtpPtNetwork && !additionalDates.isEmpty()){
+			throw new IllegalStateException("The pseudo network depends on the TransitSchedule and cannot be shared between dates.");
+		}
+		this.additionalDates = new ArrayList<>(additionalDates);
+	}
+
+	/**
+	 * Chains the departures into vehicle blocks instead of writing one 
+	 * transit vehicle per departure, see ReadGraph.setVehicleBlocking. Not
+	 * used in streaming mode. Only reduces the size of the vehicles file, 
+	 * not the memory of the mobsim, and the shared vehicle ids are not
+	 * verified with a mobsim run. Off by default.
+	 */
+	public void setVehicleBlocking(boolean vehicleBlocking) {
+		this.vehicleBlocking = vehicleBlocking;
+	}
+
+	/**
+	 * Only extracts the part of the graph within the bounding box (WGS84),
+	 * see ReadGraph.setExtractionArea.
+	 */
+	public void setBoundingBox(double minLon, double minLat, double maxLon, double maxLat) {
+		this.area = ExtractionArea.fromBoundingBox(minLon, minLat, maxLon, maxLat);
+	}
+
+	/**
+	 * Only extracts the part of the graph within the polygon given as WKT in
+	 * WGS84, see ReadGraph.setExtractionArea.
+	 */
+	public void setAreaWkt(String wkt) {
+		this.area = ExtractionArea.fromWkt(wkt);
+	}
+
 	public void run(){
-        ReadGraph readGraph = new ReadGraph(OTPTripRouterFactory.createGraphService(otpGraphDir),
+        GraphService graphService = GraphRegistry.acquire(otpGraphDir);
+        ReadGraph readGraph = new ReadGraph(graphService,
                 TransformationFactory.getCoordinateTransformation(TransformationFactory.WGS84, 
                 		targetScenarioCoordinateSystem),
                 date,
                 timeZone,
                 scheduleEndTimeOnFollowingDay,
                 useCreatePseudoNetworkInsteadOfOtpPtNetwork);
-        readGraph.run();
-        
-        Network network = readGraph.getScenario().getNetwork();
-        new NetworkWriter(network).write(networkFile);
+        readGraph.setNumberOfThreads(Runtime.getRuntime().availableProcessors());
+        readGraph.setExtractionArea(area);
+        if(stageCacheDirectory != null){
+        	if(streaming && !useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+        		log.warn("The stage cache cannot be combined with streaming and is not used.");
+        	} else {
+        		readGraph.setStageCache(new ExtractionStageCache(new File(stageCacheDirectory)), 
+        				targetScenarioCoordinateSystem);
+        	}
+        }
+        if(vehicleBlocking){
+        	if(streaming && !useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+        		log.warn("Vehicle blocking cannot be combined with streaming and is not used.");
+        	} else {
+        		readGraph.setVehicleBlocking(true);
+        	}
+        }
+        if(streaming && !useCreatePseudoNetworkInsteadOfOtpPtNetwork){
+        	try (StreamingScenarioWriter streamingWriter = new StreamingScenarioWriter(networkFile, 
+        			transitScheduleFile, transitVehicleFile)) {
+        		streamingWriter.setParallelGzip(parallelGzip);
+        		readGraph.setStreamingWriter(streamingWriter);
+        		readGraph.run();
+        	}
+        } else {
+        	if(streaming){
+        		log.warn("The pseudo network requires the complete TransitSchedule, the scenario is written after the extraction.");
+        	}
+        	readGraph.run();
+        	writeScenario(readGraph.getScenario());
+        	try {
+        		// written after the xml files, it records their lengths and modification times
+        		ScenarioCache.write(readGraph.getScenario(), new File(new File(networkFile).getAbsoluteFile().getParentFile(), 
+        				ScenarioCache.FILE_NAME), networkFile, transitScheduleFile, transitVehicleFile);
+        	} catch (IOException e) {
+        		throw new UncheckedIOException(e);
+        	}
+        }
+        if(!additionalDates.isEmpty()){
+        	writeSchedules(readGraph.extractSchedules(additionalDates));
+        }
+        try {
+        	readGraph.getGraphIdMapping().write(new File(new File(networkFile).getAbsoluteFile().getParentFile(), 
+        			GraphIdMapping.FILE_NAME), GraphRegistry.getKey(graphService));
+        } catch (IOException e) {
+        	throw new UncheckedIOException(e);
+        }
+        GraphRegistry.release(graphService);
+	}
+
+	/**
+	 * Writes the network, the TransitSchedule and the transit vehicles 
+	 * concurrently.
+	 */
+	private void writeScenario(final Scenario scenario) {
+		List<Runnable> writes = new ArrayList<>();
+		writes.add(() -> writeFile(networkFile, 
+				file -> new NetworkWriter(scenario.getNetwork()).write(file)));
+		writes.add(() -> writeFile(transitScheduleFile, 
+				file -> new TransitScheduleWriter(scenario.getTransitSchedule()).writeFile(file)));
+		writes.add(() -> writeFile(transitVehicleFile, 
+				file -> new VehicleWriterV1(scenario.getTransitVehicles()).writeFile(file)));
+		writeConcurrently(writes);
+	}
+
+	/**
+	 * Writes the TransitSchedules and the transit vehicles of all dates 
+	 * concurrently.
+	 */
+	private void writeSchedules(Map<String, Scenario> scenarioByDate) {
+		List<Runnable> writes = new ArrayList<>();
+		for (Map.Entry<String, Scenario> entry : scenarioByDate.entrySet()) {
+			final Scenario scenario = entry.getValue();
+			writes.add(() -> writeFile(getDatedFileName(transitScheduleFile, entry.getKey()), 
+					file -> new TransitScheduleWriter(scenario.getTransitSchedule()).writeFile(file)));
+			writes.add(() -> writeFile(getDatedFileName(transitVehicleFile, entry.getKey()), 
+					file -> new VehicleWriterV1(scenario.getTransitVehicles()).writeFile(file)));
+		}
+		writeConcurrently(writes);
+	}
+
+	/**
+	 * Inserts "_" and the date before ".xml", or before the extension if the
+	 * file name does not contain ".xml".
+	 */
+	private static String getDatedFileName(String file, String date) {
+		int nameStart = file.lastIndexOf(File.separatorChar) + 1;
+		int insertAt = file.lastIndexOf(".xml");
+		if (insertAt < nameStart) {
+			insertAt = file.lastIndexOf('.');
+		}
+		if (insertAt < nameStart) {
+			insertAt = file.length();
+		}
+		return file.substring(0, insertAt) + "_" + date + file.substring(insertAt);
+	}
+
+	private void writeConcurrently(List<Runnable> writes) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(writes.size(), 
+				Math.max(3, Runtime.getRuntime().availableProcessors())));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Runnable write : writes) {
+				futures.add(executor.submit(write));
+			}
+			for (Future<?> write : futures) {
+				write.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
 
-        new TransitScheduleWriter(readGraph.getScenario().getTransitSchedule()).writeFile(transitScheduleFile);
-        new VehicleWriterV1(readGraph.getScenario().getTransitVehicles()).writeFile(transitVehicleFile);
+	private void writeFile(String file, Consumer<String> writer) {
+		long start = System.nanoTime();
+		if (parallelGzip && file.endsWith(".gz")) {
+			// the matsim writers would gzip the file on a single thread
+			File uncompressedFile = new File(file.substring(0, file.length() - ".gz".length()) + ".tmp");
+			writer.accept(uncompressedFile.getPath());
+			try {
+				ParallelGzipOutputStream.compress(uncompressedFile, new File(file));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				uncompressedFile.delete();
+			}
+		} else {
+			writer.accept(file);
+		}
+		log.info("Wrote " + new File(file).length() + " bytes to " + file + " in " + 
+				(System.nanoTime() - start) / 1000000 + " ms.");
 	}
 }
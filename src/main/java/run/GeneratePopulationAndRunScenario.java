@@ -13,19 +13,34 @@ import org.matsim.core.config.groups.StrategyConfigGroup.StrategySettings;
 import org.matsim.core.controler.AbstractModule;
 import org.matsim.core.controler.Controler;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.listener.ShutdownListener;
 import org.matsim.core.network.MatsimNetworkReader;
+import org.matsim.core.replanning.PlanStrategy;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.utils.geometry.transformations.TransformationFactory;
 import org.matsim.pt.router.TransitRouter;
 import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import org.matsim.vehicles.VehicleReaderV1;
+import org.opentripplanner.routing.services.GraphService;
 
+import core.AsyncOTPRoutingModule;
+import core.AsyncReRoute;
+import core.BatchReRoute;
+import core.GraphIdMapping;
+import core.GraphRegistry;
 import core.OTPTripRouterFactory;
+import core.ScenarioCache;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.inject.Provider;
 
 /**
  * Generates an example population with home->work->home trips. All home and
@@ -71,6 +86,19 @@ public class GeneratePopulationAndRunScenario {
     }
     
 	public void run() {
+		// load the otp graph while the matsim scenario is read and the population is generated
+		CompletableFuture<GraphService> graphService = GraphRegistry.acquireAsync(otpGraphDir);
+		try {
+			run(graphService);
+		} finally {
+			// a graph which could not be loaded is not referenced
+			if (!graphService.isCompletedExceptionally()) {
+				GraphRegistry.release(graphService.join());
+			}
+		}
+	}
+
+	private void run(CompletableFuture<GraphService> graphService) {
 		Config config = ConfigUtils.createConfig();
 		config.transit().setUseTransit(true);
 		config.transit().setTransitScheduleFile(transitScheduleFile);
@@ -99,7 +127,7 @@ public class GeneratePopulationAndRunScenario {
 		config.strategy().setMaxAgentPlanMemorySize(5);
 		
 		StrategySettings reRoute = new StrategySettings(Id.create("1", StrategySettings.class));
-		reRoute.setStrategyName("ReRoute");
+		reRoute.setStrategyName(BatchReRoute.STRATEGY_NAME);
 		reRoute.setWeight(0.2);
 		reRoute.setDisableAfter(40);
 		StrategySettings expBeta = new StrategySettings(Id.create("2", StrategySettings.class));
@@ -111,9 +139,19 @@ public class GeneratePopulationAndRunScenario {
 
         scenario = ScenarioUtils.createScenario(config);
 
-		new MatsimNetworkReader(scenario.getNetwork()).readFile(config.network().getInputFile());
-		new TransitScheduleReader(scenario).readFile(config.transit().getTransitScheduleFile());
-		new VehicleReaderV1(scenario.getTransitVehicles()).readFile(config.transit().getVehiclesFile());
+		// written by ExtractNetwork next to the network file
+		File scenarioCacheFile = new File(new File(networkFile).getAbsoluteFile().getParentFile(), ScenarioCache.FILE_NAME);
+		if (ScenarioCache.isUpToDate(scenarioCacheFile, networkFile, transitScheduleFile, transitVehicleFile)) {
+			try {
+				ScenarioCache.load(scenarioCacheFile, scenario);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			new MatsimNetworkReader(scenario.getNetwork()).readFile(config.network().getInputFile());
+			new TransitScheduleReader(scenario).readFile(config.transit().getTransitScheduleFile());
+			new VehicleReaderV1(scenario.getTransitVehicles()).readFile(config.transit().getVehiclesFile());
+		}
 		
         facs = new ArrayList<>(scenario.getTransitSchedule().getFacilities().values());
         System.out.println("Scenario has " + scenario.getNetwork().getLinks().size() + " links.");
@@ -123,24 +161,54 @@ public class GeneratePopulationAndRunScenario {
 						targetScenarioCoordinateSystem, TransformationFactory.WGS84),
 				date,
 				timeZone,
-                otpGraphDir,
+                graphService,
                 true, 3, 
                 useCreatePseudoNetworkInsteadOfOtpPtNetwork);
+		// written by ExtractNetwork next to the network file
+		File graphIdMappingFile = new File(new File(networkFile).getAbsoluteFile().getParentFile(), GraphIdMapping.FILE_NAME);
+		if (graphIdMappingFile.exists()) {
+			try {
+				trf.setGraphIdMapping(GraphIdMapping.read(graphIdMappingFile));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
         
         generatePopulation();
         
         new PopulationWriter(scenario.getPopulation(), scenario.getNetwork()).writeV5(populationFile);
 
+		// reroutes the pt trips of all persons concurrently in the replanning, BatchReRoute shares the otp
+		// searches of trips departing from the same home or work location within 10 minutes
+		final AsyncOTPRoutingModule asyncRoutingModule = new AsyncOTPRoutingModule(trf.getRoutingModule(),
+				config.global().getNumberOfThreads());
 		Controler controler = new Controler(scenario);
 		controler.addOverridingModule(new AbstractModule() {
 
 			@Override
 			public void install() {
 				bind(TransitRouter.class).to(DummyTransitRouter.class);
+				addPlanStrategyBinding(AsyncReRoute.STRATEGY_NAME).toProvider(new Provider<PlanStrategy>() {
+					@Override
+					public PlanStrategy get() {
+						return AsyncReRoute.createStrategy(config.global(), trf,
+								scenario.getActivityFacilities(), asyncRoutingModule);
+					}
+				});
+				addPlanStrategyBinding(BatchReRoute.STRATEGY_NAME).toProvider(new Provider<PlanStrategy>() {
+					@Override
+					public PlanStrategy get() {
+						return BatchReRoute.createStrategy(trf, scenario.getActivityFacilities(), 
+								asyncRoutingModule, 10 * 60, 4 * 60 * 60);
+					}
+				});
 			}
 			
 		});
 		controler.setTripRouterFactory(trf);
+		// closes the routing trace
+		controler.addControlerListener(trf);
+		controler.addControlerListener((ShutdownListener) event -> asyncRoutingModule.shutdown());
 
 		controler.run();
 
@@ -1,9 +1,13 @@
 package run;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.standalone.OTPMain;
 import org.opentripplanner.visualizer.GraphVisualizer;
 
-import core.OTPTripRouterFactory;
+import core.GraphRegistry;
 
 public class RunOTP {
 	
@@ -12,7 +16,30 @@ public class RunOTP {
 	}
 	
     public static void runGraphVisualizer(String baseDir) {
-        GraphVisualizer graphVisualizer = new GraphVisualizer(OTPTripRouterFactory.createGraphService(baseDir).getRouter());
+        final GraphService graphService = GraphRegistry.acquire(baseDir);
+        GraphVisualizer graphVisualizer = new GraphVisualizer(graphService.getRouter());
+        // the graph is referenced until the window of the visualizer is closed
+        graphVisualizer.addWindowListener(new WindowAdapter() {
+        	// both events are delivered on the event dispatch thread
+        	private boolean released = false;
+
+        	@Override
+        	public void windowClosing(WindowEvent e) {
+        		release();
+        	}
+
+        	@Override
+        	public void windowClosed(WindowEvent e) {
+        		release();
+        	}
+
+        	private void release() {
+        		if (!released) {
+        			released = true;
+        			GraphRegistry.release(graphService);
+        		}
+        	}
+        });
         graphVisualizer.setVisible(true);
     }
 }